@@ -0,0 +1,204 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.eth.deposit
+
+import com.d3.commons.sidechain.iroha.util.IrohaQueryHelper
+import com.d3.commons.sidechain.iroha.util.ModelUtil
+import com.d3.commons.util.hex
+import com.d3.eth.provider.*
+import com.d3.eth.sidechain.iroha.IrohaBlockDispatcher
+import com.github.kittinunf.result.Result
+import iroha.protocol.BlockOuterClass
+import jp.co.soramitsu.iroha.java.Transaction
+import jp.co.soramitsu.iroha.java.Utils
+import org.openjdk.jmh.annotations.*
+import org.web3j.crypto.WalletUtils
+import java.lang.reflect.Proxy
+import java.util.*
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * Compares per block latency of finding withdrawals in a block of 1,000 transfers:
+ * querying providers for every transfer as [WithdrawalProofHandler] did before
+ * and resolving one snapshot per block with [WithdrawalCollector] behind [IrohaBlockDispatcher].
+ * Iroha is replaced with in-memory details, every query may be delayed to simulate a round trip.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+open class WithdrawalCollectorBenchmark {
+
+    /** Simulated round trip of one Iroha query */
+    @Param("0", "100")
+    var queryLatencyMicros: Long = 0
+
+    private val random = Random(42)
+
+    // account id -> (key -> value)
+    private val details = HashMap<String, Map<String, String>>()
+
+    private lateinit var tokensProvider: EthTokensProvider
+    private lateinit var walletsProvider: EthAddressProvider
+    private lateinit var collector: WithdrawalCollector
+    private lateinit var block: BlockOuterClass.Block
+    private val executor = Executors.newSingleThreadExecutor()
+    private lateinit var dispatcher: IrohaBlockDispatcher
+    private var withdrawals = emptyList<WithdrawalRequest>()
+
+    @Setup
+    fun setup() {
+        val ethAnchored = (0 until TOKENS).associate { i -> randomAddress() to "token$i#ethereum" }
+        val irohaAnchored = (0 until TOKENS).associate { i -> randomAddress() to "coin$i#sora" }
+        details[ETH_ANCHORED_STORAGE] = ethAnchored
+        details[IROHA_ANCHORED_STORAGE] = irohaAnchored
+
+        val wallets = HashMap<String, String>()
+        (0 until ACCOUNTS).forEach { i ->
+            val wallet = randomAddress()
+            wallets[wallet] = "user$i@d3"
+            details["user$i@d3"] = mapOf(ETH_WALLET to wallet)
+        }
+        details[WALLET_STORAGE] = wallets
+
+        val queryHelper = createQueryHelper()
+        tokensProvider = EthTokensProviderImpl(
+            queryHelper,
+            ETH_ANCHORED_STORAGE,
+            SETTER,
+            IROHA_ANCHORED_STORAGE,
+            SETTER
+        )
+        walletsProvider = EthAddressProviderIrohaImpl(queryHelper, WALLET_STORAGE, SETTER, ETH_WALLET)
+        val walletIndex = EthAddressIndex(walletsProvider, WALLET_STORAGE, SETTER)
+        walletIndex.load().get()
+        collector = WithdrawalCollector(TRIGGER_ACCOUNT, tokensProvider, walletIndex)
+        dispatcher = IrohaBlockDispatcher(executor)
+            .onTransferAsset(TRIGGER_ACCOUNT) { _, transfers -> withdrawals = collector.collect(transfers).get() }
+
+        val assets = ethAnchored.values.plus(irohaAnchored.values).plus("$ETH_NAME#$ETH_DOMAIN").toList()
+        val keyPair = ModelUtil.generateKeypair()
+        val transactions = (0 until TRANSFERS).map { i ->
+            val accountId = "user${i % ACCOUNTS}@d3"
+            Transaction.builder(accountId)
+                .transferAsset(
+                    accountId,
+                    TRIGGER_ACCOUNT,
+                    assets[random.nextInt(assets.size)],
+                    randomAddress(),
+                    "1.5"
+                )
+                .sign(keyPair)
+                .build()
+        }
+        block = BlockOuterClass.Block.newBuilder()
+            .setBlockV1(
+                BlockOuterClass.Block_v1.newBuilder()
+                    .setPayload(
+                        BlockOuterClass.Block_v1.Payload.newBuilder()
+                            .setHeight(1)
+                            .setCreatedTime(System.currentTimeMillis())
+                            .addAllTransactions(transactions)
+                    )
+            )
+            .build()
+    }
+
+    /**
+     * Filter chain of the handler before: every transfer queries tokens and its wallet
+     */
+    @Benchmark
+    fun perTransferLookup(): List<WithdrawalRequest> {
+        return block.blockV1.payload.transactionsList.flatMap { tx ->
+            val txHash = String.hex(Utils.hash(tx))
+            tx.payload.reducedPayload.commandsList
+                .filter { command -> command.hasTransferAsset() }
+                .map { command -> command.transferAsset }
+                .filter { transfer -> transfer.destAccountId == TRIGGER_ACCOUNT }
+                .filter { transfer -> WalletUtils.isValidAddress(transfer.description) }
+                .filter { transfer -> tokensProvider.getEthTokens().get().containsValue(transfer.assetId) }
+                .filter { transfer ->
+                    walletsProvider.getAddressByAccountId(transfer.srcAccountId).get().isPresent
+                }
+                .map { transfer ->
+                    WithdrawalRequest(
+                        txHash,
+                        transfer.srcAccountId,
+                        transfer.assetId,
+                        transfer.amount,
+                        transfer.description,
+                        tokensProvider.getTokenAddress(transfer.assetId).get(),
+                        tokensProvider.getTokenPrecision(transfer.assetId).get(),
+                        tokensProvider.isIrohaAnchored(transfer.assetId).get()
+                    )
+                }
+        }
+    }
+
+    @TearDown
+    fun tearDown() {
+        executor.shutdown()
+    }
+
+    @Benchmark
+    fun blockSnapshot(): List<WithdrawalRequest> {
+        dispatcher.dispatch(block)
+        return withdrawals
+    }
+
+    private fun randomAddress(): String {
+        val bytes = ByteArray(20)
+        random.nextBytes(bytes)
+        return "0x" + String.hex(bytes)
+    }
+
+    private fun simulateQuery() {
+        if (queryLatencyMicros > 0)
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(queryLatencyMicros))
+    }
+
+    /**
+     * Query helper over [details], every response is a fresh copy as it is parsed from network
+     */
+    @Suppress("UNCHECKED_CAST")
+    private fun createQueryHelper(): IrohaQueryHelper {
+        return Proxy.newProxyInstance(
+            IrohaQueryHelper::class.java.classLoader,
+            arrayOf(IrohaQueryHelper::class.java)
+        ) { _, method, args ->
+            if (args == null)
+                throw UnsupportedOperationException(method.name)
+            simulateQuery()
+            val accountDetails = details[args[0] as String] ?: emptyMap()
+            when {
+                method.name == "getAccountDetails" && args.size == 2 ->
+                    Result.of { HashMap(accountDetails) }
+                method.name == "getAccountDetails" && args.size == 3 ->
+                    Result.of { Optional.ofNullable(accountDetails[args[2] as String]) }
+                method.name == "getAccountDetailsFilter" -> {
+                    val predicate = args[2] as (String, String) -> Boolean
+                    Result.of { accountDetails.filter { (key, value) -> predicate(key, value) } }
+                }
+                method.name == "getAssetPrecision" -> Result.of { PRECISION }
+                else -> throw UnsupportedOperationException(method.name)
+            }
+        } as IrohaQueryHelper
+    }
+
+    companion object {
+        private const val TRANSFERS = 1000
+        private const val ACCOUNTS = 1000
+        private const val TOKENS = 50
+        private const val PRECISION = 18
+
+        private const val TRIGGER_ACCOUNT = "withdrawal@notary"
+        private const val SETTER = "setter@notary"
+        private const val ETH_ANCHORED_STORAGE = "eth_tokens@notary"
+        private const val IROHA_ANCHORED_STORAGE = "iroha_tokens@notary"
+        private const val WALLET_STORAGE = "wallets@notary"
+    }
+}
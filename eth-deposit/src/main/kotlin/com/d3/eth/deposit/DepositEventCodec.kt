@@ -0,0 +1,118 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.eth.deposit
+
+import com.d3.commons.sidechain.SideChainEvent
+import com.d3.eth.sidechain.util.TokenAmount
+import org.web3j.utils.Numeric
+import java.math.BigDecimal
+import java.math.BigInteger
+import java.nio.BufferUnderflowException
+import java.nio.ByteBuffer
+
+/**
+ * Binary encoding of Ethereum deposit events.
+ * Transaction hash and sender address are stored as 32 and 20 bytes,
+ * amount as integer number of token units with precision, so it is decoded to the same decimal string.
+ *
+ * Layout: kind (1), hash (32), time (8), from (20), precision (1), units length (1), units,
+ * user length (2), user, asset length (2), asset.
+ */
+object DepositEventCodec {
+
+    private const val CHAIN_ANCHORED: Byte = 0
+    private const val IROHA_ANCHORED: Byte = 1
+
+    private const val HASH_SIZE = 32
+    private const val ADDRESS_SIZE = 20
+
+    /** Max size of encoded event */
+    const val MAX_SIZE = 1 + HASH_SIZE + 8 + ADDRESS_SIZE + 1 + 1 + 255 + 2 * (2 + Short.MAX_VALUE)
+
+    /**
+     * Encode [event] into [buffer]
+     * @throws IllegalArgumentException if hash, address or amount of the event is malformed
+     */
+    fun encode(event: SideChainEvent.PrimaryBlockChainEvent, buffer: ByteBuffer) {
+        val amount = BigDecimal(event.amount)
+        if (amount.scale() < 0 || amount.scale() > Byte.MAX_VALUE)
+            throw IllegalArgumentException("Unsupported precision of amount ${event.amount}")
+        val units = amount.unscaledValue().toByteArray()
+        if (units.size > 255)
+            throw IllegalArgumentException("Too big amount ${event.amount}")
+
+        buffer.put(
+            when (event) {
+                is SideChainEvent.PrimaryBlockChainEvent.ChainAnchoredOnPrimaryChainDeposit -> CHAIN_ANCHORED
+                is SideChainEvent.PrimaryBlockChainEvent.IrohaAnchoredOnPrimaryChainDeposit -> IROHA_ANCHORED
+                else -> throw IllegalArgumentException("Unknown deposit ${event.javaClass.simpleName}")
+            }
+        )
+        putHex(buffer, event.hash, HASH_SIZE)
+        buffer.putLong(event.time.longValueExact())
+        putHex(buffer, event.from, ADDRESS_SIZE)
+        buffer.put(amount.scale().toByte())
+        buffer.put(units.size.toByte())
+        buffer.put(units)
+        putString(buffer, event.user)
+        putString(buffer, event.asset)
+    }
+
+    /**
+     * Decode event from [buffer]
+     */
+    fun decode(buffer: ByteBuffer): SideChainEvent.PrimaryBlockChainEvent {
+        val kind = buffer.get()
+        val hash = getHex(buffer, HASH_SIZE)
+        val time = BigInteger.valueOf(buffer.long)
+        val from = getHex(buffer, ADDRESS_SIZE)
+        val precision = buffer.get().toInt()
+        val units = ByteArray(buffer.get().toInt() and 0xff)
+        buffer.get(units)
+        val amount = TokenAmount.fromUnits(BigInteger(units), precision).toDecimalString()
+        val user = getString(buffer)
+        val asset = getString(buffer)
+        return when (kind) {
+            CHAIN_ANCHORED -> SideChainEvent.PrimaryBlockChainEvent.ChainAnchoredOnPrimaryChainDeposit(
+                hash, time, user, asset, amount, from
+            )
+            IROHA_ANCHORED -> SideChainEvent.PrimaryBlockChainEvent.IrohaAnchoredOnPrimaryChainDeposit(
+                hash, time, user, asset, amount, from
+            )
+            else -> throw IllegalArgumentException("Unknown deposit kind $kind")
+        }
+    }
+
+    private fun putHex(buffer: ByteBuffer, hex: String, size: Int) {
+        val bytes = Numeric.hexStringToByteArray(hex)
+        if (bytes.size != size)
+            throw IllegalArgumentException("Expected $size bytes, got $hex")
+        buffer.put(bytes)
+    }
+
+    private fun getHex(buffer: ByteBuffer, size: Int): String {
+        val bytes = ByteArray(size)
+        buffer.get(bytes)
+        return Numeric.toHexString(bytes)
+    }
+
+    private fun putString(buffer: ByteBuffer, value: String) {
+        val bytes = value.toByteArray(Charsets.UTF_8)
+        if (bytes.size > Short.MAX_VALUE)
+            throw IllegalArgumentException("Too long string $value")
+        buffer.putShort(bytes.size.toShort())
+        buffer.put(bytes)
+    }
+
+    private fun getString(buffer: ByteBuffer): String {
+        val length = buffer.short.toInt()
+        if (length < 0 || length > buffer.remaining())
+            throw BufferUnderflowException()
+        val bytes = ByteArray(length)
+        buffer.get(bytes)
+        return String(bytes, Charsets.UTF_8)
+    }
+}
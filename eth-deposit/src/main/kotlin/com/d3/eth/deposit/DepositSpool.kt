@@ -0,0 +1,230 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.eth.deposit
+
+import io.reactivex.Observable
+import io.reactivex.ObservableEmitter
+import io.reactivex.Scheduler
+import mu.KLogging
+import java.io.ByteArrayOutputStream
+import java.io.Closeable
+import java.io.File
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantLock
+import java.util.zip.CRC32
+import kotlin.concurrent.withLock
+
+/**
+ * Durable spool of Ethereum deposit events between chain handler and notary.
+ * Events of a block are appended as one record and synced to disk before the block is considered read,
+ * so events are not lost on crash and Ethereum is not scanned again to restore them.
+ * Events are delivered to the notary by block in order of append, delivered ones are skipped after restart.
+ * The spool is truncated every time all the events are delivered.
+ * An event may be delivered twice if the process stops right after its delivery,
+ * the notary transaction of a deposit is the same every time, so Iroha accepts it only once.
+ *
+ * File layout: magic (4), reserved (4), offset of the first undelivered record (8), records.
+ * Record: payload length (4), payload CRC32 (4), payload: number of events (4), detection time (8),
+ * events encoded with [DepositEventCodec].
+ * @param filePath - path to spool file
+ * @param scheduler - scheduler events are delivered on
+ */
+class DepositSpool(filePath: String, private val scheduler: Scheduler) : Closeable {
+
+    private val channel: FileChannel
+
+    private val lock = ReentrantLock()
+
+    private val appended = lock.newCondition()
+
+    // end of valid records
+    private var end = HEADER_SIZE
+
+    // offset of the first undelivered record
+    private var delivered = HEADER_SIZE
+
+    // buffer an event is encoded in
+    private val event = ByteBuffer.allocate(DepositEventCodec.MAX_SIZE)
+
+    init {
+        val file = File(filePath)
+        file.absoluteFile.parentFile.mkdirs()
+        channel = FileChannel.open(
+            file.toPath(),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE
+        )
+        if (channel.size() < HEADER_SIZE || readHeader().getInt(HEADER_MAGIC) != MAGIC) {
+            if (channel.size() > 0)
+                logger.warn { "Deposit spool $filePath is corrupted, it is cleared" }
+            reset()
+        } else {
+            delivered = readHeader().getLong(HEADER_DELIVERED)
+            end = scan()
+            if (end < channel.size()) {
+                logger.warn { "Deposit spool $filePath is truncated at $end of ${channel.size()}" }
+                channel.truncate(end)
+            }
+            if (delivered < HEADER_SIZE || delivered > end)
+                delivered = end
+        }
+        logger.info { "Deposit spool $filePath is loaded, ${end - delivered} bytes of events are undelivered" }
+    }
+
+    /**
+     * Append events of a block and sync them to disk
+     * @param blockDeposits - deposit events of a block, nothing is written if there are no events
+     */
+    fun append(blockDeposits: EthBlockDeposits) {
+        val events = blockDeposits.deposits
+        if (events.isEmpty())
+            return
+        lock.withLock {
+            val payload = ByteArrayOutputStream()
+            payload.write(ByteBuffer.allocate(12).putInt(events.size).putLong(blockDeposits.detectedAt).array())
+            events.forEach { deposit ->
+                event.clear()
+                DepositEventCodec.encode(deposit, event)
+                payload.write(event.array(), 0, event.position())
+            }
+            if (payload.size() > MAX_RECORD_SIZE)
+                throw IllegalArgumentException("Too many deposits in block: ${events.size}")
+            val crc = CRC32()
+            crc.update(payload.toByteArray())
+            val record = ByteArrayOutputStream(RECORD_HEADER_SIZE + payload.size())
+            val header = ByteBuffer.allocate(RECORD_HEADER_SIZE)
+                .putInt(payload.size())
+                .putInt(crc.value.toInt())
+            record.write(header.array())
+            payload.writeTo(record)
+            val bytes = ByteBuffer.wrap(record.toByteArray())
+            var position = end
+            while (bytes.hasRemaining())
+                position += channel.write(bytes, position)
+            channel.force(false)
+            end = position
+            appended.signalAll()
+        }
+    }
+
+    /**
+     * Get undelivered and new events by block. Events are delivered to one subscriber on [scheduler],
+     * events of a block are considered delivered once the subscriber returns from onNext
+     */
+    fun getEvents(): Observable<EthBlockDeposits> =
+        Observable.create<EthBlockDeposits> { emitter -> deliver(emitter) }
+            .subscribeOn(scheduler)
+
+    override fun close() {
+        lock.withLock {
+            channel.close()
+            appended.signalAll()
+        }
+    }
+
+    private fun deliver(emitter: ObservableEmitter<EthBlockDeposits>) {
+        while (!emitter.isDisposed) {
+            val record = lock.withLock {
+                if (delivered == end && channel.isOpen)
+                    appended.await(WAIT_MILLIS, TimeUnit.MILLISECONDS)
+                if (!channel.isOpen)
+                    return
+                if (delivered == end) null else read(delivered)
+            } ?: continue
+            emitter.onNext(decode(record))
+            lock.withLock {
+                if (!channel.isOpen)
+                    return
+                delivered += RECORD_HEADER_SIZE + record.limit()
+                if (delivered == end) {
+                    // everything is delivered, start over
+                    reset()
+                } else {
+                    // not synced, an unsynced offset only makes events delivered again
+                    channel.write(ByteBuffer.allocate(8).putLong(0, delivered), HEADER_DELIVERED.toLong())
+                }
+            }
+        }
+    }
+
+    private fun decode(record: ByteBuffer): EthBlockDeposits {
+        val events = record.duplicate()
+        val count = events.int
+        val detectedAt = events.long
+        return EthBlockDeposits((1..count).map { DepositEventCodec.decode(events) }, detectedAt)
+    }
+
+    /**
+     * Read payload of record at [offset]
+     */
+    private fun read(offset: Long): ByteBuffer {
+        val header = readFully(offset, RECORD_HEADER_SIZE)
+        return readFully(offset + RECORD_HEADER_SIZE, header.getInt(0))
+    }
+
+    /**
+     * Find end of valid records
+     */
+    private fun scan(): Long {
+        var position = HEADER_SIZE
+        val size = channel.size()
+        while (position + RECORD_HEADER_SIZE <= size) {
+            val header = readFully(position, RECORD_HEADER_SIZE)
+            val length = header.getInt(0)
+            if (length <= 0 || length > MAX_RECORD_SIZE || position + RECORD_HEADER_SIZE + length > size)
+                break
+            val crc = CRC32()
+            crc.update(readFully(position + RECORD_HEADER_SIZE, length))
+            if (crc.value.toInt() != header.getInt(4))
+                break
+            position += RECORD_HEADER_SIZE + length
+        }
+        return position
+    }
+
+    private fun readHeader() = readFully(0, HEADER_SIZE.toInt())
+
+    private fun readFully(offset: Long, length: Int): ByteBuffer {
+        val buffer = ByteBuffer.allocate(length)
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0)
+                break
+        }
+        buffer.flip()
+        return buffer
+    }
+
+    /**
+     * Truncate spool to empty header
+     */
+    private fun reset() {
+        channel.truncate(HEADER_SIZE)
+        val header = ByteBuffer.allocate(HEADER_SIZE.toInt())
+            .putInt(HEADER_MAGIC, MAGIC)
+            .putLong(HEADER_DELIVERED, HEADER_SIZE)
+        channel.write(header, 0)
+        channel.force(false)
+        end = HEADER_SIZE
+        delivered = HEADER_SIZE
+    }
+
+    /**
+     * Logger
+     */
+    companion object : KLogging() {
+        private const val MAGIC = 0x44535031
+        private const val HEADER_MAGIC = 0
+        private const val HEADER_DELIVERED = 8
+        private const val HEADER_SIZE = 16L
+        private const val RECORD_HEADER_SIZE = 8
+        private const val MAX_RECORD_SIZE = 64 * 1024 * 1024
+        private const val WAIT_MILLIS = 1000L
+    }
+}
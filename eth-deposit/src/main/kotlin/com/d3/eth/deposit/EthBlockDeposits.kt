@@ -0,0 +1,18 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.eth.deposit
+
+import com.d3.commons.sidechain.SideChainEvent
+
+/**
+ * Deposits found in one Ethereum block
+ * @param deposits - deposit events in order of the block, their time is the block time
+ * @param detectedAt - time in milliseconds the block was handled and deposits were found
+ */
+data class EthBlockDeposits(
+    val deposits: List<SideChainEvent.PrimaryBlockChainEvent>,
+    val detectedAt: Long
+)
@@ -45,6 +45,24 @@ interface EthDepositConfig {
     /** Path to storage of last read Ethereum block number */
     val lastEthereumReadBlockFilePath: String
 
+    /** Path to cache of Ethereum blocks and receipts */
+    val ethereumBlockCacheFilePath: String
+
+    /** Size of Ethereum block cache in megabytes */
+    val ethereumBlockCacheSizeMb: Int
+
+    /** Path to spool of deposit events not sent to Iroha yet, events go to Iroha directly if absent */
+    val depositSpoolFilePath: String?
+
+    /**
+     * Max number of deposits of one Ethereum block sent in one Iroha transaction,
+     * must be the same for all the notaries
+     */
+    val maxDepositsPerIrohaTransaction: Int
+
+    /** Deposits that take longer from Ethereum block to Iroha commit are logged as slow */
+    val slowDepositMillis: Long
+
     /** Ethereum block number to start listen for */
     val startEthereumBlock: BigInteger
 
@@ -53,6 +71,12 @@ interface EthDepositConfig {
 
     val ethereum: EthereumConfig
 
+    /**
+     * Max percent of extra Ethereum reads sent to other node when block or receipt read is slow,
+     * 0 disables hedging. Hedging needs several nodes in ethereum.url
+     */
+    val ethereumHedgeBudgetPercent: Int
+
     /** Iroha withdrawal account grant permission to */
     val withdrawalAccountId: String
 
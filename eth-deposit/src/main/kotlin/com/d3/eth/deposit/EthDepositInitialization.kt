@@ -9,26 +9,28 @@ import com.d3.chainadapter.client.RMQConfig
 import com.d3.chainadapter.client.ReliableIrohaChainListener
 import com.d3.commons.model.IrohaCredential
 import com.d3.commons.notary.Notary
-import com.d3.commons.notary.NotaryImpl
 import com.d3.commons.notary.endpoint.ServerInitializationBundle
-import com.d3.commons.sidechain.SideChainEvent
 import com.d3.commons.sidechain.iroha.consumer.MultiSigIrohaConsumer
 import com.d3.commons.sidechain.iroha.util.ModelUtil
 import com.d3.commons.sidechain.iroha.util.impl.IrohaQueryHelperImpl
 import com.d3.commons.sidechain.provider.FileBasedLastReadBlockProvider
 import com.d3.commons.util.createPrettyFixThreadPool
-import com.d3.commons.util.createPrettyScheduledThreadPool
 import com.d3.commons.util.createPrettySingleThreadPool
 import com.d3.eth.deposit.endpoint.EthAddPeerStrategyImpl
 import com.d3.eth.deposit.endpoint.EthRefundStrategyImpl
 import com.d3.eth.deposit.endpoint.RefundServerEndpoint
+import com.d3.eth.provider.EthAddressIndex
 import com.d3.eth.provider.EthAddressProvider
-import com.d3.eth.provider.EthTokensProvider
+import com.d3.eth.provider.EthCredentialsProvider
+import com.d3.eth.provider.EthTokensProviderImpl
 import com.d3.eth.registration.wallet.EthereumWalletRegistrationHandler
+import com.d3.eth.sidechain.EthBlockCache
 import com.d3.eth.sidechain.EthChainHandler
 import com.d3.eth.sidechain.EthChainListener
-import com.d3.eth.sidechain.util.BasicAuthenticator
+import com.d3.eth.sidechain.iroha.IrohaBlockDispatcher
+import com.d3.eth.sidechain.iroha.IrohaBlockView
 import com.d3.eth.sidechain.util.ENDPOINT_ETHEREUM
+import com.d3.eth.sidechain.util.EthClients
 import com.github.kittinunf.result.Result
 import com.github.kittinunf.result.flatMap
 import com.github.kittinunf.result.map
@@ -39,12 +41,8 @@ import iroha.protocol.Primitive
 import jp.co.soramitsu.iroha.java.IrohaAPI
 import jp.co.soramitsu.iroha.java.Transaction
 import mu.KLogging
-import okhttp3.OkHttpClient
 import org.web3j.crypto.ECKeyPair
-import org.web3j.crypto.WalletUtils
-import org.web3j.protocol.Web3j
-import org.web3j.protocol.core.JsonRpc2_0Web3j
-import org.web3j.protocol.http.HttpService
+import org.web3j.protocol.core.methods.response.EthBlock
 import java.math.BigInteger
 import kotlin.system.exitProcess
 
@@ -52,7 +50,7 @@ import kotlin.system.exitProcess
  * Class for deposit instantiation
  * @param ethWalletProvider - provides with white list of ethereum wallets
  * @param ethRelayProvider - provides with white list of ethereum relays
- * @param ethTokensProvider - provides with white list of ethereum ERC20 tokens
+ * @param ethTokensProvider - provides with white list of ethereum ERC20 tokens, updated from Iroha blocks
  * @param registrationHandler - iroha-based wallet registration handler
  */
 class EthDepositInitialization(
@@ -63,13 +61,10 @@ class EthDepositInitialization(
     rmqConfig: RMQConfig,
     private val ethWalletProvider: EthAddressProvider,
     private val ethRelayProvider: EthAddressProvider,
-    private val ethTokensProvider: EthTokensProvider,
+    private val ethTokensProvider: EthTokensProviderImpl,
     private val registrationHandler: EthereumWalletRegistrationHandler
 ) {
-    private var ecKeyPair: ECKeyPair = WalletUtils.loadCredentials(
-        passwordsConfig.credentialsPassword,
-        passwordsConfig.credentialsPath
-    ).ecKeyPair
+    private var ecKeyPair: ECKeyPair = EthCredentialsProvider.getCredentials(passwordsConfig).ecKeyPair
 
     private val queryHelper = IrohaQueryHelperImpl(irohaAPI, notaryCredential)
 
@@ -88,22 +83,39 @@ class EthDepositInitialization(
         ethDepositConfig
     )
 
+    // wallets of withdrawing accounts are looked up in memory, the index is updated from Iroha blocks
+    private val walletIndex = EthAddressIndex(
+        ethWalletProvider,
+        ethDepositConfig.ethereumWalletStorageAccount,
+        ethDepositConfig.ethereumWalletSetterAccount
+    )
+
     private val withdrawalProofHandler = WithdrawalProofHandler(
         ethDepositConfig.withdrawalAccountId,
         ethTokensProvider,
-        ethWalletProvider,
+        walletIndex,
         ethDepositConfig,
         passwordsConfig,
         irohaAPI
     )
 
+    // every block is walked once, handlers of the block run concurrently
+    private val blockDispatcher = IrohaBlockDispatcher(
+        createPrettyFixThreadPool(ETH_DEPOSIT_SERVICE_NAME, "block-dispatcher")
+    )
+        .onSetAccountDetail(ethDepositConfig.expansionTriggerAccount) { view, _ ->
+            expansionStrategy.filterAndExpand(view.block)
+        }
+        .onSetAccountDetail(registrationHandler.registrationTriggerAccountId) { view, details ->
+            registrationHandler.register(view.block, details)
+        }
+        .onTransferAsset(ethDepositConfig.withdrawalAccountId) { _, transfers ->
+            withdrawalProofHandler.proceedTransfers(transfers)
+        }
+
     init {
         logger.info {
-            "Init deposit ethAddress=" +
-                    WalletUtils.loadCredentials(
-                        passwordsConfig.credentialsPassword,
-                        passwordsConfig.credentialsPath
-                    ).address
+            "Init deposit ethAddress=" + EthCredentialsProvider.getCredentials(passwordsConfig).address
         }
     }
 
@@ -112,7 +124,8 @@ class EthDepositInitialization(
      */
     fun init(): Result<Unit, Exception> {
         logger.info { "Eth deposit initialization" }
-        return initEthChain()
+        return walletIndex.load()
+            .flatMap { initEthChain() }
             .map { ethEvent -> initNotary(ethEvent) }
             .flatMap { notary -> notary.initIrohaConsumer() }
             .flatMap { irohaChainListener.getBlockObservable() }
@@ -127,9 +140,11 @@ class EthDepositInitialization(
                         )
                     ).subscribe(
                         { (block, _) ->
-                            expansionStrategy.filterAndExpand(block)
-                            registrationHandler.filterAndRegister(block)
-                            withdrawalProofHandler.proceedBlock(block)
+                            val view = IrohaBlockView(block)
+                            // tokens registered in the block are known to Ethereum chain handler without reload
+                            ethTokensProvider.onBlock(view)
+                            walletIndex.onBlock(view)
+                            blockDispatcher.dispatch(view)
                         }, { ex ->
                             logger.error("Withdrawal observable error", ex)
                             exitProcess(1)
@@ -142,17 +157,22 @@ class EthDepositInitialization(
 
     /**
      * Init Ethereum chain listener
-     * @return Observable on Ethereum sidechain events
+     * @return Observable on Ethereum deposits by block
      */
-    private fun initEthChain(): Result<Observable<SideChainEvent.PrimaryBlockChainEvent>, Exception> {
+    private fun initEthChain(): Result<Observable<EthBlockDeposits>, Exception> {
         logger.info { "Init Eth chain" }
 
-        val builder = OkHttpClient().newBuilder()
-        builder.authenticator(BasicAuthenticator(passwordsConfig))
-        val web3 = Web3j.build(
-            HttpService(ethDepositConfig.ethereum.url, builder.build(), false),
-            JsonRpc2_0Web3j.DEFAULT_BLOCK_TIME.toLong(),
-            createPrettyScheduledThreadPool(ETH_DEPOSIT_SERVICE_NAME, "web3j")
+        val web3 = EthClients.getWeb3j(
+            ethDepositConfig.ethereum.url,
+            passwordsConfig.nodeLogin,
+            passwordsConfig.nodePassword,
+            ethDepositConfig.ethereumHedgeBudgetPercent
+        )
+
+        // shared by listener and handler, lives as long as the process
+        val blockCache = EthBlockCache(
+            ethDepositConfig.ethereumBlockCacheFilePath,
+            ethDepositConfig.ethereumBlockCacheSizeMb
         )
 
         /** List of all observable wallets */
@@ -161,25 +181,62 @@ class EthDepositInitialization(
             ethDepositConfig.ethMasterAddress,
             ethWalletProvider,
             ethRelayProvider,
-            ethTokensProvider
+            ethTokensProvider,
+            blockCache
         )
         return EthChainListener(
             web3,
             BigInteger.valueOf(ethDepositConfig.ethereum.confirmationPeriod),
             ethDepositConfig.startEthereumBlock,
             FileBasedLastReadBlockProvider(ethDepositConfig.lastEthereumReadBlockFilePath),
-            ethDepositConfig.ignoreStartBlock
+            ethDepositConfig.ignoreStartBlock,
+            blockCache
         ).getBlockObservable()
             .map { observable ->
-                observable.flatMapIterable { ethHandler.parseBlock(it) }
+                val spoolFilePath = ethDepositConfig.depositSpoolFilePath
+                if (spoolFilePath == null) {
+                    observable.map { block -> parseBlock(ethHandler, block) }
+                        .filter { blockDeposits -> blockDeposits.deposits.isNotEmpty() }
+                } else {
+                    spool(observable, ethHandler, spoolFilePath)
+                }
             }
     }
 
+    /**
+     * Find deposits in Ethereum [block] and note the time they are found
+     */
+    private fun parseBlock(ethHandler: EthChainHandler, block: EthBlock) =
+        EthBlockDeposits(ethHandler.parseBlock(block), System.currentTimeMillis())
+
+    /**
+     * Spool deposits of Ethereum blocks, the block is read once its deposits are on disk
+     * @return Observable on spooled deposits
+     */
+    private fun spool(
+        blocks: Observable<EthBlock>,
+        ethHandler: EthChainHandler,
+        spoolFilePath: String
+    ): Observable<EthBlockDeposits> {
+        val spool = DepositSpool(
+            spoolFilePath,
+            Schedulers.from(createPrettySingleThreadPool(ETH_DEPOSIT_SERVICE_NAME, "deposit-spool"))
+        )
+        blocks.subscribe(
+            { block -> spool.append(parseBlock(ethHandler, block)) },
+            { ex ->
+                logger.error("Deposit spool error", ex)
+                exitProcess(1)
+            }
+        )
+        return spool.getEvents()
+    }
+
     /**
      * Init Notary
      */
     private fun initNotary(
-        ethEvents: Observable<SideChainEvent.PrimaryBlockChainEvent>
+        ethEvents: Observable<EthBlockDeposits>
     ): Notary {
         logger.info { "Init ethereum notary" }
 
@@ -198,7 +255,14 @@ class EthDepositInitialization(
                     .build()
             )
 
-        return NotaryImpl(notaryCredential, irohaAPI, ethEvents)
+        return EthDepositNotary(
+            consumer,
+            irohaAPI,
+            queryHelper,
+            ethEvents,
+            ethDepositConfig.maxDepositsPerIrohaTransaction,
+            ethDepositConfig.slowDepositMillis
+        )
     }
 
     /**
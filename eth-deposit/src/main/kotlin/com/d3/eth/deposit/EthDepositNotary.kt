@@ -0,0 +1,312 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.eth.deposit
+
+import com.d3.commons.notary.IrohaCommand
+import com.d3.commons.notary.IrohaTransaction
+import com.d3.commons.notary.Notary
+import com.d3.commons.sidechain.SideChainEvent
+import com.d3.commons.sidechain.iroha.consumer.IrohaConsumer
+import com.d3.commons.sidechain.iroha.util.IrohaQueryHelper
+import com.d3.eth.metrics.EthMetrics
+import com.github.kittinunf.result.Result
+import io.reactivex.Observable
+import iroha.protocol.Endpoint
+import jp.co.soramitsu.iroha.java.IrohaAPI
+import jp.co.soramitsu.iroha.java.Transaction
+import jp.co.soramitsu.iroha.java.Utils
+import mu.KLogging
+import org.web3j.utils.Numeric
+import java.util.concurrent.TimeUnit
+import kotlin.system.exitProcess
+
+/** Deposits of one Ethereum block sent in one Iroha transaction by default */
+const val MAX_DEPOSITS_PER_TRANSACTION_DEFAULT = 50
+
+/** Deposits that take longer from Ethereum block to Iroha commit are logged by default */
+const val SLOW_DEPOSIT_MILLIS_DEFAULT = 600_000L
+
+/**
+ * Iroha transaction of deposits
+ * @param transaction - Iroha transaction, its commands are [COMMANDS_PER_DEPOSIT] per deposit
+ * @param deposits - deposits of the transaction in order of commands
+ * @param keys - account detail keys of the deposits
+ * @param detectedAt - time in milliseconds the deposits were found in Ethereum block
+ * @param handedAt - time in milliseconds the deposits were given to notary
+ */
+private class DepositTransaction(
+    val transaction: IrohaTransaction,
+    val deposits: List<SideChainEvent.PrimaryBlockChainEvent>,
+    val keys: List<String>,
+    val detectedAt: Long,
+    val handedAt: Long
+)
+
+/**
+ * Notary that sends Ethereum deposits to Iroha in multi-command transactions.
+ * Every deposit adds asset quantity to the notary account and transfers it to the client.
+ * Deposits of one Ethereum block are grouped in order into transactions of [maxDepositsPerTransaction] deposits
+ * created at the block time, so every notary builds the same transactions for multisignature,
+ * and a block handled again builds transactions Iroha has already accepted.
+ * Every deposit also sets account detail of the notary account keyed by the Ethereum transaction hash
+ * and the index of the deposit in the Ethereum transaction, so a credited deposit is known by its key.
+ *
+ * Transaction that fails is checked by its hash. A committed transaction is done, a transaction
+ * of unknown outcome is sent again, Iroha commits a transaction hash only once. Deposits of a transaction
+ * rejected by validation are sent one by one, so one bad deposit does not fail the others,
+ * deposits whose account detail is already set are skipped. A deposit is not handed back
+ * until its outcome is known, so it is not considered delivered while Iroha is unavailable.
+ *
+ * Latency of every committed deposit is recorded by asset in stages: from Ethereum block to detection,
+ * from detection to handover to notary, from handover to Iroha commit, and from Ethereum block to commit.
+ * Deposits slower than [slowDepositMillis] from Ethereum block to commit are logged with their stages.
+ * @param irohaConsumer - consumer of notary account
+ * @param irohaAPI - Iroha API to query status of transactions
+ * @param queryHelper - Iroha queries of notary account
+ * @param deposits - deposits of Ethereum blocks
+ * @param maxDepositsPerTransaction - max number of deposits in one Iroha transaction,
+ * must be the same for all the notaries
+ * @param slowDepositMillis - threshold of slow deposit in milliseconds
+ */
+class EthDepositNotary(
+    private val irohaConsumer: IrohaConsumer,
+    private val irohaAPI: IrohaAPI,
+    private val queryHelper: IrohaQueryHelper,
+    private val deposits: Observable<EthBlockDeposits>,
+    private val maxDepositsPerTransaction: Int = MAX_DEPOSITS_PER_TRANSACTION_DEFAULT,
+    private val slowDepositMillis: Long = SLOW_DEPOSIT_MILLIS_DEFAULT
+) : Notary {
+
+    init {
+        if (maxDepositsPerTransaction <= 0)
+            throw IllegalArgumentException("Max deposits per transaction must be positive, got $maxDepositsPerTransaction")
+    }
+
+    override fun irohaOutput(): Observable<IrohaTransaction> =
+        getTransactions().map { depositTransaction -> depositTransaction.transaction }
+
+    override fun initIrohaConsumer(): Result<Unit, Exception> = Result.of {
+        getTransactions().subscribe(
+            { depositTransaction -> send(depositTransaction) },
+            { ex ->
+                // deposits must not be skipped, they are read again after restart
+                logger.error("Deposit observable error", ex)
+                exitProcess(1)
+            }
+        )
+        Unit
+    }
+
+    private fun getTransactions(): Observable<DepositTransaction> =
+        deposits.flatMapIterable { blockDeposits ->
+            val handedAt = System.currentTimeMillis()
+            val quorum = irohaConsumer.getConsumerQuorum().get()
+            // deposits of one Ethereum transaction are numbered in order
+            val indices = HashMap<String, Int>()
+            val keyed = blockDeposits.deposits.map { deposit ->
+                val index = indices.getOrDefault(deposit.hash, 0)
+                indices[deposit.hash] = index + 1
+                Pair(deposit, getDepositKey(deposit.hash, index))
+            }
+            // deposits of a block have the block time
+            keyed.groupBy { (deposit, _) -> deposit.time }
+                .flatMap { (time, timeDeposits) ->
+                    timeDeposits.chunked(maxDepositsPerTransaction).map { chunk ->
+                        DepositTransaction(
+                            IrohaTransaction(
+                                irohaConsumer.creator,
+                                time,
+                                quorum,
+                                chunk.flatMap { (deposit, key) -> toCommands(deposit, key) }
+                            ),
+                            chunk.map { (deposit, _) -> deposit },
+                            chunk.map { (_, key) -> key },
+                            blockDeposits.detectedAt,
+                            handedAt
+                        )
+                    }
+                }
+        }
+
+    /**
+     * Send transaction of deposits to Iroha until it is committed or rejected,
+     * deposits of rejected transaction are sent one by one
+     */
+    private fun send(depositTransaction: DepositTransaction) {
+        val transaction = depositTransaction.transaction
+        val count = depositTransaction.deposits.size
+        val utx = toIroha(transaction)
+        val hash = Utils.hash(utx.build())
+        var backoff = RETRY_INITIAL_MILLIS
+        while (true) {
+            val failure = irohaConsumer.send(utx).fold(
+                { sentHash ->
+                    logger.info { "$count deposits sent to Iroha with tx $sentHash" }
+                    null
+                },
+                { ex -> ex }
+            ) ?: return onCommitted(depositTransaction)
+            val status = Result.of { irohaAPI.txStatusSync(hash).txStatus }
+                .fold({ status -> status }, { ex ->
+                    logger.warn("Cannot get status of Iroha tx ${Utils.toHex(hash)}", ex)
+                    null
+                })
+            when (status) {
+                Endpoint.TxStatus.COMMITTED -> {
+                    logger.info { "$count deposits are committed with Iroha tx ${Utils.toHex(hash)} despite error" }
+                    return onCommitted(depositTransaction)
+                }
+                Endpoint.TxStatus.STATELESS_VALIDATION_FAILED,
+                Endpoint.TxStatus.STATEFUL_VALIDATION_FAILED,
+                Endpoint.TxStatus.REJECTED -> return onRejected(depositTransaction, failure)
+                else -> {
+                    logger.warn(
+                        "Cannot send $count deposits to Iroha, tx ${Utils.toHex(hash)} is $status, retry in $backoff ms",
+                        failure
+                    )
+                    Thread.sleep(backoff)
+                    backoff = minOf(backoff * 2, RETRY_MAX_MILLIS)
+                }
+            }
+        }
+    }
+
+    private fun onCommitted(depositTransaction: DepositTransaction) {
+        val committedAt = System.currentTimeMillis()
+        depositTransaction.deposits.forEach { deposit -> record(deposit, depositTransaction, committedAt) }
+    }
+
+    /**
+     * Send deposits of rejected transaction one by one, nothing of the rejected transaction is committed
+     */
+    private fun onRejected(depositTransaction: DepositTransaction, ex: Exception) {
+        val transaction = depositTransaction.transaction
+        val count = depositTransaction.deposits.size
+        if (count == 1) {
+            logger.error("Deposit ${depositTransaction.deposits.first()} is rejected by Iroha", ex)
+            return
+        }
+        logger.warn("$count deposits are rejected in one transaction, they are sent one by one", ex)
+        transaction.commands.chunked(COMMANDS_PER_DEPOSIT).forEachIndexed { index, commands ->
+            val deposit = depositTransaction.deposits[index]
+            val key = depositTransaction.keys[index]
+            if (isCredited(key)) {
+                logger.info { "Deposit ${deposit.hash} with key $key is already credited" }
+                return@forEachIndexed
+            }
+            send(
+                DepositTransaction(
+                    IrohaTransaction(transaction.creator, transaction.createdTime, transaction.quorum, commands),
+                    listOf(deposit),
+                    listOf(key),
+                    depositTransaction.detectedAt,
+                    depositTransaction.handedAt
+                )
+            )
+        }
+    }
+
+    /**
+     * Check if deposit with account detail [key] is credited, query is retried until it succeeds
+     */
+    private fun isCredited(key: String): Boolean {
+        var backoff = RETRY_INITIAL_MILLIS
+        while (true) {
+            queryHelper.getAccountDetails(irohaConsumer.creator, irohaConsumer.creator, key).fold(
+                { detail -> return detail.isPresent },
+                { ex -> logger.warn("Cannot query deposit $key, retry in $backoff ms", ex) }
+            )
+            Thread.sleep(backoff)
+            backoff = minOf(backoff * 2, RETRY_MAX_MILLIS)
+        }
+    }
+
+    /**
+     * Record latency of committed [deposit] by stages, log it if it is slow
+     */
+    private fun record(
+        deposit: SideChainEvent.PrimaryBlockChainEvent,
+        depositTransaction: DepositTransaction,
+        committedAt: Long
+    ) {
+        // block time has seconds precision and clocks of Ethereum miners and the notary differ
+        val minedAt = minOf(deposit.time.toLong(), depositTransaction.detectedAt)
+        val detection = depositTransaction.detectedAt - minedAt
+        val queue = depositTransaction.handedAt - depositTransaction.detectedAt
+        val commit = committedAt - depositTransaction.handedAt
+        val total = committedAt - minedAt
+        recordMillis(EthMetrics.DEPOSIT_DETECTION, detection, deposit.asset)
+        recordMillis(EthMetrics.DEPOSIT_QUEUE, queue, deposit.asset)
+        recordMillis(EthMetrics.DEPOSIT_COMMIT, commit, deposit.asset)
+        recordMillis(EthMetrics.DEPOSIT_LATENCY, total, deposit.asset)
+        if (total >= slowDepositMillis)
+            logger.warn {
+                "Slow deposit ${deposit.hash} of ${deposit.amount} ${deposit.asset} to ${deposit.user} " +
+                        "took $total ms: detection $detection ms, queue $queue ms, commit $commit ms"
+            }
+    }
+
+    private fun recordMillis(name: String, millis: Long, asset: String) =
+        EthMetrics.record(name, TimeUnit.MILLISECONDS.toNanos(maxOf(millis, 0)), "asset", asset)
+
+    private fun toCommands(deposit: SideChainEvent.PrimaryBlockChainEvent, key: String): List<IrohaCommand> {
+        logger.info { "Deposit ${deposit.hash}: ${deposit.amount} ${deposit.asset} to ${deposit.user}" }
+        return listOf(
+            IrohaCommand.CommandSetAccountDetail(irohaConsumer.creator, key, deposit.user),
+            IrohaCommand.CommandAddAssetQuantity(deposit.asset, deposit.amount),
+            IrohaCommand.CommandTransferAsset(
+                irohaConsumer.creator,
+                deposit.user,
+                deposit.asset,
+                deposit.from,
+                deposit.amount
+            )
+        )
+    }
+
+    private fun toIroha(transaction: IrohaTransaction): Transaction {
+        val builder = Transaction.builder(transaction.creator, transaction.createdTime.toLong())
+        transaction.commands.forEach { command ->
+            when (command) {
+                is IrohaCommand.CommandSetAccountDetail -> builder.setAccountDetail(
+                    command.accountId,
+                    command.key,
+                    command.value
+                )
+                is IrohaCommand.CommandAddAssetQuantity -> builder.addAssetQuantity(command.assetId, command.amount)
+                is IrohaCommand.CommandTransferAsset -> builder.transferAsset(
+                    command.srcAccountId,
+                    command.destAccountId,
+                    command.assetId,
+                    command.description,
+                    command.amount
+                )
+                else -> throw IllegalArgumentException("Unexpected deposit command $command")
+            }
+        }
+        return builder.setQuorum(transaction.quorum).build()
+    }
+
+    /**
+     * Logger
+     */
+    companion object : KLogging() {
+        private const val COMMANDS_PER_DEPOSIT = 3
+        private const val RETRY_INITIAL_MILLIS = 1_000L
+        private const val RETRY_MAX_MILLIS = 60_000L
+
+        // Iroha account detail key is at most 64 characters
+        private const val KEY_HASH_LENGTH = 60
+
+        /**
+         * Get account detail key of deposit
+         * @param hash - Ethereum transaction hash
+         * @param index - index of the deposit among deposits of the Ethereum transaction
+         */
+        fun getDepositKey(hash: String, index: Int) =
+            Numeric.cleanHexPrefix(hash).toLowerCase().take(KEY_HASH_LENGTH) + "_" + index
+    }
+}
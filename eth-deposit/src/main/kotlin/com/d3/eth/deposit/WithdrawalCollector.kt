@@ -0,0 +1,131 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.eth.deposit
+
+import com.d3.eth.provider.*
+import com.d3.eth.sidechain.iroha.IrohaCommandEvent
+import com.github.kittinunf.result.Result
+import com.github.kittinunf.result.flatMap
+import com.github.kittinunf.result.map
+import iroha.protocol.Commands
+import org.web3j.crypto.WalletUtils
+
+/**
+ * Withdrawal found in Iroha block with token details needed to make the proof
+ */
+data class WithdrawalRequest(
+    val txHash: String,
+    val accountId: String,
+    val assetId: String,
+    val amount: String,
+    val beneficiary: String,
+    val tokenAddress: String,
+    val tokenPrecision: Int,
+    val irohaAnchored: Boolean
+)
+
+/**
+ * Finds withdrawals among transfers of Iroha block.
+ * Tokens are resolved once per block from the cached catalog, so all transfers of the block are checked against
+ * the same snapshot. Wallets are looked up by account, once per withdrawing account of the block.
+ *
+ * @param withdrawalTriggerAccountId - account that receives withdrawal transfers
+ * @param tokensProvider - provides with Ethereum tokens
+ * @param walletsProvider - provides with registered Ethereum wallets, expected to be in-memory index
+ */
+class WithdrawalCollector(
+    private val withdrawalTriggerAccountId: String,
+    private val tokensProvider: EthTokensProvider,
+    private val walletsProvider: EthAddressProvider
+) {
+
+    /**
+     * Find withdrawals of registered accounts in Ethereum tokens
+     * @param transfers - transfers to withdrawal trigger account of one block
+     * @return withdrawals in order of the block
+     */
+    fun collect(
+        transfers: List<IrohaCommandEvent<Commands.TransferAsset>>
+    ): Result<List<WithdrawalRequest>, Exception> {
+        val candidates = transfers
+            .filter { (_, _, transfer) -> transfer.destAccountId == withdrawalTriggerAccountId }
+            // check if description is valid Ethereum address
+            .filter { (_, _, transfer) -> WalletUtils.isValidAddress(transfer.description) }
+        if (candidates.isEmpty())
+            return Result.of { emptyList<WithdrawalRequest>() }
+
+        return tokensProvider.getTokenCatalog()
+            .flatMap { catalog ->
+                // check token is eth token
+                val tokenTransfers = candidates.filter { (_, _, transfer) ->
+                    getTokenAddress(catalog, transfer.assetId) != null
+                }
+                getRegisteredAccounts(tokenTransfers.map { (_, _, transfer) -> transfer.srcAccountId }.distinct())
+                    .flatMap { registeredAccounts ->
+                        // check account is registered in Ethereum
+                        val withdrawals = tokenTransfers.filter { (_, _, transfer) ->
+                            registeredAccounts.contains(transfer.srcAccountId)
+                        }
+                        getPrecisions(withdrawals.map { (_, _, transfer) -> transfer.assetId }.distinct())
+                            .map { precisions ->
+                                withdrawals.map { (txHash, _, transfer) ->
+                                    toRequest(txHash, transfer, catalog, precisions.getValue(transfer.assetId))
+                                }
+                            }
+                    }
+            }
+    }
+
+    /**
+     * Get accounts that have registered Ethereum wallet, every account is looked up at most once
+     * @param accountIds - distinct account ids
+     * @return registered accounts
+     */
+    private fun getRegisteredAccounts(accountIds: List<String>): Result<Set<String>, Exception> {
+        return Result.of {
+            accountIds.filter { accountId -> walletsProvider.getAddressByAccountId(accountId).get().isPresent }
+                .toSet()
+        }
+    }
+
+    /**
+     * Get precisions of tokens, every token is queried at most once
+     * @param assetIds - distinct asset ids
+     * @return map (asset id -> precision)
+     */
+    private fun getPrecisions(assetIds: List<String>): Result<Map<String, Int>, Exception> {
+        return Result.of {
+            assetIds.associate { assetId -> assetId to tokensProvider.getTokenPrecision(assetId).get() }
+        }
+    }
+
+    private fun toRequest(
+        txHash: String,
+        transfer: Commands.TransferAsset,
+        catalog: EthTokenCatalog,
+        precision: Int
+    ) = WithdrawalRequest(
+        txHash,
+        transfer.srcAccountId,
+        transfer.assetId,
+        transfer.amount,
+        transfer.description,
+        getTokenAddress(catalog, transfer.assetId)!!,
+        precision,
+        isIrohaAnchored(catalog, transfer.assetId)
+    )
+
+    /** Ether is not stored in the catalog, it has predefined address */
+    private fun getTokenAddress(catalog: EthTokenCatalog, assetId: String) =
+        if (assetId == ETHER_ASSET_ID) ETH_ADDRESS else catalog.getAddress(assetId)
+
+    private fun isIrohaAnchored(catalog: EthTokenCatalog, assetId: String) =
+        assetId != ETHER_ASSET_ID && catalog.isIrohaAnchored(assetId) == true
+
+    companion object {
+        private const val ETHER_ASSET_ID = "$ETH_NAME#$ETH_DOMAIN"
+    }
+}
@@ -7,22 +7,23 @@ package com.d3.eth.deposit
 
 import com.d3.commons.model.IrohaCredential
 import com.d3.commons.sidechain.iroha.consumer.IrohaConsumerImpl
-import com.d3.commons.sidechain.iroha.util.ModelUtil
-import com.d3.commons.sidechain.iroha.util.impl.IrohaQueryHelperImpl
 import com.d3.commons.util.GsonInstance
-import com.d3.commons.util.hex
 import com.d3.commons.util.irohaEscape
 import com.d3.eth.provider.EthAddressProvider
+import com.d3.eth.provider.EthCredentialsProvider
 import com.d3.eth.provider.EthTokensProvider
+import com.d3.eth.sidechain.iroha.IrohaCommandEvent
 import com.d3.eth.sidechain.util.*
+import com.github.kittinunf.result.Result
+import com.github.kittinunf.result.flatMap
+import com.github.kittinunf.result.map
 import integration.eth.config.EthereumPasswords
-import iroha.protocol.BlockOuterClass
+import iroha.protocol.Commands
 import jp.co.soramitsu.iroha.java.IrohaAPI
+import jp.co.soramitsu.iroha.java.Transaction
 import jp.co.soramitsu.iroha.java.Utils
 import mu.KLogging
 import org.apache.commons.codec.binary.Hex
-import org.web3j.crypto.WalletUtils
-import java.math.BigDecimal
 
 const val ETH_WITHDRAWAL_PROOF_DOMAIN = "ethWithdrawalProof"
 const val WITHDRAWAL_ACCOUNT_PUBLIC_KEY =
@@ -33,8 +34,8 @@ const val WITHDRAWAL_ACCOUNT_PUBLIC_KEY =
  */
 class WithdrawalProofHandler(
     private val withrdawalTriggerAccountId: String,
-    private val tokensProvider: EthTokensProvider,
-    private val walletsProvider: EthAddressProvider,
+    tokensProvider: EthTokensProvider,
+    walletsProvider: EthAddressProvider,
     ethDepositConfig: EthDepositConfig,
     passwordsConfig: EthereumPasswords,
     irohaAPI: IrohaAPI
@@ -45,102 +46,105 @@ class WithdrawalProofHandler(
         logger.info { "Wallet Withdrawal: Initialization of WithdrawalProofHandler withrdawalTriggerAccountId=$withrdawalTriggerAccountId" }
     }
 
+    private val withdrawalCollector =
+        WithdrawalCollector(withrdawalTriggerAccountId, tokensProvider, walletsProvider)
+
     private val deployHelper = DeployHelper(ethDepositConfig.ethereum, passwordsConfig)
 
-    private val queryHelper =
-        IrohaQueryHelperImpl(irohaAPI, ethDepositConfig.withdrawalCredential)
+    private val irohaCredential = IrohaCredential(ethDepositConfig.withdrawalCredential)
 
-    private val irohaConsumer = IrohaConsumerImpl(
-        IrohaCredential(ethDepositConfig.withdrawalCredential),
-        irohaAPI
-    )
+    private val irohaConsumer = IrohaConsumerImpl(irohaCredential, irohaAPI)
 
-    private val ethCredential = WalletUtils.loadCredentials(
-        passwordsConfig.credentialsPassword,
-        passwordsConfig.credentialsPath
-    )
+    private val ethCredential = EthCredentialsProvider.getCredentials(passwordsConfig)
 
     /**
-     * Filter expansion trigger event and call expansion logic
-     * @param block - iroha block
+     * Filter withdrawal events and publish proofs of all of them in one Iroha batch
+     * @param transfers - transfers to withdrawal trigger account of one block
      */
-    fun proceedBlock(block: BlockOuterClass.Block) {
-        block.blockV1.payload.transactionsList
-            // Get commands
-            .flatMap { tx ->
-                val txHash = String.hex(Utils.hash(tx))
-                tx.payload.reducedPayload.commandsList
-                    .filter { command -> command.hasTransferAsset() }
-                    .map { command -> command.transferAsset }
-                    .filter { transfer -> transfer.destAccountId == withrdawalTriggerAccountId }
-                    // check if description is valid Ethereum address
-                    .filter { transfer -> WalletUtils.isValidAddress(transfer.description) }
-                    .filter { transfer ->
-                        // check token is eth token
-                        tokensProvider.getEthTokens().get().containsValue(transfer.assetId)
-                    }
-                    .filter { transfer ->
-                        // check account is registered in Ethereum
-                        walletsProvider.getAddressByAccountId(transfer.srcAccountId).get().isPresent
-                    }
-                    .map { transfer ->
-                        logger.info { "Wallet Withdrawal: Withdrawal event from=${transfer.srcAccountId}, to=${transfer.destAccountId}, descr=${transfer.description}, asset=${transfer.assetId}, amount=${transfer.amount}" }
-
-                        // create account if not exists
-                        val proofAccountName = txHash.take(32).toLowerCase()
-                        val proofAccountId = "$proofAccountName@$ETH_WITHDRAWAL_PROOF_DOMAIN"
-                        createAccountIfNotExists(proofAccountName)
-
-                        // write proof
-                        val key = ethCredential.address
-                        val proof = createProof(
-                            transfer.srcAccountId,
-                            transfer.assetId,
-                            transfer.amount,
-                            transfer.description,
-                            txHash
-                        )
-                        ModelUtil.setAccountDetail(irohaConsumer, proofAccountId, key, proof)
-                            .get()
-                    }
+    fun proceedTransfers(transfers: List<IrohaCommandEvent<Commands.TransferAsset>>) {
+        val proofs = withdrawalCollector.collect(transfers).get()
+            .map { withdrawal ->
+                logger.info { "Wallet Withdrawal: Withdrawal event from=${withdrawal.accountId}, to=$withrdawalTriggerAccountId, descr=${withdrawal.beneficiary}, asset=${withdrawal.assetId}, amount=${withdrawal.amount}" }
+
+                val proofAccountName = withdrawal.txHash.take(32).toLowerCase()
+                Pair(proofAccountName, createProof(withdrawal))
             }
+        if (proofs.isNotEmpty())
+            publishProofs(proofs)
     }
 
-    private fun createAccountIfNotExists(proofAccountName: String) {
-        if (!queryHelper.isRegistered(
-                proofAccountName,
-                ETH_WITHDRAWAL_PROOF_DOMAIN,
-                WITHDRAWAL_ACCOUNT_PUBLIC_KEY
-            ).get()
-        ) {
-            ModelUtil.createAccount(
-                irohaConsumer,
-                proofAccountName,
-                ETH_WITHDRAWAL_PROOF_DOMAIN,
-                Utils.parseHexPublicKey(WITHDRAWAL_ACCOUNT_PUBLIC_KEY),
-                emptyList()
-            ).fold(
-                { logger.info { "Wallet Withdrawal: create account \"$proofAccountName@$ETH_WITHDRAWAL_PROOF_DOMAIN\" for proofs" } },
-                { logger.info { "Wallet Withdrawal: account \"$proofAccountName@$ETH_WITHDRAWAL_PROOF_DOMAIN\" exists: ${it.message}" } }
-            )
+    /**
+     * Write proofs to proof accounts with one ordered Iroha batch.
+     * If the proofs are not committed, they are written one by one, so one bad proof does not hold the others back.
+     * @param proofs - list of (proof account name, proof)
+     */
+    private fun publishProofs(proofs: List<Pair<String, String>>) {
+        sendProofs(proofs).fold(
+            { logger.info { "Wallet Withdrawal: ${proofs.size} proofs written" } },
+            { ex ->
+                if (proofs.size == 1) {
+                    logger.error("Wallet Withdrawal: cannot write proof to ${proofs.single().first}", ex)
+                } else {
+                    logger.warn("Wallet Withdrawal: cannot write ${proofs.size} proofs at once, write them one by one", ex)
+                    proofs.forEach { proof -> publishProofs(listOf(proof)) }
+                }
+            }
+        )
+    }
+
+    /**
+     * Send ordered Iroha batch that writes [proofs].
+     * Every proof account is created by a separate transaction of the batch, so the account
+     * that is already created by another notary does not prevent the rest of the batch from committing.
+     * The last transaction of the batch writes all the proofs, the batch fails if it is not committed.
+     * @param proofs - list of (proof account name, proof)
+     */
+    private fun sendProofs(proofs: List<Pair<String, String>>): Result<Unit, Exception> {
+        return irohaConsumer.getConsumerQuorum().flatMap { quorum ->
+            val transactions = proofs.map { (proofAccountName, _) -> proofAccountName }
+                .distinct()
+                .map { proofAccountName ->
+                    Transaction.builder(irohaConsumer.creator)
+                        .createAccount(
+                            proofAccountName,
+                            ETH_WITHDRAWAL_PROOF_DOMAIN,
+                            Utils.parseHexPublicKey(WITHDRAWAL_ACCOUNT_PUBLIC_KEY)
+                        )
+                        .setQuorum(quorum)
+                        .build()
+                }.toMutableList()
+
+            val key = ethCredential.address
+            val proofTransaction = Transaction.builder(irohaConsumer.creator)
+            proofs.forEach { (proofAccountName, proof) ->
+                proofTransaction.setAccountDetail("$proofAccountName@$ETH_WITHDRAWAL_PROOF_DOMAIN", key, proof)
+            }
+            transactions.add(proofTransaction.setQuorum(quorum).build())
+
+            val batch = Utils.createTxOrderedBatch(transactions, irohaCredential.keyPair)
+            val proofTxHash = Utils.toHex(Utils.hash(batch.last()))
+            irohaConsumer.send(batch).flatMap { statuses ->
+                statuses.filter { (hash, committed) -> !committed && hash != proofTxHash }.keys.forEach { hash ->
+                    logger.info { "Wallet Withdrawal: proof account is not created by $hash, it may exist already" }
+                }
+                if (statuses[proofTxHash] == true)
+                    Result.of { Unit }
+                else
+                    Result.error(IllegalStateException("Proof transaction $proofTxHash is not committed"))
+            }
         }
     }
 
-    private fun createProof(
-        accountId: String,
-        assetId: String,
-        amount: String,
-        beneficiary: String,
-        txHash: String
-    ): String {
-        val ethTokenAddress = tokensProvider.getTokenAddress(assetId).get()
-        val tokenPrecision = tokensProvider.getTokenPrecision(assetId).get()
-        val decimalAmount = BigDecimal(amount).scaleByPowerOfTen(tokenPrecision).toPlainString()
+    private fun createProof(withdrawal: WithdrawalRequest): String {
+        val ethTokenAddress = withdrawal.tokenAddress
+        val beneficiary = withdrawal.beneficiary
+        val txHash = withdrawal.txHash
+        val tokenAmount = TokenAmount.fromDecimal(withdrawal.amount, withdrawal.tokenPrecision)
         val hash: String
-        if (tokensProvider.isIrohaAnchored(assetId).get())
+        if (withdrawal.irohaAnchored)
             hash = hashToMint(
                 ethTokenAddress,
-                decimalAmount,
+                tokenAmount,
                 beneficiary,
                 txHash,
                 beneficiary
@@ -148,7 +152,7 @@ class WithdrawalProofHandler(
         else
             hash = hashToWithdraw(
                 ethTokenAddress,
-                decimalAmount,
+                tokenAmount,
                 beneficiary,
                 txHash,
                 beneficiary
@@ -161,9 +165,9 @@ class WithdrawalProofHandler(
         val signature = VRSSignature(v, r, s)
 
         val withdrawalProof = WithdrawalProof(
-            accountId,
+            withdrawal.accountId,
             ethTokenAddress,
-            decimalAmount,
+            tokenAmount.toUnitsString(),
             beneficiary,
             txHash,
             beneficiary,
@@ -5,6 +5,7 @@
 
 package com.d3.eth.deposit.endpoint
 
+import com.d3.eth.sidechain.util.TokenAmount
 import com.squareup.moshi.JsonAdapter
 import com.squareup.moshi.JsonReader
 import com.squareup.moshi.JsonWriter
@@ -26,7 +27,7 @@ typealias CoinType = String
 data class EthRefund(
     val address: EthereumAddress,
     val assetId: CoinType,
-    val amount: String,
+    val amount: TokenAmount,
     val irohaTxHash: IrohaTransactionHashType,
     val relayAddress: String
 )
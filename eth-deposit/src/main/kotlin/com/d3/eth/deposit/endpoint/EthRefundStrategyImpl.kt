@@ -16,6 +16,7 @@ import com.d3.eth.provider.ETH_RELAY
 import com.d3.eth.provider.EthAddressProviderIrohaImpl
 import com.d3.eth.provider.EthTokensProvider
 import com.d3.eth.sidechain.util.DeployHelper
+import com.d3.eth.sidechain.util.TokenAmount
 import com.d3.eth.sidechain.util.hashToWithdraw
 import com.github.kittinunf.result.Result
 import com.github.kittinunf.result.fanout
@@ -25,7 +26,6 @@ import integration.eth.config.EthereumPasswords
 import iroha.protocol.TransactionOuterClass.Transaction
 import jp.co.soramitsu.iroha.java.IrohaAPI
 import mu.KLogging
-import java.math.BigDecimal
 
 /**
  * Class performs effective implementation of refund strategy for Ethereum
@@ -101,13 +101,10 @@ class EthRefundStrategyImpl(
                             tokenInfo
                         }.fold(
                             { (relayAddress, tokenInfo) ->
-                                val decimalAmount =
-                                    BigDecimal(amount).scaleByPowerOfTen(tokenInfo.second)
-                                        .toPlainString()
                                 EthRefund(
                                     destEthAddress,
                                     tokenInfo.first,
-                                    decimalAmount,
+                                    TokenAmount.fromDecimal(amount, tokenInfo.second),
                                     request.irohaTx,
                                     relayAddress.orElseThrow {
                                         D3ErrorException.fatal(
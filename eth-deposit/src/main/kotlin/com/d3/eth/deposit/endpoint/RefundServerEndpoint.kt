@@ -6,12 +6,14 @@
 package com.d3.eth.deposit.endpoint
 
 import com.d3.commons.notary.endpoint.ServerInitializationBundle
+import com.d3.eth.metrics.EthMetrics
 import com.squareup.moshi.Moshi
 import io.ktor.application.call
 import io.ktor.application.install
 import io.ktor.features.CORS
 import io.ktor.features.ContentNegotiation
 import io.ktor.gson.gson
+import io.ktor.http.ContentType
 import io.ktor.http.HttpStatusCode
 import io.ktor.response.respond
 import io.ktor.response.respondText
@@ -69,6 +71,9 @@ class RefundServerEndpoint(
                         )
                     )
                 }
+                get("/metrics") {
+                    call.respondText(EthMetrics.scrape(), ContentType.parse(EthMetrics.CONTENT_TYPE))
+                }
             }
         }
         server.start(wait = false)
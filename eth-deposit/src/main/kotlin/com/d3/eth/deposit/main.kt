@@ -13,9 +13,11 @@ import com.d3.commons.config.loadRawLocalConfigs
 import com.d3.commons.model.IrohaCredential
 import com.d3.commons.sidechain.iroha.consumer.IrohaConsumerImpl
 import com.d3.commons.sidechain.iroha.util.impl.IrohaQueryHelperImpl
+import com.d3.commons.util.createPrettyFixThreadPool
 import com.d3.eth.provider.ETH_RELAY
 import com.d3.eth.provider.ETH_WALLET
 import com.d3.eth.provider.EthAddressProviderIrohaImpl
+import com.d3.eth.provider.EthCredentialsProvider
 import com.d3.eth.provider.EthTokensProviderImpl
 import com.d3.eth.registration.EthRegistrationConfig
 import com.d3.eth.registration.wallet.EthereumWalletRegistrationHandler
@@ -98,6 +100,8 @@ fun executeDeposit(
     registrationConfig: EthRegistrationConfig
 ): Result<Unit, Exception> {
     logger.info { "Run ETH deposit" }
+    // decrypt keystore while Iroha connections are set up
+    EthCredentialsProvider.prewarm(ethereumPasswords)
 
     val irohaAPI = IrohaAPI(
         depositConfig.iroha.hostname,
@@ -135,7 +139,8 @@ fun executeDeposit(
         registrationConfig.registrationCredential.accountId,
         depositConfig.ethereumWalletStorageAccount,
         ethWalletProvider,
-        ethRelayProvider
+        ethRelayProvider,
+        createPrettyFixThreadPool(ETH_DEPOSIT_SERVICE_NAME, "registration-verifier")
     )
 
     return EthDepositInitialization(
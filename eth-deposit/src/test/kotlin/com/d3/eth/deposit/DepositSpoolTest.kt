@@ -0,0 +1,92 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.eth.deposit
+
+import com.d3.commons.sidechain.SideChainEvent
+import io.reactivex.schedulers.Schedulers
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import java.io.File
+import java.math.BigInteger
+import java.nio.ByteBuffer
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+class DepositSpoolTest {
+
+    private val path = createTempFile("deposit_spool").absolutePath
+
+    @AfterEach
+    fun tearDown() {
+        File(path).delete()
+    }
+
+    private fun deposit(index: Int, amount: String) =
+        SideChainEvent.PrimaryBlockChainEvent.ChainAnchoredOnPrimaryChainDeposit(
+            "0x" + index.toString(16).padStart(64, '0'),
+            BigInteger.valueOf(1_500_000_000_000L + index),
+            "user$index@d3",
+            "ether#ethereum",
+            amount,
+            "0x" + index.toString(16).padStart(40, '0')
+        )
+
+    /**
+     * @given deposits of both kinds with amounts of different precision
+     * @when deposits are encoded and decoded
+     * @then the same deposits are decoded
+     */
+    @Test
+    fun depositsAreDecodedAsEncoded() {
+        val deposits = listOf(
+            deposit(1, "1.000000000000000000"),
+            deposit(2, "0.0001"),
+            deposit(3, "123456789012345678901234567890.5"),
+            SideChainEvent.PrimaryBlockChainEvent.IrohaAnchoredOnPrimaryChainDeposit(
+                "0x" + "ab".repeat(32),
+                BigInteger.ONE,
+                "user@d3",
+                "xor#sora",
+                "42",
+                "0x" + "cd".repeat(20)
+            )
+        )
+        val buffer = ByteBuffer.allocate(DepositEventCodec.MAX_SIZE)
+        deposits.forEach { deposit -> DepositEventCodec.encode(deposit, buffer) }
+        buffer.flip()
+
+        assertEquals(deposits, deposits.map { DepositEventCodec.decode(buffer) })
+    }
+
+    /**
+     * @given spool with appended deposits of blocks, some of the blocks delivered
+     * @when spool is reopened
+     * @then only undelivered blocks are delivered, new blocks follow them
+     */
+    @Test
+    fun undeliveredDepositsSurviveRestart() {
+        val deposits = (1..5).map { index ->
+            EthBlockDeposits(listOf(deposit(index * 2, "$index.5"), deposit(index * 2 + 1, "$index")), index * 1000L)
+        }
+        val executor = Executors.newSingleThreadExecutor()
+        DepositSpool(path, Schedulers.from(executor)).use { spool ->
+            deposits.forEach { block -> spool.append(block) }
+            val delivered = spool.getEvents().take(2).toList().blockingGet()
+            assertEquals(deposits.take(2), delivered)
+            // delivery stops once the subscriber is gone
+            executor.shutdown()
+            assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS))
+        }
+
+        DepositSpool(path, Schedulers.single()).use { spool ->
+            spool.append(EthBlockDeposits(listOf(deposit(100, "6")), 6000))
+            val delivered = spool.getEvents().take(4).timeout(5, TimeUnit.SECONDS).toList().blockingGet()
+            assertEquals(deposits.drop(2).plus(EthBlockDeposits(listOf(deposit(100, "6")), 6000)), delivered)
+        }
+    }
+}
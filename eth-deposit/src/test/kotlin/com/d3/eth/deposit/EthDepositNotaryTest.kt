@@ -0,0 +1,152 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.eth.deposit
+
+import com.d3.commons.notary.IrohaCommand
+import com.d3.commons.notary.IrohaTransaction
+import com.d3.commons.sidechain.SideChainEvent
+import com.d3.commons.sidechain.iroha.consumer.IrohaConsumer
+import com.d3.commons.sidechain.iroha.util.IrohaQueryHelper
+import com.github.kittinunf.result.Result
+import com.nhaarman.mockitokotlin2.any
+import com.nhaarman.mockitokotlin2.doReturn
+import com.nhaarman.mockitokotlin2.eq
+import com.nhaarman.mockitokotlin2.mock
+import com.nhaarman.mockitokotlin2.never
+import com.nhaarman.mockitokotlin2.times
+import com.nhaarman.mockitokotlin2.verify
+import io.reactivex.Observable
+import iroha.protocol.Endpoint
+import jp.co.soramitsu.iroha.java.IrohaAPI
+import jp.co.soramitsu.iroha.java.Transaction
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Test
+import java.math.BigInteger
+import java.util.*
+
+class EthDepositNotaryTest {
+
+    private val creatorId = "notary@notary"
+
+    private val irohaConsumer = mock<IrohaConsumer> {
+        on { creator } doReturn creatorId
+        on { getConsumerQuorum() } doReturn Result.of { 2 }
+    }
+
+    private val irohaAPI = mock<IrohaAPI>()
+
+    private val queryHelper = mock<IrohaQueryHelper>()
+
+    private fun status(txStatus: Endpoint.TxStatus) =
+        Endpoint.ToriiResponse.newBuilder().setTxStatus(txStatus).build()
+
+    private fun deposit(index: Int, time: Long) =
+        SideChainEvent.PrimaryBlockChainEvent.ChainAnchoredOnPrimaryChainDeposit(
+            "0x$index",
+            BigInteger.valueOf(time),
+            "user$index@d3",
+            "ether#ethereum",
+            "$index.5",
+            "0xfrom$index"
+        )
+
+    /**
+     * @given deposits of two Ethereum blocks, the first one has more deposits than fit into a transaction
+     * @when deposits are turned into Iroha transactions
+     * @then deposits of a block are sent in order in transactions of block time, at most 2 deposits each
+     */
+    @Test
+    fun depositsOfBlockAreBatched() {
+        val firstBlock = (1..5).map { index -> deposit(index, 1000) }
+        val secondBlock = listOf(deposit(6, 2000))
+        val notary = EthDepositNotary(
+            irohaConsumer,
+            irohaAPI,
+            queryHelper,
+            Observable.just(EthBlockDeposits(firstBlock, 1500), EthBlockDeposits(secondBlock, 2500)),
+            2
+        )
+
+        val transactions = notary.irohaOutput().toList().blockingGet()
+
+        assertEquals(listOf(6, 6, 3, 3), transactions.map { tx -> tx.commands.size })
+        assertEquals(
+            listOf(1000L, 1000L, 1000L, 2000L),
+            transactions.map { tx -> tx.createdTime.toLong() }
+        )
+        transactions.forEach { tx -> assertEquals(2, tx.quorum) }
+        assertEquals(
+            firstBlock.plus(secondBlock).map { deposit -> deposit.user },
+            transactions.flatMap { tx -> getReceivers(tx) }
+        )
+        val firstCommands = transactions.first().commands
+        assertEquals(
+            IrohaCommand.CommandSetAccountDetail(creatorId, EthDepositNotary.getDepositKey("0x1", 0), "user1@d3"),
+            firstCommands[0]
+        )
+        assertEquals(IrohaCommand.CommandAddAssetQuantity("ether#ethereum", "1.5"), firstCommands[1])
+        assertEquals(
+            IrohaCommand.CommandTransferAsset(creatorId, "user1@d3", "ether#ethereum", "0xfrom1", "1.5"),
+            firstCommands[2]
+        )
+    }
+
+    /**
+     * @given transaction of three deposits rejected by Iroha, one of the deposits is already credited
+     * @when deposits are sent to Iroha
+     * @then the other two deposits are sent one by one
+     */
+    @Test
+    fun rejectedDepositsAreSentOneByOne() {
+        val consumer = mock<IrohaConsumer> {
+            on { creator } doReturn creatorId
+            on { getConsumerQuorum() } doReturn Result.of { 2 }
+            on { send(any<Transaction>()) }.doReturn(Result.error(Exception("rejected")), Result.of { "single" })
+        }
+        val api = mock<IrohaAPI> {
+            on { txStatusSync(any()) } doReturn status(Endpoint.TxStatus.STATEFUL_VALIDATION_FAILED)
+        }
+        val credited = EthDepositNotary.getDepositKey("0x2", 0)
+        val query = mock<IrohaQueryHelper> {
+            on { getAccountDetails(eq(creatorId), eq(creatorId), any()) } doReturn Result.of { Optional.empty<String>() }
+            on { getAccountDetails(creatorId, creatorId, credited) } doReturn Result.of { Optional.of("user2@d3") }
+        }
+        val block = (1..3).map { index -> deposit(index, 1000) }
+
+        EthDepositNotary(consumer, api, query, Observable.just(EthBlockDeposits(block, 1500)))
+            .initIrohaConsumer().get()
+
+        verify(consumer, times(3)).send(any<Transaction>())
+        verify(query, times(3)).getAccountDetails(eq(creatorId), eq(creatorId), any())
+    }
+
+    /**
+     * @given transaction of deposits that fails to be sent, but is committed by Iroha
+     * @when deposits are sent to Iroha
+     * @then deposits are not sent again
+     */
+    @Test
+    fun committedDepositsAreNotSentAgain() {
+        val consumer = mock<IrohaConsumer> {
+            on { creator } doReturn creatorId
+            on { getConsumerQuorum() } doReturn Result.of { 2 }
+            on { send(any<Transaction>()) } doReturn Result.error(Exception("timeout"))
+        }
+        val api = mock<IrohaAPI> {
+            on { txStatusSync(any()) } doReturn status(Endpoint.TxStatus.COMMITTED)
+        }
+        val block = (1..3).map { index -> deposit(index, 1000) }
+
+        EthDepositNotary(consumer, api, queryHelper, Observable.just(EthBlockDeposits(block, 1500)))
+            .initIrohaConsumer().get()
+
+        verify(consumer, times(1)).send(any<Transaction>())
+        verify(queryHelper, never()).getAccountDetails(any(), any(), any<String>())
+    }
+
+    private fun getReceivers(tx: IrohaTransaction) =
+        tx.commands.filterIsInstance<IrohaCommand.CommandTransferAsset>().map { command -> command.destAccountId }
+}
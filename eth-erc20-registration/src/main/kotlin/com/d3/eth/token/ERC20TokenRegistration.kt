@@ -10,23 +10,22 @@ import com.d3.commons.sidechain.iroha.consumer.IrohaConsumer
 import com.d3.commons.sidechain.iroha.consumer.IrohaConsumerImpl
 import com.github.kittinunf.result.Result
 import com.github.kittinunf.result.flatMap
-import com.github.kittinunf.result.map
+import com.squareup.moshi.JsonReader
 import com.squareup.moshi.Moshi
-import com.squareup.moshi.Types
+import iroha.protocol.TransactionOuterClass
 import jp.co.soramitsu.iroha.java.IrohaAPI
 import jp.co.soramitsu.iroha.java.Transaction
+import jp.co.soramitsu.iroha.java.Utils
 import mu.KLogging
-import java.io.BufferedReader
+import okio.Okio
 import java.io.File
-import java.io.FileInputStream
-import java.io.InputStreamReader
 
 /**
  * ERC20 tokens registration class. [IrohaCredential] is used to sign Iroha txs.
  */
 class ERC20TokenRegistration(
     private val tokenRegistrationConfig: ERC20TokenRegistrationConfig,
-    irohaCredential: IrohaCredential,
+    private val irohaCredential: IrohaCredential,
     irohaAPI: IrohaAPI
 ) {
     // For json serialization/deserialization
@@ -49,108 +48,215 @@ class ERC20TokenRegistration(
 
     /**
      * Reads ERC20 tokens from file and register them in account details of [storageAccountId].
+     * Tokens are registered chunk by chunk while the file is read.
      */
     private fun registerTokensFromFile(
         path: String,
         storageAccountId: String
     ): Result<Unit, Exception> {
-        return readTokensFromFile(path)
-            .flatMap { tokensToRegister ->
-                if (tokensToRegister.isEmpty()) {
-                    Result.of { logger.warn { "No ERC20 tokens to register" } }
-                } else {
-                    logger.info { "ERC20 tokens to register $tokensToRegister" }
-                    registerERC20Tokens(
-                        tokensToRegister,
-                        storageAccountId,
-                        irohaConsumer
-                    ).map { Unit }
-                }
-            }
-    }
-
-    /**
-     * Reads ERC20 tokens from json file
-     * @param pathToTokensFile - path to file that holds tokens in json format
-     * @return map of tokens (address -> token info)
-     */
-    private fun readTokensFromFile(pathToTokensFile: String): Result<Map<String, EthTokenInfo>, Exception> {
         return Result.of {
-            val tokensJson = readFile(File(pathToTokensFile))
-            val adapter = moshi.adapter<Map<String, EthTokenInfo>>(
-                Types.newParameterizedType(
-                    Map::class.java,
-                    String::class.java,
-                    EthTokenInfo::class.java
-                )
-            )
-            adapter.fromJson(tokensJson)!!
+            var registered = 0
+            readTokensFromFile(path, TOKENS_PER_BATCH) { tokensToRegister ->
+                logger.info { "ERC20 tokens to register $tokensToRegister" }
+                registerERC20Tokens(
+                    tokensToRegister,
+                    storageAccountId,
+                    irohaConsumer
+                ).get()
+                registered += tokensToRegister.size
+            }
+            if (registered == 0) {
+                logger.warn { "No ERC20 tokens to register" }
+            }
         }
     }
 
     /**
-     * Reads content of file as a text
-     * @param file - file to read
-     * @return text content of file
+     * Reads ERC20 tokens from json file. The file is streamed token by token and handed over in chunks,
+     * so only one chunk of tokens is held in memory.
+     * @param pathToTokensFile - path to file that holds tokens in json format
+     * @param chunkSize - maximal number of tokens in chunk
+     * @param onChunk - handler of chunk of tokens (address -> token info)
      */
-    private fun readFile(file: File): String {
-        val content = StringBuilder()
-        var lineBreak = ""
-        FileInputStream(file).use { fis ->
-            BufferedReader(InputStreamReader(fis)).use { reader ->
-                while (true) {
-                    val currentLine = reader.readLine() ?: break
-                    content.append(lineBreak).append(currentLine)
-                    lineBreak = "\n"
+    private fun readTokensFromFile(
+        pathToTokensFile: String,
+        chunkSize: Int,
+        onChunk: (Map<String, EthTokenInfo>) -> Unit
+    ) {
+        val tokenAdapter = moshi.adapter(EthTokenInfo::class.java)
+        var tokens = LinkedHashMap<String, EthTokenInfo>()
+        JsonReader.of(Okio.buffer(Okio.source(File(pathToTokensFile)))).use { reader ->
+            reader.beginObject()
+            while (reader.hasNext()) {
+                val address = reader.nextName()
+                tokens[address] = tokenAdapter.fromJson(reader)!!
+                if (tokens.size == chunkSize) {
+                    onChunk(tokens)
+                    tokens = LinkedHashMap()
                 }
             }
+            reader.endObject()
+        }
+        if (tokens.isNotEmpty()) {
+            onChunk(tokens)
         }
-        return content.toString()
     }
 
     /**
-     * Registers ERC20 tokens in Iroha
+     * Registers ERC20 tokens in Iroha. Assets are created first, then tokens whose assets are created
+     * are written to details of [tokenStorageAccount] by transactions of [COMMANDS_PER_TX] commands
+     * sent as ordered batches of [TRANSACTIONS_PER_BATCH] transactions.
      * @param tokens - map of tokens to register(address->token info
      * @param tokenStorageAccount - account that holds tokens
      * @param irohaConsumer - iroha network layer
-     * @return hex representation of transaction hash
+     * @return failure if details of created tokens are not committed
      */
     fun registerERC20Tokens(
         tokens: Map<String, EthTokenInfo>,
         tokenStorageAccount: String,
         irohaConsumer: IrohaConsumer
-    ): Result<String, Exception> {
+    ): Result<Unit, Exception> {
         return Result.of {
-            tokens.forEach { _, ethTokenInfo ->
-                    val utx = Transaction.builder(irohaConsumer.creator)
-                        .createAsset(
-                            ethTokenInfo.name,
-                            ethTokenInfo.domain,
-                            ethTokenInfo.precision
-                        ).build()
-                    irohaConsumer.send(utx).fold(
-                        { logger.info { "Token ${ethTokenInfo.name} created" } },
-                        { logger.warn { "Token ${ethTokenInfo.name} was not created. $it" } }
-                    )
+            val outcomes = createAssets(tokens, irohaConsumer)
+            val failed = outcomes.filter { outcome -> outcome.error != null }
+            logger.info { "${outcomes.size - failed.size} tokens created, ${failed.size} tokens were not created" }
+            failed.forEach { (_, ethTokenInfo, error) ->
+                logger.warn { "Token ${ethTokenInfo.name}#${ethTokenInfo.domain} was not created: ${error?.message}" }
             }
+            outcomes.filter { outcome -> outcome.error == null }
+        }.flatMap { created ->
+            created.chunked(TOKENS_PER_BATCH)
+                .fold(Result.of { Unit }) { result, batchOutcomes ->
+                    result.flatMap {
+                        val transactions = batchOutcomes.chunked(COMMANDS_PER_TX)
+                            .map { txOutcomes ->
+                                val utx = Transaction.builder(irohaConsumer.creator)
+                                txOutcomes.forEach { (ethWallet, ethTokenInfo) ->
+                                    utx.setAccountDetail(
+                                        tokenStorageAccount,
+                                        ethWallet,
+                                        "${ethTokenInfo.name}#${ethTokenInfo.domain}"
+                                    )
+                                }
+                                utx.build()
+                            }
+                        sendBatch(Utils.createTxOrderedBatch(transactions, irohaCredential.keyPair), irohaConsumer)
+                    }
+                }
+        }
+    }
 
-            var utx = Transaction.builder(irohaConsumer.creator)
-            tokens.forEach { ethWallet, ethTokenInfo ->
-                utx = utx.setAccountDetail(
-                    tokenStorageAccount,
-                    ethWallet,
-                    "${ethTokenInfo.name}#${ethTokenInfo.domain}"
-                )
+    /**
+     * Creates assets of tokens. Commands are packed into transactions of
+     * [COMMANDS_PER_TX] commands, transactions are sent as atomic batches of
+     * [TRANSACTIONS_PER_BATCH] transactions. Since the whole batch is rejected if any asset
+     * cannot be created, e.g. it already exists, assets of a rejected batch are created one by one.
+     * @param tokens - tokens to create (address -> token info)
+     * @param irohaConsumer - iroha network layer
+     * @return outcome of every token
+     */
+    private fun createAssets(
+        tokens: Map<String, EthTokenInfo>,
+        irohaConsumer: IrohaConsumer
+    ): List<AssetCreationOutcome> {
+        return tokens.entries.chunked(TOKENS_PER_BATCH)
+            .flatMap { batchTokens ->
+                val transactions = batchTokens.chunked(COMMANDS_PER_TX)
+                    .map { txTokens ->
+                        val utx = Transaction.builder(irohaConsumer.creator)
+                        txTokens.forEach { (_, ethTokenInfo) ->
+                            utx.createAsset(ethTokenInfo.name, ethTokenInfo.domain, ethTokenInfo.precision)
+                        }
+                        utx.build()
+                    }
+                sendBatch(Utils.createTxAtomicBatch(transactions, irohaCredential.keyPair), irohaConsumer)
+                    .fold(
+                        {
+                            logger.info { "Batch of ${batchTokens.size} tokens created" }
+                            batchTokens.map { (address, ethTokenInfo) ->
+                                AssetCreationOutcome(address, ethTokenInfo, null)
+                            }
+                        },
+                        { ex ->
+                            logger.warn { "Batch of ${batchTokens.size} tokens was rejected, create tokens one by one. $ex" }
+                            batchTokens.map { (address, ethTokenInfo) ->
+                                createAsset(address, ethTokenInfo, irohaConsumer)
+                            }
+                        }
+                    )
             }
+    }
 
-            utx.build()
-        }.flatMap { utx ->
-            irohaConsumer.send(utx)
+    /**
+     * Sends batch of transactions
+     * @param batch - signed batch
+     * @param irohaConsumer - iroha network layer
+     * @return failure if any transaction of the batch is not committed
+     */
+    private fun sendBatch(
+        batch: Iterable<TransactionOuterClass.Transaction>,
+        irohaConsumer: IrohaConsumer
+    ): Result<Unit, Exception> {
+        val hashes = batch.map { tx -> Utils.toHex(Utils.hash(tx)) }
+        return irohaConsumer.send(batch).flatMap { statuses ->
+            val uncommitted = hashes.filter { hash -> statuses[hash] != true }
+            if (uncommitted.isEmpty())
+                Result.of { Unit }
+            else
+                Result.error(IllegalStateException("Transactions $uncommitted are not committed"))
         }
     }
 
+    /**
+     * Creates asset of token in a separate transaction
+     * @param address - address of token
+     * @param ethTokenInfo - token to create
+     * @param irohaConsumer - iroha network layer
+     * @return outcome of token creation
+     */
+    private fun createAsset(
+        address: String,
+        ethTokenInfo: EthTokenInfo,
+        irohaConsumer: IrohaConsumer
+    ): AssetCreationOutcome {
+        val utx = Transaction.builder(irohaConsumer.creator)
+            .createAsset(
+                ethTokenInfo.name,
+                ethTokenInfo.domain,
+                ethTokenInfo.precision
+            ).build()
+        return irohaConsumer.send(utx).fold(
+            {
+                logger.info { "Token ${ethTokenInfo.name} created" }
+                AssetCreationOutcome(address, ethTokenInfo, null)
+            },
+            { ex -> AssetCreationOutcome(address, ethTokenInfo, ex) }
+        )
+    }
+
+    /**
+     * Outcome of token asset creation
+     * @param address - address of token
+     * @param ethTokenInfo - token
+     * @param error - reason of failure, null if asset is created
+     */
+    private data class AssetCreationOutcome(
+        val address: String,
+        val ethTokenInfo: EthTokenInfo,
+        val error: Exception?
+    )
+
     /**
      * Logger
      */
-    companion object : KLogging()
+    companion object : KLogging() {
+        // keep transactions small enough for Iroha transaction size limit
+        private const val COMMANDS_PER_TX = 100
+
+        // bounds the number of assets that are created one by one if the batch is rejected
+        private const val TRANSACTIONS_PER_BATCH = 10
+
+        // number of tokens read from file and registered at once
+        private const val TOKENS_PER_BATCH = COMMANDS_PER_TX * TRANSACTIONS_PER_BATCH
+    }
 }
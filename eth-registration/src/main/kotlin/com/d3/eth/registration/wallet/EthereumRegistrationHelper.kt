@@ -5,11 +5,18 @@
 
 package com.d3.eth.registration.wallet
 
+import com.d3.eth.sidechain.util.EthSignatureVerifier
+import com.d3.eth.sidechain.util.EthSignatureVerifierImpl
+import com.d3.eth.sidechain.util.EthSignerImpl
 import com.d3.eth.sidechain.util.VRSSignature
 import com.d3.eth.sidechain.util.prepareDataToSign
 import org.apache.commons.codec.binary.Hex
-import org.web3j.crypto.*
-import java.math.BigInteger
+import org.web3j.crypto.ECKeyPair
+import org.web3j.crypto.Keys
+import org.web3j.crypto.Sign
+import org.web3j.utils.Numeric
+
+private val verifier: EthSignatureVerifier = EthSignatureVerifierImpl()
 
 /**
  * Create signature proof by signing hash of address generated from public key.
@@ -20,7 +27,7 @@ fun createRegistrationProof(ecKeyPair: ECKeyPair): EthereumRegistrationProof {
     val address = Keys.getAddress(ecKeyPair.publicKey)
 
     val to_sig = prepareDataToSign(address)
-    val sig = Sign.signMessage(to_sig, ecKeyPair)
+    val sig = EthSignerImpl(ecKeyPair).signMessage(to_sig)
     val v = sig.v.toString(16).replace("0x", "")
     val r = Hex.encodeHexString(sig.r).replace("0x", "")
     val s = Hex.encodeHexString(sig.s).replace("0x", "")
@@ -36,18 +43,20 @@ fun createRegistrationProof(ecKeyPair: ECKeyPair): EthereumRegistrationProof {
 fun checkRegistrationProof(proof: EthereumRegistrationProof): Boolean {
     val address = Keys.getAddress(proof.publicKey)
 
-    // Iterate recId [0..3] while the correct way not found
-    // there are 4 potential outputs including null values, thus we should check output
-    // comparing to expecting public key
-    val ecdsaSignature =
-        ECDSASignature(BigInteger(proof.signature.r, 16), BigInteger(proof.signature.s, 16))
-    for (i in 0..3) {
-        // null is a valid result, skip it
-        val res =
-            Sign.recoverFromSignature(i, ecdsaSignature, Hash.sha3(prepareDataToSign(address)))
-                ?: continue
-        if (Keys.getAddress(res) == address)
-            return true
+    // v may be 0x prefixed
+    val v = try {
+        Numeric.toBigInt(proof.signature.v)
+    } catch (e: NumberFormatException) {
+        // v is not a hex number
+        return false
     }
-    return false
+    if (v.bitLength() > Byte.SIZE_BITS)
+        return false
+    // recovery id is taken from v, so only one public key is recovered
+    val signature = Sign.SignatureData(
+        v.toByte(),
+        Numeric.hexStringToByteArray(proof.signature.r),
+        Numeric.hexStringToByteArray(proof.signature.s)
+    )
+    return verifier.recoverMessageAddress(prepareDataToSign(address), signature) == address
 }
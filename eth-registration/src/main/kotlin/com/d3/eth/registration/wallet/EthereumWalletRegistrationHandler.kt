@@ -5,31 +5,48 @@
 
 package com.d3.eth.registration.wallet
 
-import com.d3.commons.registration.SideChainRegistrator
+import com.d3.commons.notary.IrohaCommand
 import com.d3.commons.sidechain.iroha.consumer.IrohaConsumer
 import com.d3.commons.util.GsonInstance
-import com.d3.commons.util.hex
 import com.d3.commons.util.irohaUnEscape
 import com.d3.eth.provider.ETH_WALLET
 import com.d3.eth.provider.EthAddressProvider
-import com.d3.eth.registration.wallet.ETH_REGISTRATION_KEY
-import com.d3.eth.registration.wallet.EthereumRegistrationProof
+import com.d3.eth.sidechain.iroha.IrohaCommandEvent
+import com.github.kittinunf.result.Result
+import com.github.kittinunf.result.fanout
+import com.github.kittinunf.result.flatMap
+import com.github.kittinunf.result.map
 import iroha.protocol.BlockOuterClass
+import iroha.protocol.Commands
 import jp.co.soramitsu.iroha.java.Transaction
-import jp.co.soramitsu.iroha.java.Utils
 import mu.KLogging
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ExecutorService
+import java.util.function.Supplier
 
 const val ETH_FAILED_REGISTRATION_KEY = "failed_registration"
 
 /**
- * Handles ethereum wallet registration events from Iroha blocks
+ * Handles ethereum wallet registration events from Iroha blocks.
+ * Registrations of a block are processed as a batch: proofs are verified in parallel,
+ * then successful registrations and failure records are sent in a single Iroha transaction.
+ * If the transaction fails, registrations and failure records are sent one request per transaction,
+ * so a rejected request does not fail the others. Account details are overwritten by Iroha,
+ * so a request that is sent again does not change anything.
+ * @param irohaConsumer - consumer that sends registration transactions
+ * @param registrationTriggerAccountId - account where clients put registration proofs
+ * @param walletStorageIrohaAccountId - account that stores (wallet -> client) details
+ * @param ethWalletProvider - provider of registered wallets
+ * @param ethRelayProvider - provider of registered relays
+ * @param verificationExecutor - executor that verifies registration proofs
  */
 class EthereumWalletRegistrationHandler(
     val irohaConsumer: IrohaConsumer,
     val registrationTriggerAccountId: String,
-    walletStorageIrohaAccountId: String,
+    private val walletStorageIrohaAccountId: String,
     private val ethWalletProvider: EthAddressProvider,
-    private val ethRelayProvider: EthAddressProvider
+    private val ethRelayProvider: EthAddressProvider,
+    private val verificationExecutor: ExecutorService
 ) {
     init {
         logger.info { "Initialization of EthereumWalletRegistrationHandler with registrationTriggerAccountId=$registrationTriggerAccountId" }
@@ -37,79 +54,147 @@ class EthereumWalletRegistrationHandler(
 
     private val gson = GsonInstance.get()
 
-    private val registrator = SideChainRegistrator(
-        irohaConsumer,
-        walletStorageIrohaAccountId,
-        ETH_WALLET
+    /**
+     * Registration request found in block
+     * @param clientId - account that requested registration
+     * @param txHash - hash of registration transaction
+     * @param proof - escaped registration proof
+     */
+    private data class RegistrationRequest(
+        val clientId: String,
+        val txHash: String,
+        val proof: String
     )
 
-    fun filterAndRegister(block: BlockOuterClass.Block) {
-        block.blockV1.payload.transactionsList
-            // Get commands
-            .flatMap { tx ->
-                val txHash = String.hex(Utils.hash(tx))
-                val clientId = tx.payload.reducedPayload.creatorAccountId
-                val time = tx.payload.reducedPayload.createdTime
-                tx.payload.reducedPayload.commandsList
-                    .filter { command -> command.hasSetAccountDetail() }
-                    .map { command -> command.setAccountDetail }
-                    // Get registration trigger
-                    .filter { setAccountDetail ->
-                        setAccountDetail.accountId == registrationTriggerAccountId &&
-                                setAccountDetail.key == ETH_REGISTRATION_KEY
-                    }
-                    .map { setAccountDetail ->
-                        try {
-                            logger.info { "Check registration wallet proof for account $clientId" }
-                            val registrationProof = gson.fromJson(
-                                setAccountDetail.value.irohaUnEscape(),
-                                EthereumRegistrationProof::class.java
-                            )
-                            val ethAddress = "0x${registrationProof.getAddress()}"
-
-                            // check address is not used
-                            if (ethWalletProvider.getAddresses().get().containsKey(ethAddress))
-                                throw IllegalArgumentException("Address $ethAddress already registered as wallet")
-                            if (ethRelayProvider.getAddresses().get().containsKey(ethAddress))
-                                throw IllegalArgumentException("Address $ethAddress already registered as relay")
+    /**
+     * Register wallets requested in one block
+     * @param block - iroha block
+     * @param details - details set to registration trigger account in [block]
+     */
+    fun register(
+        block: BlockOuterClass.Block,
+        details: List<IrohaCommandEvent<Commands.SetAccountDetail>>
+    ) {
+        val requests = details
+            // Get registration trigger
+            .filter { (_, _, setAccountDetail) ->
+                setAccountDetail.accountId == registrationTriggerAccountId &&
+                        setAccountDetail.key == ETH_REGISTRATION_KEY
+            }
+            .map { (txHash, clientId, setAccountDetail) ->
+                RegistrationRequest(clientId, txHash, setAccountDetail.value)
+            }
+        if (requests.isEmpty())
+            return
 
-                            // ensure wallet is signed with correct private key
-                            if (checkRegistrationProof(registrationProof)) {
-                                val registrationTxHash = registrator.register(
-                                    ethAddress,
-                                    clientId,
-                                    time
-                                ) { clientId }.get()
-                                logger.info { "Registration with Ethereum wallet $ethAddress triggered for $clientId completed with tx $registrationTxHash" }
+        // verify all proofs of the block in parallel
+        val verifications = requests.map { request ->
+            CompletableFuture.supplyAsync(Supplier { verify(request) }, verificationExecutor)
+        }
+        // registered addresses are read once per block
+        val (wallets, relays) = getUsedAddresses()
 
-                            } else {
-                                throw IllegalArgumentException("Registration triggered with wrong proof for ${setAccountDetail.accountId} with wallet $ethAddress")
-                            }
-                        } catch (ex: Exception) {
-                            logger.error(
-                                "Ethereum registration for client $clientId failed",
-                                ex
+        val registeredInBlock = HashSet<String>()
+        val commands = requests.zip(verifications).map { (request, verification) ->
+            verification.get()
+                .map { ethAddress ->
+                    // check address is not used
+                    if (wallets.containsKey(ethAddress))
+                        throw IllegalArgumentException("Address $ethAddress already registered as wallet")
+                    if (relays.containsKey(ethAddress))
+                        throw IllegalArgumentException("Address $ethAddress already registered as relay")
+                    if (!registeredInBlock.add(ethAddress))
+                        throw IllegalArgumentException("Address $ethAddress is requested by another registration in the same block")
+                    logger.info { "Registration with Ethereum wallet $ethAddress triggered for ${request.clientId}" }
+                    listOf(
+                        IrohaCommand.CommandSetAccountDetail(walletStorageIrohaAccountId, ethAddress, request.clientId),
+                        IrohaCommand.CommandSetAccountDetail(request.clientId, ETH_WALLET, ethAddress)
+                    )
+                }
+                .fold(
+                    { registration -> registration },
+                    { ex ->
+                        logger.error("Ethereum registration for client ${request.clientId} failed", ex)
+                        listOf(
+                            IrohaCommand.CommandSetAccountDetail(
+                                request.clientId,
+                                ETH_FAILED_REGISTRATION_KEY,
+                                "registration ${request.txHash}, reason ${ex.message}"
                             )
-                            saveFailedRegistration(clientId, txHash, ex.message!!)
-                        }
+                        )
                     }
+                )
+        }
+
+        // created time is the same for all notaries that handle the block
+        val createdTime = block.blockV1.payload.createdTime
+        send(createdTime, commands.flatten()).fold(
+            { txHash -> logger.info { "Registrations of ${requests.size} requests sent with tx $txHash" } },
+            { ex ->
+                logger.warn("Cannot send registrations of ${requests.size} requests, they are sent one by one", ex)
+                requests.zip(commands).forEach { (request, requestCommands) ->
+                    send(createdTime, requestCommands).fold(
+                        { txHash -> logger.info { "Registration of ${request.clientId} sent with tx $txHash" } },
+                        { requestEx -> logger.error("Cannot send registration of ${request.clientId}", requestEx) }
+                    )
+                }
             }
+        )
+    }
+
+    /**
+     * Send account details in one transaction
+     * @param createdTime - created time of transaction
+     * @param commands - account details to set
+     * @return hash of sent transaction
+     */
+    private fun send(createdTime: Long, commands: List<IrohaCommand.CommandSetAccountDetail>): Result<String, Exception> {
+        val transaction = Transaction.builder(irohaConsumer.creator, createdTime)
+        commands.forEach { command -> transaction.setAccountDetail(command.accountId, command.key, command.value) }
+        return irohaConsumer.getConsumerQuorum()
+            .flatMap { quorum -> irohaConsumer.send(transaction.setQuorum(quorum).build()) }
     }
 
-    private fun saveFailedRegistration(accountId: String, hash: String, reason: String) {
-        val tx = Transaction.builder(irohaConsumer.creator)
-            .setAccountDetail(
-                accountId,
-                ETH_FAILED_REGISTRATION_KEY,
-                "registration $hash, reason $reason"
+    /**
+     * Get registered wallets and relays, query is retried until it succeeds,
+     * so unavailable Iroha does not fail the registrations
+     */
+    private fun getUsedAddresses(): Pair<Map<String, String>, Map<String, String>> {
+        var backoff = RETRY_INITIAL_MILLIS
+        while (true) {
+            ethWalletProvider.getAddresses().fanout { ethRelayProvider.getAddresses() }.fold(
+                { addresses -> return addresses },
+                { ex -> logger.warn("Cannot get registered addresses, retry in $backoff ms", ex) }
             )
-            .setQuorum(irohaConsumer.getConsumerQuorum().get())
-            .build()
-        irohaConsumer.send(tx).get()
+            Thread.sleep(backoff)
+            backoff = minOf(backoff * 2, RETRY_MAX_MILLIS)
+        }
+    }
+
+    /**
+     * Verify registration proof
+     * @return Ethereum address of registered wallet
+     */
+    private fun verify(request: RegistrationRequest): Result<String, Exception> {
+        return Result.of {
+            logger.info { "Check registration wallet proof for account ${request.clientId}" }
+            val registrationProof = gson.fromJson(
+                request.proof.irohaUnEscape(),
+                EthereumRegistrationProof::class.java
+            )
+            val ethAddress = "0x${registrationProof.getAddress()}"
+            // ensure wallet is signed with correct private key
+            if (!checkRegistrationProof(registrationProof))
+                throw IllegalArgumentException("Registration triggered with wrong proof for $registrationTriggerAccountId with wallet $ethAddress")
+            ethAddress
+        }
     }
 
     /**
      * Logger
      */
-    companion object : KLogging()
+    companion object : KLogging() {
+        private const val RETRY_INITIAL_MILLIS = 1_000L
+        private const val RETRY_MAX_MILLIS = 60_000L
+    }
 }
@@ -89,4 +89,36 @@ class EthereumRegistrationHelperTest {
             )
         }
     }
+
+    /**
+     * @given proof with 0x prefixed v
+     * @when check signature
+     * @then check returns true
+     */
+    @Test
+    fun testPrefixedV() {
+        val keypair = Keys.createEcKeyPair()
+        val proof = createRegistrationProof(keypair)
+        val prefixed = EthereumRegistrationProof(
+            VRSSignature("0x" + proof.signature.v, proof.signature.r, proof.signature.s), keypair.publicKey
+        )
+
+        assertTrue { checkRegistrationProof(prefixed) }
+    }
+
+    /**
+     * @given proof with v that is not a hex number
+     * @when check signature
+     * @then check returns false
+     */
+    @Test
+    fun testMalformedV() {
+        val keypair = Keys.createEcKeyPair()
+        val proof = createRegistrationProof(keypair)
+        val malformed = EthereumRegistrationProof(
+            VRSSignature("zz", proof.signature.r, proof.signature.s), keypair.publicKey
+        )
+
+        assertFalse { checkRegistrationProof(malformed) }
+    }
 }
@@ -10,6 +10,7 @@ import com.d3.commons.model.IrohaCredential
 import com.d3.commons.sidechain.iroha.consumer.IrohaConsumerImpl
 import com.d3.commons.sidechain.iroha.util.ModelUtil
 import integration.eth.config.EthereumPasswords
+import com.d3.eth.metrics.EthMetrics
 import com.d3.eth.provider.EthFreeRelayProvider
 import com.d3.eth.sidechain.util.DeployHelper
 import com.github.kittinunf.result.Result
@@ -101,8 +102,14 @@ class RelayRegistration(
                         )
                             .contractAddress
                     registerRelayIroha(relayWallet).fold(
-                        { logger.info("Relay $relayWallet was deployed") },
-                        { ex -> logger.error("Cannot deploy relay $relayWallet", ex) })
+                        {
+                            EthMetrics.increment(EthMetrics.RELAY_DEPLOYMENTS, "outcome", "success")
+                            logger.info("Relay $relayWallet was deployed")
+                        },
+                        { ex ->
+                            EthMetrics.increment(EthMetrics.RELAY_DEPLOYMENTS, "outcome", "failure")
+                            logger.error("Cannot deploy relay $relayWallet", ex)
+                        })
                 }
             }
     }
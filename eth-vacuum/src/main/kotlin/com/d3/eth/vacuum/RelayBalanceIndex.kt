@@ -0,0 +1,70 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.eth.vacuum
+
+import java.math.BigInteger
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * In-memory index of relay contract balances.
+ * Stores (relay address -> (token address -> balance in token base units)).
+ */
+class RelayBalanceIndex {
+
+    private val balances = ConcurrentHashMap<String, ConcurrentHashMap<String, BigInteger>>()
+
+    /**
+     * Replace known balances with fresh values
+     * @param relayBalances - map (relay address -> (token address -> balance))
+     */
+    fun reset(relayBalances: Map<String, Map<String, BigInteger>>) {
+        balances.clear()
+        relayBalances.forEach { (relay, tokens) ->
+            tokens.forEach { (token, balance) -> set(relay, token, balance) }
+        }
+    }
+
+    /**
+     * Set balance of [token] on [relay]
+     */
+    fun set(relay: String, token: String, balance: BigInteger) {
+        balances.computeIfAbsent(relay.toLowerCase()) { ConcurrentHashMap() }[token.toLowerCase()] =
+            balance
+    }
+
+    /**
+     * Mark [token] balance of [relay] as swept
+     */
+    fun onSwept(relay: String, token: String) {
+        balances[relay.toLowerCase()]?.remove(token.toLowerCase())
+    }
+
+    /**
+     * Get relays holding [token], the richest first
+     * @return list of (relay address, balance)
+     */
+    fun getRelaysFor(token: String): List<Pair<String, BigInteger>> {
+        val key = token.toLowerCase()
+        return balances.mapNotNull { (relay, tokens) -> tokens[key]?.let { relay to it } }
+            .filter { (_, balance) -> balance.signum() > 0 }
+            .sortedByDescending { (_, balance) -> balance }
+    }
+
+    /**
+     * Get all (relay, token) pairs with balance not less than threshold of the token, the richest first
+     * @param threshold - threshold of token in token base units, tokens without threshold are skipped
+     * @return list of (relay address, token address, balance)
+     */
+    fun getAbove(threshold: (String) -> BigInteger?): List<Triple<String, String, BigInteger>> {
+        return balances.flatMap { (relay, tokens) ->
+            tokens.map { (token, balance) -> Triple(relay, token, balance) }
+        }
+            .filter { (_, token, balance) ->
+                balance.signum() > 0 && threshold(token)?.let { tokenThreshold -> balance >= tokenThreshold } == true
+            }
+            .sortedByDescending { (_, _, balance) -> balance }
+    }
+}
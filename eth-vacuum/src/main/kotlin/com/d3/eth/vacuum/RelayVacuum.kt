@@ -6,16 +6,20 @@
 package com.d3.eth.vacuum
 
 import com.d3.commons.sidechain.iroha.util.IrohaQueryHelper
+import com.d3.eth.metrics.EthMetrics
+import com.d3.eth.provider.ETH_PRECISION
 import com.d3.eth.provider.ETH_RELAY
 import com.d3.eth.provider.EthAddressProviderIrohaImpl
 import com.d3.eth.provider.EthTokensProviderImpl
 import com.d3.eth.sidechain.util.DeployHelper
 import com.github.kittinunf.result.Result
+import com.github.kittinunf.result.fanout
 import com.github.kittinunf.result.flatMap
 import com.github.kittinunf.result.map
 import contract.Relay
 import integration.eth.config.EthereumPasswords
 import mu.KLogging
+import java.math.BigInteger
 
 /**
  * Class is responsible for relay contracts vacuum
@@ -67,10 +71,12 @@ class RelayVacuum(
                 logger.info { "Relays to vacuum ${relays.map { relay -> relay.contractAddress }}" }
                 relays.forEach { relay ->
                     relay.sendToMaster(ethTokenAddress).send()
+                    EthMetrics.increment(EthMetrics.VACUUM_SWEEPS, "outcome", "success")
                     logger.info("${relay.contractAddress} send to master eth $ethTokenAddress")
                     providedTokens.forEach { providedToken ->
                         logger.info("${relay.contractAddress} send to master ${providedToken.value} ${providedToken.key}")
                         relay.sendToMaster(providedToken.key).send()
+                        EthMetrics.increment(EthMetrics.VACUUM_SWEEPS, "outcome", "success")
                     }
                 }
             }
@@ -79,6 +85,84 @@ class RelayVacuum(
         }
     }
 
+    /**
+     * Queries current balances of all non free relays
+     * @return map (relay address -> (token address -> balance in token base units))
+     */
+    fun getRelayBalances(): Result<Map<String, Map<String, BigInteger>>, Exception> {
+        return ethTokensProvider.getEthAnchoredTokens()
+            .fanout { ethRelayProvider.getAddresses() }
+            .map { (providedTokens, relays) ->
+                relays.keys.associate { relayAddress ->
+                    val balances = providedTokens.keys.associate { tokenAddress ->
+                        tokenAddress to deployHelper.getERC20Balance(tokenAddress, relayAddress)
+                    }.plus(ethTokenAddress to deployHelper.getETHBalance(relayAddress))
+                    relayAddress to balances
+                }
+            }
+    }
+
+    /**
+     * Queries current balances of [tokenAddress] on all non free relays
+     * @param tokenAddress - address of token (0x0000000000000000000000000000000000000000 for ether)
+     * @return map (relay address -> balance in token base units)
+     */
+    fun getTokenBalances(tokenAddress: String): Result<Map<String, BigInteger>, Exception> {
+        return ethRelayProvider.getAddresses().map { relays ->
+            relays.keys.associate { relayAddress -> relayAddress to getBalance(relayAddress, tokenAddress).get() }
+        }
+    }
+
+    /**
+     * Queries current balance of [tokenAddress] on relay
+     * @param relayAddress - address of relay contract
+     * @param tokenAddress - address of token (0x0000000000000000000000000000000000000000 for ether)
+     * @return balance in token base units
+     */
+    fun getBalance(relayAddress: String, tokenAddress: String): Result<BigInteger, Exception> {
+        return Result.of {
+            if (tokenAddress == ethTokenAddress)
+                deployHelper.getETHBalance(relayAddress)
+            else
+                deployHelper.getERC20Balance(tokenAddress, relayAddress)
+        }
+    }
+
+    /**
+     * Get precision of Ethereum anchored token or ether
+     * @param tokenAddress - address of token (0x0000000000000000000000000000000000000000 for ether)
+     */
+    fun getTokenPrecision(tokenAddress: String): Result<Int, Exception> {
+        if (tokenAddress == ethTokenAddress)
+            return Result.of { ETH_PRECISION }
+        return ethTokensProvider.getEthAnchoredTokens()
+            .map { providedTokens ->
+                providedTokens.entries
+                    .firstOrNull { (address, _) -> address.equals(tokenAddress, ignoreCase = true) }
+                    ?.value
+                    ?: throw IllegalArgumentException("Token $tokenAddress not found")
+            }
+            .flatMap { assetId -> ethTokensProvider.getTokenPrecision(assetId) }
+    }
+
+    /**
+     * Moves all currency of a single token from relay contract to master contract
+     * @param relayAddress - address of relay contract to sweep
+     * @param tokenAddress - address of token to sweep (0x0000000000000000000000000000000000000000 for ether)
+     */
+    fun sweep(relayAddress: String, tokenAddress: String): Result<Unit, Exception> {
+        return Result.of {
+            try {
+                deployHelper.loadRelayContract(relayAddress).sendToMaster(tokenAddress).send()
+            } catch (e: Exception) {
+                EthMetrics.increment(EthMetrics.VACUUM_SWEEPS, "outcome", "failure")
+                throw e
+            }
+            EthMetrics.increment(EthMetrics.VACUUM_SWEEPS, "outcome", "success")
+            logger.info("$relayAddress send to master $tokenAddress")
+        }
+    }
+
     /**
      * Logger
      */
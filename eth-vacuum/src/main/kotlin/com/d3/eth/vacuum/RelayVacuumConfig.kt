@@ -8,6 +8,7 @@ package com.d3.eth.vacuum
 import com.d3.commons.config.IrohaConfig
 import com.d3.commons.config.IrohaCredentialRawConfig
 import integration.eth.config.EthereumConfig
+import java.math.BigDecimal
 
 interface RelayVacuumConfig {
 
@@ -29,6 +30,15 @@ interface RelayVacuumConfig {
     /** Notary Iroha account that stores relay register */
     val relayStorageAccount: String
 
+    /** Period of background relay vacuum in seconds */
+    val vacuumPeriod: Long
+
+    /** Period of reading balances of all relays in seconds, in between only relays that got deposits are read */
+    val vacuumReconcilePeriod: Long
+
+    /** Minimal relay balance in token units (e.g. 1.5 for 1.5 ether) to be swept by background vacuum */
+    val vacuumThreshold: BigDecimal
+
     /** Iroha configurations */
     val iroha: IrohaConfig
 
@@ -0,0 +1,190 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.eth.vacuum
+
+import com.d3.commons.util.createPrettyScheduledThreadPool
+import com.github.kittinunf.result.Result
+import com.github.kittinunf.result.failure
+import com.github.kittinunf.result.map
+import mu.KLogging
+import java.math.BigDecimal
+import java.math.BigInteger
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.function.Supplier
+
+/**
+ * Background relay vacuum.
+ * Keeps an index of relay balances and periodically sweeps relays holding more than [threshold]
+ * starting from the richest ones. Also performs targeted sweeps of a single token on demand.
+ * The index is read from Ethereum in full only once in [reconcilePeriod], in between only balances of relays
+ * that got deposits are read.
+ * All sweeps are performed sequentially on one thread in order not to race on vacuum account nonce.
+ * @param relayVacuum - relay vacuum that performs queries and Ethereum transactions
+ * @param threshold - minimal relay balance in token units (e.g. 1.5 for 1.5 ether) to be swept by background vacuum
+ * @param period - period of background vacuum in seconds
+ * @param reconcilePeriod - period of reading all relay balances in seconds
+ */
+class RelayVacuumScheduler(
+    private val relayVacuum: RelayVacuum,
+    private val threshold: BigDecimal,
+    private val period: Long,
+    private val reconcilePeriod: Long
+) {
+    private val index = RelayBalanceIndex()
+
+    // (relay address, token address) that got deposits since their balance was read
+    private val dirty = ConcurrentHashMap.newKeySet<Pair<String, String>>()
+
+    // (token address -> threshold in token base units)
+    private val thresholds = ConcurrentHashMap<String, BigInteger>()
+
+    // time of the last reconciliation, accessed by scheduler thread only
+    private var reconciledAt = 0L
+
+    private val executor = createPrettyScheduledThreadPool(VACUUM_SERVICE_NAME, "scheduler")
+
+    init {
+        logger.info {
+            "Init relay vacuum scheduler with threshold $threshold, period $period seconds " +
+                    "and reconcile period $reconcilePeriod seconds"
+        }
+    }
+
+    /**
+     * Start periodical vacuum
+     */
+    fun start() {
+        executor.scheduleWithFixedDelay({
+            val now = System.currentTimeMillis()
+            val refreshed = if (now - reconciledAt >= TimeUnit.SECONDS.toMillis(reconcilePeriod))
+                reconcile().map { reconciledAt = now }
+            else
+                refreshDirty { true }
+            refreshed
+                .map { sweepAboveThreshold() }
+                .failure { ex -> logger.error("Background vacuum failed", ex) }
+        }, 0, period, TimeUnit.SECONDS)
+    }
+
+    /**
+     * Take into account deposit to relay, its balance is read on the next vacuum
+     * @param relayAddress - address of relay that got deposit
+     * @param tokenAddress - address of deposited token (0x0000000000000000000000000000000000000000 for ether)
+     */
+    fun onDeposit(relayAddress: String, tokenAddress: String) {
+        dirty.add(Pair(relayAddress.toLowerCase(), tokenAddress.toLowerCase()))
+    }
+
+    /**
+     * Sweep relays holding [tokenAddress] until at least [amount] is moved to master contract.
+     * The richest relays are swept first. If index knows too few funds, balances of the token are read from Ethereum.
+     * @param tokenAddress - address of token to sweep (0x0000000000000000000000000000000000000000 for ether)
+     * @param amount - amount in token base units that is needed
+     * @return future that completes when sweep is done
+     */
+    fun sweepFor(tokenAddress: String, amount: BigInteger): CompletableFuture<Unit> {
+        return CompletableFuture.supplyAsync(Supplier {
+            logger.info { "Sweep $amount of $tokenAddress requested" }
+            val token = tokenAddress.toLowerCase()
+            refreshDirty { dirtyToken -> dirtyToken == token }.get()
+            var relays = index.getRelaysFor(token)
+            if (relays.fold(BigInteger.ZERO) { acc, (_, balance) -> acc.add(balance) } < amount) {
+                refreshToken(token).get()
+                relays = index.getRelaysFor(token)
+            }
+            var swept = BigInteger.ZERO
+            for ((relay, balance) in relays) {
+                if (swept >= amount)
+                    break
+                sweep(relay, token).get()
+                swept = swept.add(balance)
+            }
+            logger.info { "Swept $swept of $tokenAddress" }
+        }, executor)
+    }
+
+    /**
+     * Stop vacuum
+     */
+    fun close() {
+        executor.shutdownNow()
+    }
+
+    /**
+     * Read balances of all relays, deposits noted meanwhile are kept to be read again
+     */
+    private fun reconcile(): Result<Unit, Exception> {
+        val noted = dirty.toList()
+        return relayVacuum.getRelayBalances().map { balances ->
+            index.reset(balances)
+            dirty.removeAll(noted)
+            logger.info { "Relay balances are reconciled" }
+        }
+    }
+
+    /**
+     * Read balances of relays that got deposits of tokens matching [filter]
+     */
+    private fun refreshDirty(filter: (String) -> Boolean): Result<Unit, Exception> {
+        return Result.of {
+            dirty.filter { (_, token) -> filter(token) }.forEach { relayAndToken ->
+                val (relay, token) = relayAndToken
+                // removed before the query, so deposit noted meanwhile is not lost
+                dirty.remove(relayAndToken)
+                relayVacuum.getBalance(relay, token).fold(
+                    { balance -> index.set(relay, token, balance) },
+                    { ex ->
+                        dirty.add(relayAndToken)
+                        throw ex
+                    })
+            }
+        }
+    }
+
+    /**
+     * Read balances of [token] on all relays
+     */
+    private fun refreshToken(token: String): Result<Unit, Exception> {
+        return relayVacuum.getTokenBalances(token).map { balances ->
+            balances.forEach { (relay, balance) -> index.set(relay, token, balance) }
+        }
+    }
+
+    private fun sweepAboveThreshold() {
+        index.getAbove { token -> getThreshold(token) }.forEach { (relay, token, balance) ->
+            logger.info { "Relay $relay holds $balance of $token" }
+            sweep(relay, token).failure { ex -> logger.error("Cannot sweep $token from $relay", ex) }
+        }
+    }
+
+    /**
+     * Get [threshold] of [token] in token base units, null if token precision is unknown
+     */
+    private fun getThreshold(token: String): BigInteger? {
+        thresholds[token]?.let { tokenThreshold -> return tokenThreshold }
+        return relayVacuum.getTokenPrecision(token).fold(
+            { precision ->
+                val tokenThreshold = threshold.scaleByPowerOfTen(precision).toBigInteger()
+                thresholds[token] = tokenThreshold
+                tokenThreshold
+            },
+            { ex ->
+                logger.warn("Cannot get threshold of $token", ex)
+                null
+            })
+    }
+
+    private fun sweep(relay: String, token: String): Result<Unit, Exception> {
+        return relayVacuum.sweep(relay, token).map { index.onSwept(relay, token) }
+    }
+
+    /**
+     * Logger
+     */
+    companion object : KLogging()
+}
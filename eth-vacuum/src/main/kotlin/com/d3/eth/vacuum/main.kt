@@ -17,6 +17,7 @@ import jp.co.soramitsu.iroha.java.Utils
 import mu.KLogging
 
 private const val RELAY_VACUUM_PREFIX = "relay-vacuum"
+const val VACUUM_SERVICE_NAME = "eth-vacuum"
 private val logger = KLogging().logger
 /**
  * Entry point for moving all currency from relay contracts to master contract
@@ -37,6 +38,13 @@ fun executeVacuum(
     args: Array<String> = emptyArray()
 ): Result<Unit, Exception> {
     logger.info { "Run relay vacuum" }
+    return createRelayVacuum(relayVacuumConfig).flatMap { relayVacuum -> relayVacuum.vacuum() }
+}
+
+/**
+ * Creates relay vacuum with Iroha and Ethereum credentials of vacuum service
+ */
+fun createRelayVacuum(relayVacuumConfig: RelayVacuumConfig): Result<RelayVacuum, Exception> {
     return Result.of {
         val keyPair = Utils.parseHexKeypair(
             relayVacuumConfig.vacuumCredential.pubkey,
@@ -49,7 +57,7 @@ fun executeVacuum(
         IrohaQueryHelperImpl(irohaAPI, credential.accountId, credential.keyPair)
     }.fanout {
         loadEthPasswords(RELAY_VACUUM_PREFIX, "/eth/ethereum_password.properties")
-    }.flatMap { (queryHelper, passwordConfig) ->
-        RelayVacuum(relayVacuumConfig, passwordConfig, queryHelper).vacuum()
+    }.map { (queryHelper, passwordConfig) ->
+        RelayVacuum(relayVacuumConfig, passwordConfig, queryHelper)
     }
 }
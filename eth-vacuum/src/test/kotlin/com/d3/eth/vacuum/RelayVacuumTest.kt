@@ -70,6 +70,12 @@ class RelayVacuumTest {
         )
         val relayStorageAccount = "notary@account"
         environmentVariables.set("RELAY-VACUUM_RELAYSTORAGEACCOUNT", relayStorageAccount)
+        val vacuumPeriod = "60"
+        environmentVariables.set("RELAY-VACUUM_VACUUMPERIOD", vacuumPeriod)
+        val vacuumReconcilePeriod = "3600"
+        environmentVariables.set("RELAY-VACUUM_VACUUMRECONCILEPERIOD", vacuumReconcilePeriod)
+        val vacuumThreshold = "1.5"
+        environmentVariables.set("RELAY-VACUUM_VACUUMTHRESHOLD", vacuumThreshold)
         val irohaHostname = "iroha.host"
         environmentVariables.set("RELAY-VACUUM_IROHA_HOSTNAME", irohaHostname)
         val irohaPort = "4040"
@@ -108,6 +114,9 @@ class RelayVacuumTest {
         assertEquals(irohaAnchoredTokenStorageAccount, relayConfig.irohaAnchoredTokenStorageAccount)
         assertEquals(irohaAnchoredTokenSetterAccount, relayConfig.irohaAnchoredTokenSetterAccount)
         assertEquals(relayStorageAccount, relayConfig.relayStorageAccount)
+        assertEquals(vacuumPeriod.toLong(), relayConfig.vacuumPeriod)
+        assertEquals(vacuumReconcilePeriod.toLong(), relayConfig.vacuumReconcilePeriod)
+        assertEquals(vacuumThreshold.toBigDecimal(), relayConfig.vacuumThreshold)
         assertEquals(irohaHostname, relayConfig.iroha.hostname)
         assertEquals(irohaPort.toInt(), relayConfig.iroha.port)
         assertEquals(ethereumUrl, relayConfig.ethereum.url)
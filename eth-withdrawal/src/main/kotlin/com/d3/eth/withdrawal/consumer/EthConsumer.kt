@@ -6,27 +6,47 @@
 package com.d3.eth.withdrawal.consumer
 
 import com.d3.commons.model.D3ErrorException
+import com.d3.eth.sidechain.util.ATTEMPTS_DEFAULT
+import com.d3.eth.sidechain.util.AttemptsCustomizableFastRawTransactionManager
 import com.d3.eth.sidechain.util.DeployHelper
-import com.d3.eth.vacuum.RelayVacuumConfig
-import com.d3.eth.vacuum.executeVacuum
+import com.d3.eth.vacuum.RelayVacuumScheduler
 import com.d3.eth.withdrawal.withdrawalservice.WITHDRAWAL_OPERATION
 import com.d3.eth.withdrawal.withdrawalservice.WithdrawalServiceOutputEvent
 import contract.Relay
-import integration.eth.config.EthereumConfig
-import integration.eth.config.EthereumPasswords
 import mu.KLogging
+import org.web3j.protocol.core.JsonRpc2_0Web3j.DEFAULT_BLOCK_TIME
+import org.web3j.protocol.core.methods.response.Log
 import org.web3j.protocol.core.methods.response.TransactionReceipt
+import org.web3j.protocol.exceptions.TransactionException
+import org.web3j.tx.gas.StaticGasProvider
+import org.web3j.tx.response.PollingTransactionReceiptProcessor
 import org.web3j.utils.Numeric
 import java.math.BigInteger
 
+/**
+ * Performs withdrawals in Ethereum
+ * @param deployHelper - Ethereum helper of withdrawal key with fast transaction manager shared by all its senders
+ * @param vacuumScheduler - relay vacuum that covers withdrawals from relays
+ */
 class EthConsumer(
-    ethereumConfig: EthereumConfig,
-    ethereumPasswords: EthereumPasswords,
-    private val relayVacuumConfig: RelayVacuumConfig
+    private val deployHelper: DeployHelper,
+    private val vacuumScheduler: RelayVacuumScheduler
 ) {
-    private val deployHelper = DeployHelper(ethereumConfig, ethereumPasswords)
+    // withdrawals are sent concurrently, so nonce is tracked locally
+    private val transactionManager =
+        deployHelper.transactionManager as? AttemptsCustomizableFastRawTransactionManager
+            ?: throw IllegalArgumentException("Fast transaction manager is required to send withdrawals")
 
-    fun consume(event: WithdrawalServiceOutputEvent): TransactionReceipt? {
+    /**
+     * Perform withdrawal in Ethereum
+     * @param event - withdrawal event
+     * @param onSubmit - callback called with hash and nonce of each sent Ethereum transaction
+     * @return receipt of the last Ethereum transaction or null in case of failure
+     */
+    fun consume(
+        event: WithdrawalServiceOutputEvent,
+        onSubmit: (String, BigInteger) -> Unit = { _, _ -> }
+    ): TransactionReceipt? {
         logger.info { "Consumed eth event $event" }
         if (event !is WithdrawalServiceOutputEvent.EthRefund) {
             throw IllegalArgumentException("Unsupported output event type")
@@ -40,7 +60,14 @@ class EthConsumer(
                     "relay ${event.proof.relay}\n"
         }
 
-        val relay = deployHelper.loadRelayContract(event.proof.relay)
+        val relay = Relay.load(
+            event.proof.relay,
+            deployHelper.web3,
+            ReportingTransactionManager(deployHelper.web3, transactionManager) { sent, nonce ->
+                onSubmit(sent.transactionHash, nonce)
+            },
+            StaticGasProvider(deployHelper.gasPrice, deployHelper.gasLimit)
+        )
 
         return if (event.isIrohaAnchored) {
             withdrawIrohaAnchored(relay, event)
@@ -60,7 +87,7 @@ class EthConsumer(
             logger.info { "Withdraw Iroha anchored" }
             return relay.mintTokensByPeers(
                 event.proof.tokenContractAddress,
-                BigInteger(event.proof.amount),
+                event.proof.amount.units,
                 event.proof.account,
                 Numeric.hexStringToByteArray(event.proof.irohaHash),
                 event.proof.v,
@@ -87,28 +114,24 @@ class EthConsumer(
         // Here works next logic:
         // If the first call returns logs with size 2 then check if a destination address is equal to the address
         // from the second log
-        // If its true then we start vacuum process
+        // If its true then we sweep relays just enough to cover the withdrawal
         val logs = call?.logs
         if (logs != null) {
             for (log in logs) {
-                if (log.topics.contains("0x33d1e0301846de1496df73b1da3d17c85b7266dd832d21e10ff21a1f143ef293")
-                    && event.proof.account.toLowerCase() == "0x" + log.data.toLowerCase().subSequence(
-                        90,
-                        130
-                    )
-                ) {
-                    executeVacuum(relayVacuumConfig).fold(
-                        {
-                            return withdraw(relay, event)
-                        },
-                        { ex ->
-                            throw D3ErrorException.fatal(
-                                failedOperation = WITHDRAWAL_OPERATION,
-                                description = "Cannot execute vacuum",
-                                errorCause = ex
-                            )
-                        }
-                    )
+                if (isInsufficientFunds(log, event)) {
+                    try {
+                        vacuumScheduler.sweepFor(
+                            event.proof.tokenContractAddress,
+                            event.proof.amount.units
+                        ).get()
+                    } catch (ex: Exception) {
+                        throw D3ErrorException.fatal(
+                            failedOperation = WITHDRAWAL_OPERATION,
+                            description = "Cannot execute vacuum",
+                            errorCause = ex
+                        )
+                    }
+                    return withdraw(relay, event)
                 }
             }
         }
@@ -122,7 +145,7 @@ class EthConsumer(
         try {
             return relay.withdraw(
                 event.proof.tokenContractAddress,
-                BigInteger(event.proof.amount),
+                event.proof.amount.units,
                 event.proof.account,
                 Numeric.hexStringToByteArray(event.proof.irohaHash),
                 event.proof.v,
@@ -136,8 +159,58 @@ class EthConsumer(
         }
     }
 
+    /**
+     * Check if withdrawal is performed by Ethereum transaction
+     * @param event - withdrawal event
+     * @param receipt - receipt of the last withdrawal transaction
+     * @return true if transaction succeeded and relay had enough funds
+     */
+    fun isWithdrawn(event: WithdrawalServiceOutputEvent, receipt: TransactionReceipt): Boolean {
+        if (event !is WithdrawalServiceOutputEvent.EthRefund) {
+            throw IllegalArgumentException("Unsupported output event type")
+        }
+        return receipt.status != FAILED_STATUS && receipt.logs.none { isInsufficientFunds(it, event) }
+    }
+
+    /**
+     * Get receipt of sent transaction
+     * @param ethTxHash - hash of Ethereum transaction
+     * @param wait - wait until transaction is mined
+     * @return receipt or null if transaction is still not mined
+     */
+    fun getReceipt(ethTxHash: String, wait: Boolean = true): TransactionReceipt? {
+        val receipt = deployHelper.web3.ethGetTransactionReceipt(ethTxHash).send().transactionReceipt
+        if (receipt.isPresent || !wait) {
+            return receipt.orElse(null)
+        }
+        return try {
+            PollingTransactionReceiptProcessor(
+                deployHelper.web3,
+                DEFAULT_BLOCK_TIME.toLong(),
+                ATTEMPTS_DEFAULT
+            ).waitForTransactionReceipt(ethTxHash)
+        } catch (ex: TransactionException) {
+            logger.warn("Transaction $ethTxHash is not mined", ex)
+            null
+        }
+    }
+
+    /**
+     * Check if log is relay InsufficientFunds event for withdrawal destination
+     */
+    private fun isInsufficientFunds(log: Log, event: WithdrawalServiceOutputEvent.EthRefund) =
+        log.topics.contains(INSUFFICIENT_FUNDS_TOPIC) &&
+                event.proof.account.toLowerCase() == "0x" + log.data.toLowerCase().subSequence(
+            90,
+            130
+        )
+
     /**
      * Logger
      */
-    companion object : KLogging()
+    companion object : KLogging() {
+        private const val FAILED_STATUS = "0x0"
+        private const val INSUFFICIENT_FUNDS_TOPIC =
+            "0x33d1e0301846de1496df73b1da3d17c85b7266dd832d21e10ff21a1f143ef293"
+    }
 }
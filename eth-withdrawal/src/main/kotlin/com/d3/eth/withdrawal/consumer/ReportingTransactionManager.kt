@@ -0,0 +1,40 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.eth.withdrawal.consumer
+
+import com.d3.eth.sidechain.util.ATTEMPTS_DEFAULT
+import com.d3.eth.sidechain.util.AttemptsCustomizableFastRawTransactionManager
+import org.web3j.protocol.Web3j
+import org.web3j.protocol.core.JsonRpc2_0Web3j.DEFAULT_BLOCK_TIME
+import org.web3j.protocol.core.methods.response.EthSendTransaction
+import org.web3j.tx.TransactionManager
+import java.math.BigInteger
+
+/**
+ * Transaction manager that reports every sent transaction before waiting for its receipt
+ * @param web3j - Ethereum client
+ * @param transactionManager - transaction manager that signs and sends transactions
+ * @param onSent - callback called with accepted transaction and its nonce
+ */
+class ReportingTransactionManager(
+    web3j: Web3j,
+    private val transactionManager: AttemptsCustomizableFastRawTransactionManager,
+    private val onSent: (EthSendTransaction, BigInteger) -> Unit
+) : TransactionManager(
+    web3j,
+    ATTEMPTS_DEFAULT,
+    DEFAULT_BLOCK_TIME.toLong(),
+    transactionManager.fromAddress
+) {
+
+    override fun sendTransaction(
+        gasPrice: BigInteger,
+        gasLimit: BigInteger,
+        to: String,
+        data: String,
+        value: BigInteger
+    ): EthSendTransaction = transactionManager.sendTransaction(gasPrice, gasLimit, to, data, value, onSent)
+}
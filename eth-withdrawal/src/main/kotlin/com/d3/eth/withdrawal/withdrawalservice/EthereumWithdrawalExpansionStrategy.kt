@@ -6,22 +6,25 @@
 package com.d3.eth.withdrawal.withdrawalservice
 
 import com.d3.commons.expansion.ServiceExpansion
-import integration.eth.config.EthereumConfig
-import integration.eth.config.EthereumPasswords
 import com.d3.eth.sidechain.util.DeployHelper
 import iroha.protocol.BlockOuterClass
 import org.web3j.utils.Numeric
 
 /**
  * Withdrawal service expansion strategy
+ * @param deployHelper - Ethereum helper of withdrawal key, its transaction manager is shared with withdrawals
  */
 class EthereumWithdrawalExpansionStrategy(
-    private val ethereumConfig: EthereumConfig,
-    private val withdrawalEthereumPasswords: EthereumPasswords,
+    private val deployHelper: DeployHelper,
     private val ethMasterAddress: String,
     private val expansionService: ServiceExpansion,
     private val proofCollector: ProofCollector
 ) {
+
+    // loaded on the first expansion and reused by the next ones
+    private val masterContract by lazy {
+        deployHelper.loadMasterContract(ethMasterAddress)
+    }
     /**
      * Filter block for expansion trigger event and perform expansion logic:
      * - query proofs for expansion from all notaries
@@ -36,11 +39,6 @@ class EthereumWithdrawalExpansionStrategy(
                 triggerTxHash
             ).get()
 
-            val masterContract = DeployHelper(
-                ethereumConfig,
-                withdrawalEthereumPasswords
-            ).loadMasterContract(ethMasterAddress)
-
             masterContract.addPeerByPeer(
                 ethereumPeerAddress,
                 Numeric.hexStringToByteArray(triggerTxHash),
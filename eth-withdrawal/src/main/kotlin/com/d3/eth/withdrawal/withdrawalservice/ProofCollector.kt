@@ -8,19 +8,20 @@ package com.d3.eth.withdrawal.withdrawalservice
 import com.d3.commons.model.D3ErrorException
 import com.d3.commons.provider.NotaryPeerListProvider
 import com.d3.commons.sidechain.SideChainEvent
-import com.d3.commons.sidechain.iroha.util.IrohaQueryHelper
 import com.d3.eth.deposit.endpoint.BigIntegerMoshiAdapter
 import com.d3.eth.deposit.endpoint.EthNotaryResponse
 import com.d3.eth.deposit.endpoint.EthNotaryResponseMoshiAdapter
 import com.d3.eth.deposit.endpoint.IrohaTransactionHashType
+import com.d3.eth.metrics.EthMetrics
+import com.d3.eth.provider.EthAddressProvider
 import com.d3.eth.provider.EthTokensProvider
+import com.d3.eth.sidechain.util.TokenAmount
 import com.d3.eth.sidechain.util.extractVRS
 import com.github.kittinunf.result.Result
 import com.github.kittinunf.result.fanout
 import com.github.kittinunf.result.map
 import com.squareup.moshi.Moshi
 import mu.KLogging
-import java.math.BigDecimal
 import java.math.BigInteger
 
 /**
@@ -37,7 +38,7 @@ data class AddPeerProof(
 /**
  * Approval to be passed to the Ethereum for refund
  * @param tokenContractAddress Ethereum address of ERC-20 token (or 0x0000000000000000000000000000000000000000 for ether)
- * @param amount amount of token/ether to transfer
+ * @param amount amount of token/ether to transfer in token base units
  * @param account target account
  * @param irohaHash hash of approving TransferAsset transaction in Iroha
  * @param r array of r-components of notary signatures
@@ -47,7 +48,7 @@ data class AddPeerProof(
  */
 data class RollbackApproval(
     val tokenContractAddress: String,
-    val amount: String,
+    val amount: TokenAmount,
     val account: String,
     val irohaHash: String,
     val r: ArrayList<ByteArray>,
@@ -58,14 +59,15 @@ data class RollbackApproval(
 
 /**
  * Collect proofs of notaries for ethereum contracts.
+ * @param tokensProvider - provider of Ethereum tokens
+ * @param notaryPeerListProvider - provider of notary endpoints
+ * @param relayProvider - provider of relays bound to Iroha accounts
  */
 class ProofCollector(
-    private val queryHelper: IrohaQueryHelper,
-    private val withdrawalServiceConfig: WithdrawalServiceConfig,
     private val tokensProvider: EthTokensProvider,
-    private val notaryPeerListProvider: NotaryPeerListProvider
+    private val notaryPeerListProvider: NotaryPeerListProvider,
+    private val relayProvider: EthAddressProvider
 ) {
-    private val relayStorageAccount = withdrawalServiceConfig.relayStorageAccount
 
     /**
      * Gather proof from notaries for add peer
@@ -86,7 +88,9 @@ class ProofCollector(
 
                 val res: khttp.responses.Response
                 try {
-                    res = khttp.get("$peer/ethereum/proof/add_peer/$irohaTxHash")
+                    res = EthMetrics.time(EthMetrics.PROOF_COLLECTION, "notary", peer, "proof", "add_peer") {
+                        khttp.get("$peer/ethereum/proof/add_peer/$irohaTxHash")
+                    }
                 } catch (e: Exception) {
                     logger.warn { "Exception was thrown while refund server request: server $peer" }
                     logger.warn { e.localizedMessage }
@@ -138,15 +142,12 @@ class ProofCollector(
         // description field holds target account address
         return tokensProvider.getTokenAddress(event.asset)
             .fanout { tokensProvider.getTokenPrecision(event.asset) }
-            .fanout { findInAccDetail(relayStorageAccount, event.srcAccount) }
+            .fanout { getRelay(event.srcAccount) }
             .map { (tokenInfo, relayAddress) ->
                 val hash = event.hash
                 val amount = event.amount
                 if (!event.asset.contains("#ethereum") && !event.asset.contains("#sora")) {
-                    throw D3ErrorException.warning(
-                        failedOperation = WITHDRAWAL_OPERATION,
-                        description = "Incorrect asset name in Iroha event: " + event.asset
-                    )
+                    throw PermanentWithdrawalException("Incorrect asset name in Iroha event: " + event.asset)
                 }
 
                 val address = event.description
@@ -158,7 +159,9 @@ class ProofCollector(
                     logger.info { "Query $peer for proof for hash $hash" }
                     val res: khttp.responses.Response
                     try {
-                        res = khttp.get("$peer/eth/$hash")
+                        res = EthMetrics.time(EthMetrics.PROOF_COLLECTION, "notary", peer, "proof", "withdrawal") {
+                            khttp.get("$peer/eth/$hash")
+                        }
                     } catch (e: Exception) {
                         logger.warn("Exception was thrown while refund server request: server $peer", e)
                         return@forEach
@@ -199,10 +202,9 @@ class ProofCollector(
                 }
 
                 val (coinAddress, precision) = tokenInfo
-                val decimalAmount = BigDecimal(amount).scaleByPowerOfTen(precision).toPlainString()
                 RollbackApproval(
                     coinAddress,
-                    decimalAmount,
+                    TokenAmount.fromDecimal(amount, precision),
                     address,
                     hash,
                     rr,
@@ -213,18 +215,15 @@ class ProofCollector(
             }
     }
 
-    private fun findInAccDetail(acc: String, name: String): Result<String, Exception> {
-        return queryHelper.getAccountDetailsFirst(
-            acc,
-            withdrawalServiceConfig.registrationIrohaAccount
-        ) { _, value -> value == name }.map { relay ->
+    /**
+     * Get relay bound to Iroha account
+     */
+    private fun getRelay(accountId: String): Result<String, Exception> {
+        return relayProvider.getAddressByAccountId(accountId).map { relay ->
             if (!relay.isPresent)
-                throw D3ErrorException.fatal(
-                    failedOperation = WITHDRAWAL_OPERATION,
-                    description = "No relay address in account details $acc bind to $name"
-                )
+                throw PermanentWithdrawalException("No relay address bind to $accountId")
             else
-                relay.get().key
+                relay.get()
         }
     }
 
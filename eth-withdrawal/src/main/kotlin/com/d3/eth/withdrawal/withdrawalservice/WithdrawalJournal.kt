@@ -0,0 +1,219 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.eth.withdrawal.withdrawalservice
+
+import mu.KLogging
+import java.io.Closeable
+import java.io.File
+import java.io.FileOutputStream
+import java.math.BigInteger
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * States of withdrawal
+ */
+enum class WithdrawalState {
+    /** Proof is collected, Ethereum transaction is not sent yet */
+    COLLECTED,
+    /** Ethereum transaction is sent, receipt is not obtained yet */
+    SUBMITTED,
+    /** Ethereum transaction succeeded, withdrawal is not finalized in Iroha yet */
+    SUCCEEDED,
+    /** Ethereum transaction failed, assets are not returned in Iroha yet */
+    FAILED,
+    /** Withdrawal is finalized in Iroha */
+    FINALIZED,
+    /** Assets are returned in Iroha */
+    ROLLED_BACK,
+    /** Withdrawal is given up after Ethereum transaction is sent, it is left for manual handling */
+    DEAD_LETTER;
+
+    /** Is nothing left to do with withdrawal automatically */
+    val isTerminal: Boolean
+        get() = this == FINALIZED || this == ROLLED_BACK || this == DEAD_LETTER
+}
+
+/**
+ * Journal record
+ * @param irohaHash - hash of Iroha withdrawal transaction
+ * @param state - withdrawal state
+ * @param ethTxHash - hash of the last sent Ethereum transaction
+ * @param nonce - nonce of the last sent Ethereum transaction
+ */
+data class WithdrawalJournalRecord(
+    val irohaHash: String,
+    val state: WithdrawalState,
+    val ethTxHash: String? = null,
+    val nonce: BigInteger? = null
+)
+
+/**
+ * Append-only file journal of withdrawal states.
+ * Each state transition is appended as one line and synced to disk before withdrawal proceeds.
+ * The journal is loaded and compacted to the last state of each withdrawal on start.
+ * Finished withdrawals are pruned once their Iroha block is acknowledged,
+ * the file is compacted again when most of its lines belong to pruned withdrawals.
+ * @param filePath - path to journal file
+ */
+class WithdrawalJournal(private val filePath: String) : Closeable {
+
+    private val records = ConcurrentHashMap<String, WithdrawalJournalRecord>()
+
+    private val file = File(filePath)
+
+    private lateinit var output: FileOutputStream
+
+    // lines in the journal file
+    private var lines = 0
+
+    init {
+        file.absoluteFile.parentFile.mkdirs()
+        if (file.exists()) {
+            file.forEachLine { line ->
+                parse(line)?.let { records[it.irohaHash] = it }
+            }
+        }
+        compact()
+        logger.info {
+            "Withdrawal journal $filePath is loaded, ${records.size} records, " +
+                    "${records.values.count { !it.state.isTerminal }} unfinished"
+        }
+    }
+
+    /**
+     * Get the last known state of withdrawal
+     * @param irohaHash - hash of Iroha withdrawal transaction
+     * @return journal record or null if withdrawal is unknown
+     */
+    fun get(irohaHash: String): WithdrawalJournalRecord? = records[irohaHash]
+
+    /**
+     * Check if withdrawal is already finalized, rolled back or given up
+     * @param irohaHash - hash of Iroha withdrawal transaction
+     */
+    fun isDone(irohaHash: String) = records[irohaHash]?.state?.isTerminal == true
+
+    /**
+     * Get withdrawals that are not finalized or rolled back
+     */
+    fun getUnfinished(): List<WithdrawalJournalRecord> =
+        records.values.filter { !it.state.isTerminal }
+
+    /**
+     * Get withdrawals that are left for manual handling
+     */
+    fun getDeadLetters(): List<WithdrawalJournalRecord> =
+        records.values.filter { it.state == WithdrawalState.DEAD_LETTER }
+
+    /**
+     * Append state transition of withdrawal.
+     * Ethereum transaction hash and nonce are kept from the previous record if not set.
+     * @param irohaHash - hash of Iroha withdrawal transaction
+     * @param state - new state
+     * @param ethTxHash - hash of sent Ethereum transaction
+     * @param nonce - nonce of sent Ethereum transaction
+     */
+    @Synchronized
+    fun record(
+        irohaHash: String,
+        state: WithdrawalState,
+        ethTxHash: String? = null,
+        nonce: BigInteger? = null
+    ) {
+        val previous = records[irohaHash]
+        val record = WithdrawalJournalRecord(
+            irohaHash,
+            state,
+            ethTxHash ?: previous?.ethTxHash,
+            nonce ?: previous?.nonce
+        )
+        output.write((format(record) + "\n").toByteArray())
+        output.channel.force(false)
+        lines++
+        records[irohaHash] = record
+    }
+
+    /**
+     * Forget finished withdrawals, their Iroha block must be acknowledged, so they are not redelivered.
+     * Dead letters are kept until they are handled manually.
+     * @param irohaHashes - hashes of Iroha withdrawal transactions
+     */
+    @Synchronized
+    fun prune(irohaHashes: Collection<String>) {
+        irohaHashes.forEach { irohaHash ->
+            if (isDone(irohaHash) && records[irohaHash]?.state != WithdrawalState.DEAD_LETTER)
+                records.remove(irohaHash)
+        }
+        if (lines >= COMPACTION_MIN_LINES && lines > COMPACTION_RATIO * records.size)
+            compact()
+    }
+
+    /**
+     * Rewrite journal file with the last state of each known withdrawal
+     */
+    private fun compact() {
+        if (this::output.isInitialized)
+            output.close()
+        val compacted = File("$filePath.tmp")
+        compacted.printWriter().use { writer ->
+            records.values.forEach { writer.println(format(it)) }
+        }
+        Files.move(
+            compacted.toPath(),
+            file.toPath(),
+            StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE
+        )
+        output = FileOutputStream(file, true)
+        lines = records.size
+    }
+
+    @Synchronized
+    override fun close() {
+        output.close()
+    }
+
+    /**
+     * Logger
+     */
+    companion object : KLogging() {
+        private const val SEPARATOR = " "
+        private const val ABSENT = "-"
+        private const val COMPACTION_MIN_LINES = 1000
+        private const val COMPACTION_RATIO = 2
+
+        private fun format(record: WithdrawalJournalRecord) = listOf(
+            record.irohaHash,
+            record.state.name,
+            record.ethTxHash ?: ABSENT,
+            record.nonce?.toString() ?: ABSENT
+        ).joinToString(SEPARATOR)
+
+        /**
+         * Parse journal line, the last line may be incomplete in case of crash
+         */
+        private fun parse(line: String): WithdrawalJournalRecord? {
+            val fields = line.split(SEPARATOR)
+            if (fields.size != 4) {
+                logger.warn { "Skip malformed withdrawal journal line $line" }
+                return null
+            }
+            return try {
+                WithdrawalJournalRecord(
+                    fields[0],
+                    WithdrawalState.valueOf(fields[1]),
+                    fields[2].takeIf { it != ABSENT },
+                    fields[3].takeIf { it != ABSENT }?.let { BigInteger(it) }
+                )
+            } catch (e: IllegalArgumentException) {
+                logger.warn { "Skip malformed withdrawal journal line $line" }
+                null
+            }
+        }
+    }
+}
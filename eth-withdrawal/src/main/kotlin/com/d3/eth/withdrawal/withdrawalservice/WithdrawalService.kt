@@ -22,15 +22,23 @@ interface WithdrawalService {
     fun onIrohaEvent(irohaEvent: SideChainEvent.IrohaEvent): Result<List<WithdrawalServiceOutputEvent>, Exception>
 
     /**
-     * Events emitted by [WithdrawalService]
+     * Withdrawal events of each Iroha block along with the block acknowledgement,
+     * the events are turned into [WithdrawalServiceOutputEvent] with [onIrohaEvent]
      */
-    fun output(): io.reactivex.Observable<Result<List<WithdrawalServiceOutputEvent>, Exception>>
+    fun output(): io.reactivex.Observable<Pair<List<SideChainEvent.IrohaEvent>, () -> Unit>>
 
     /**
      * Behavior in case of rollback failure
      */
     fun returnIrohaAssets(event: WithdrawalServiceOutputEvent): Result<Unit, Exception>
 
+    /**
+     * Return assets of withdrawal that is given up before it is sent to Ethereum
+     * @param irohaHash - hash of Iroha withdrawal transaction
+     * @param reason - reason of rollback
+     */
+    fun rollbackWithdrawal(irohaHash: String, reason: String): Result<Unit, Exception>
+
     /**
      * Finalize withdrawal
      *
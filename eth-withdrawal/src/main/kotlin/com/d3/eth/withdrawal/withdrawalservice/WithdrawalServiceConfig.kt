@@ -60,4 +60,13 @@ interface WithdrawalServiceConfig {
 
     /** RMQ Iroha Block */
     val ethIrohaWithdrawalQueue: String
+
+    /** Number of withdrawals performed in parallel */
+    val withdrawalWorkers: Int
+
+    /** Maximal number of attempts of a withdrawal before it is given up */
+    val withdrawalMaxAttempts: Int
+
+    /** Path to journal of withdrawal states */
+    val withdrawalJournalFilePath: String
 }
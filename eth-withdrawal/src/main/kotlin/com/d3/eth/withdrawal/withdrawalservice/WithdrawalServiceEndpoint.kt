@@ -5,12 +5,15 @@
 
 package com.d3.eth.withdrawal.withdrawalservice
 
+import com.d3.eth.metrics.EthMetrics
 import io.ktor.application.call
 import io.ktor.application.install
 import io.ktor.features.CORS
 import io.ktor.features.ContentNegotiation
 import io.ktor.gson.gson
+import io.ktor.http.ContentType
 import io.ktor.response.respond
+import io.ktor.response.respondText
 import io.ktor.routing.get
 import io.ktor.routing.routing
 import io.ktor.server.engine.embeddedServer
@@ -45,6 +48,9 @@ class WithdrawalServiceEndpoint(
                         )
                     )
                 }
+                get("/metrics") {
+                    call.respondText(EthMetrics.scrape(), ContentType.parse(EthMetrics.CONTENT_TYPE))
+                }
             }
         }
         server.start(wait = false)
@@ -12,19 +12,24 @@ import com.d3.commons.service.WithdrawalFinalizationDetails
 import com.d3.commons.service.WithdrawalFinalizer
 import com.d3.commons.sidechain.SideChainEvent
 import com.d3.commons.sidechain.iroha.FEE_DESCRIPTION
+import com.d3.commons.sidechain.iroha.IrohaChainHandler
 import com.d3.commons.sidechain.iroha.consumer.IrohaConsumer
 import com.d3.commons.sidechain.iroha.consumer.IrohaConsumerImpl
 import com.d3.commons.sidechain.iroha.util.IrohaQueryHelper
 import com.d3.eth.provider.EthTokensProvider
+import com.d3.eth.sidechain.iroha.IrohaBlockView
+import com.d3.eth.sidechain.iroha.IrohaCommandEvent
 import com.github.kittinunf.result.Result
 import com.github.kittinunf.result.fanout
 import com.github.kittinunf.result.flatMap
 import com.github.kittinunf.result.map
 import io.reactivex.Observable
+import iroha.protocol.Commands
 import iroha.protocol.TransactionOuterClass
 import jp.co.soramitsu.iroha.java.IrohaAPI
 import mu.KLogging
 import java.math.BigDecimal
+import java.util.*
 
 /**
  * Implementation of Withdrawal Service
@@ -34,9 +39,10 @@ class WithdrawalServiceImpl(
     private val credential: IrohaCredential,
     private val irohaAPI: IrohaAPI,
     private val queryHelper: IrohaQueryHelper,
-    private val irohaHandler: Observable<SideChainEvent.IrohaEvent>,
+    private val irohaBlocks: Observable<Pair<IrohaBlockView, () -> Unit>>,
     private val tokensProvider: EthTokensProvider,
-    private val proofCollector: ProofCollector
+    private val proofCollector: ProofCollector,
+    private val withdrawalJournal: WithdrawalJournal
 ) : WithdrawalService {
 
     private val irohaConsumer: IrohaConsumer by lazy { IrohaConsumerImpl(credential, irohaAPI) }
@@ -50,6 +56,15 @@ class WithdrawalServiceImpl(
     private val withdrawalFinalizer =
         WithdrawalFinalizer(irohaConsumer, withdrawalServiceConfig.withdrawalBillingAccount)
 
+    private val irohaChainHandler = IrohaChainHandler(credential.accountId, FEE_DESCRIPTION)
+
+    // withdrawal transactions seen in blocks by hash, bounded in order not to grow forever
+    private val withdrawalTransactions = Collections.synchronizedMap(
+        object : LinkedHashMap<String, TransactionOuterClass.Transaction>(16, 0.75f, true) {
+            override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, TransactionOuterClass.Transaction>?) =
+                size > TRANSACTION_CACHE_SIZE
+        })
+
     /**
      * Handle IrohaEvent
      * @param irohaEvent - iroha event
@@ -61,6 +76,10 @@ class WithdrawalServiceImpl(
                 logger.info { "Iroha transfer event to ${irohaEvent.dstAccount}, expected ${credential.accountId}" }
 
                 if (irohaEvent.dstAccount == credential.accountId) {
+                    if (withdrawalJournal.isDone(irohaEvent.hash)) {
+                        logger.info { "Withdrawal ${irohaEvent.hash} is already handled" }
+                        return Result.of { emptyList<WithdrawalServiceOutputEvent>() }
+                    }
                     logger.info { "Withdrawal event" }
                     return proofCollector.collectProofForWithdrawal(irohaEvent)
                         .fanout { tokensProvider.isIrohaAnchored(irohaEvent.asset) }
@@ -76,12 +95,18 @@ class WithdrawalServiceImpl(
     }
 
     /**
-     * Relay events to consumer
+     * Relay withdrawal events of each block to consumer.
+     * Proofs are not collected here, so the block consumer thread does not wait for notaries.
      */
-    override fun output(): Observable<Result<List<WithdrawalServiceOutputEvent>, Exception>> {
-        return irohaHandler
-            .map {
-                onIrohaEvent(it)
+    override fun output(): Observable<Pair<List<SideChainEvent.IrohaEvent>, () -> Unit>> {
+        return irohaBlocks
+            .map { (view, ack) ->
+                val withdrawals = view.getTransfersTo(credential.accountId)
+                cacheWithdrawalTransactions(withdrawals)
+                // the chain handler parses the block itself, so it is called only for blocks with withdrawals
+                if (withdrawals.isEmpty())
+                    return@map Pair(emptyList<SideChainEvent.IrohaEvent>(), ack)
+                Pair(irohaChainHandler.parseBlock(view.block), ack)
             }
     }
 
@@ -90,9 +115,16 @@ class WithdrawalServiceImpl(
      */
     override fun returnIrohaAssets(event: WithdrawalServiceOutputEvent): Result<Unit, Exception> {
         logger.info("Withdrawal rollback initiated for Iroha tx ${event}")
-        return getWithdrawalDetails(event)
+        return getIrohaHash(event).flatMap { irohaHash -> rollbackWithdrawal(irohaHash, "Ethereum rollback") }
+    }
+
+    /**
+     * @inheritdoc
+     */
+    override fun rollbackWithdrawal(irohaHash: String, reason: String): Result<Unit, Exception> {
+        return getWithdrawalDetails(irohaHash)
             .flatMap { withdrawalDetails ->
-                rollbackService.rollback(withdrawalDetails, "Ethereum rollback")
+                rollbackService.rollback(withdrawalDetails, reason)
             }.map { hash ->
                 logger.info("Successfully sent rollback transaction to Iroha, hash: $hash")
             }
@@ -107,23 +139,49 @@ class WithdrawalServiceImpl(
      * @result hash of finalization transaction in Iroha
      */
     override fun finalizeWithdrawal(event: WithdrawalServiceOutputEvent): Result<String, Exception> =
-        getWithdrawalDetails(event).flatMap { withdrawalFinalizer.finalize(it) }
+        getIrohaHash(event)
+            .flatMap { irohaHash -> getWithdrawalDetails(irohaHash) }
+            .flatMap { withdrawalFinalizer.finalize(it) }
+
+    /**
+     * Remember withdrawal transactions of the block, so they are not queried from Iroha on finalization
+     * @param withdrawals - transfers to withdrawal account in the block
+     */
+    private fun cacheWithdrawalTransactions(withdrawals: List<IrohaCommandEvent<Commands.TransferAsset>>) {
+        withdrawals.map { withdrawal -> withdrawal.transaction }
+            .distinct()
+            .forEach { transaction -> withdrawalTransactions[transaction.hash.toLowerCase()] = transaction.tx }
+    }
 
     /**
-     * Get Iroha transaction by hash from WithdrawalServiceOutputEvent
+     * Get hash of Iroha withdrawal transaction from WithdrawalServiceOutputEvent
      */
-    private fun getIrohaTxByHash(event: WithdrawalServiceOutputEvent): Result<TransactionOuterClass.Transaction, Exception> {
+    private fun getIrohaHash(event: WithdrawalServiceOutputEvent): Result<String, Exception> {
         if (event !is WithdrawalServiceOutputEvent.EthRefund) {
             return Result.error(IllegalArgumentException("Unsupported output event type"))
         }
-        return queryHelper.getSingleTransaction(event.proof.irohaHash)
+        return Result.of { event.proof.irohaHash }
+    }
+
+    /**
+     * Get Iroha transaction by hash.
+     * Transaction is taken from the block it was committed in, Iroha is queried only on cache miss.
+     */
+    private fun getIrohaTxByHash(irohaHash: String): Result<TransactionOuterClass.Transaction, Exception> {
+        val hash = irohaHash.toLowerCase()
+        withdrawalTransactions[hash]?.let { tx -> return Result.of { tx } }
+        return queryHelper.getSingleTransaction(irohaHash)
+            .map { queried ->
+                withdrawalTransactions[hash] = queried
+                queried
+            }
     }
 
     /**
-     * Get transfer commands from Iroha event
+     * Get transfer commands from Iroha withdrawal transaction
      */
-    private fun getWithdrawalDetails(event: WithdrawalServiceOutputEvent): Result<WithdrawalFinalizationDetails, Exception> =
-        getIrohaTxByHash(event).map { tx ->
+    private fun getWithdrawalDetails(irohaHash: String): Result<WithdrawalFinalizationDetails, Exception> =
+        getIrohaTxByHash(irohaHash).map { tx ->
             val transferAndFee = tx.payload.reducedPayload.commandsList.filter { cmd ->
                 cmd.hasTransferAsset()
             }.map { cmd ->
@@ -169,5 +227,7 @@ class WithdrawalServiceImpl(
     /**
      * Logger
      */
-    companion object : KLogging()
+    companion object : KLogging() {
+        private const val TRANSACTION_CACHE_SIZE = 1000
+    }
 }
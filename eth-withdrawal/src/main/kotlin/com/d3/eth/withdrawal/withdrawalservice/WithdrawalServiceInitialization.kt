@@ -12,21 +12,29 @@ import com.d3.commons.model.D3ErrorException
 import com.d3.commons.model.IrohaCredential
 import com.d3.commons.provider.NotaryPeerListProviderImpl
 import com.d3.commons.sidechain.SideChainEvent
-import com.d3.commons.sidechain.iroha.FEE_DESCRIPTION
-import com.d3.commons.sidechain.iroha.IrohaChainHandler
 import com.d3.commons.sidechain.iroha.util.impl.IrohaQueryHelperImpl
-import com.d3.commons.util.createPrettyFixThreadPool
 import com.d3.commons.util.createPrettySingleThreadPool
 import integration.eth.config.EthereumPasswords
+import com.d3.eth.metrics.EthMetrics
+import com.d3.eth.provider.ETH_ADDRESS
+import com.d3.eth.provider.ETH_DOMAIN
+import com.d3.eth.provider.ETH_NAME
+import com.d3.eth.provider.ETH_RELAY
+import com.d3.eth.provider.EthAddressIndex
+import com.d3.eth.provider.EthAddressProviderIrohaImpl
 import com.d3.eth.provider.EthTokensProviderImpl
+import com.d3.eth.sidechain.iroha.IrohaBlockView
+import com.d3.eth.sidechain.util.DeployHelperBuilder
 import com.d3.eth.vacuum.RelayVacuumConfig
+import com.d3.eth.vacuum.RelayVacuumScheduler
+import com.d3.eth.vacuum.createRelayVacuum
 import com.d3.eth.withdrawal.consumer.EthConsumer
 import com.github.kittinunf.result.Result
 import com.github.kittinunf.result.failure
+import com.github.kittinunf.result.fanout
 import com.github.kittinunf.result.flatMap
 import com.github.kittinunf.result.map
 import io.reactivex.Observable
-import io.reactivex.schedulers.Schedulers
 import jp.co.soramitsu.iroha.java.IrohaAPI
 import mu.KLogging
 import kotlin.system.exitProcess
@@ -43,14 +51,15 @@ class WithdrawalServiceInitialization(
     private val credential: IrohaCredential,
     private val irohaAPI: IrohaAPI,
     private val withdrawalEthereumPasswords: EthereumPasswords,
-    relayVacuumConfig: RelayVacuumConfig,
+    private val relayVacuumConfig: RelayVacuumConfig,
     rmqConfig: RMQConfig
 ) {
 
     private val chainListener = ReliableIrohaChainListener(
         rmqConfig,
         withdrawalConfig.ethIrohaWithdrawalQueue,
-        createPrettySingleThreadPool(ETH_WITHDRAWAL_SERVICE_NAME, "rmq-consumer")
+        createPrettySingleThreadPool(ETH_WITHDRAWAL_SERVICE_NAME, "rmq-consumer"),
+        autoAck = false
     )
 
     private val queryHelper by lazy {
@@ -75,11 +84,17 @@ class WithdrawalServiceInitialization(
         withdrawalConfig.notaryListSetterAccount
     )
 
-    val ethConsumer = EthConsumer(
-        withdrawalConfig.ethereum,
-        withdrawalEthereumPasswords,
-        relayVacuumConfig
-    )
+    // created in init, since relay vacuum creation may fail
+    private lateinit var vacuumScheduler: RelayVacuumScheduler
+
+    private val withdrawalJournal = WithdrawalJournal(withdrawalConfig.withdrawalJournalFilePath)
+
+    // one transaction manager of withdrawal key, so withdrawals and expansions do not race on nonce
+    private val deployHelper =
+        DeployHelperBuilder(withdrawalConfig.ethereum, withdrawalEthereumPasswords).setFastTransactionManager().build()
+
+    lateinit var ethConsumer: EthConsumer
+        private set
 
     private val expansionService = ServiceExpansion(
         withdrawalConfig.expansionTriggerAccount,
@@ -87,91 +102,293 @@ class WithdrawalServiceInitialization(
         irohaAPI
     )
 
+    private val relayIndex = EthAddressIndex(
+        EthAddressProviderIrohaImpl(
+            queryHelper,
+            withdrawalConfig.relayStorageAccount,
+            withdrawalConfig.registrationIrohaAccount,
+            ETH_RELAY
+        ),
+        withdrawalConfig.relayStorageAccount,
+        withdrawalConfig.registrationIrohaAccount
+    )
+
     private val proofCollector =
-        ProofCollector(queryHelper, withdrawalConfig, tokensProvider, notaryPeerListProvider)
+        ProofCollector(tokensProvider, notaryPeerListProvider, relayIndex)
+
+    private val expansionStrategy = EthereumWithdrawalExpansionStrategy(
+        deployHelper,
+        withdrawalConfig.ethMasterAddress,
+        expansionService,
+        proofCollector
+    )
+
+    /**
+     * Init relay vacuum scheduler and Ethereum consumer that sweeps relays with it
+     */
+    private fun initRelayVacuum(): Result<Unit, Exception> {
+        logger.info { "Init relay vacuum" }
+        return createRelayVacuum(relayVacuumConfig).map { relayVacuum ->
+            vacuumScheduler = RelayVacuumScheduler(
+                relayVacuum,
+                relayVacuumConfig.vacuumThreshold,
+                relayVacuumConfig.vacuumPeriod,
+                relayVacuumConfig.vacuumReconcilePeriod
+            )
+            ethConsumer = EthConsumer(deployHelper, vacuumScheduler)
+        }
+    }
 
     /**
      * Init Iroha chain listener
-     * @return Observable on Iroha sidechain events
+     * @return Observable on indexed Iroha blocks along with the block acknowledgement
      */
-    private fun initIrohaChain(): Result<Observable<SideChainEvent.IrohaEvent>, Exception> {
+    private fun initIrohaChain(): Result<Observable<Pair<IrohaBlockView, () -> Unit>>, Exception> {
         logger.info { "Init Iroha chain listener" }
         return chainListener.getBlockObservable().map { observable ->
-            observable.flatMapIterable { (block, _) ->
-                EthereumWithdrawalExpansionStrategy(
-                    withdrawalConfig.ethereum,
-                    withdrawalEthereumPasswords,
-                    withdrawalConfig.ethMasterAddress,
-                    expansionService,
-                    proofCollector
-                ).filterAndExpand(block)
-                IrohaChainHandler(
-                    credential.accountId,
-                    FEE_DESCRIPTION
-                ).parseBlock(block)
-            }
+            observable.map { (block, ack) -> Pair(IrohaBlockView(block), ack) }
+                .doOnNext { (view, _) ->
+                    relayIndex.onBlock(view)
+                    tokensProvider.onBlock(view)
+                    onDeposits(view)
+                    // expansion service parses the block itself, so it is called only for trigger blocks
+                    if (view.getDetailsOf(withdrawalConfig.expansionTriggerAccount).isNotEmpty())
+                        expansionStrategy.filterAndExpand(view.block)
+                }
+        }
+    }
+
+    /**
+     * Let relay vacuum know about deposits of the block to relays.
+     * Deposit adds the asset and transfers it from the creator in the same transaction.
+     */
+    private fun onDeposits(view: IrohaBlockView) {
+        view.transactions.forEach { transaction ->
+            val commands = transaction.tx.payload.reducedPayload.commandsList
+            val added = commands.filter { command -> command.hasAddAssetQuantity() }
+                .map { command -> command.addAssetQuantity.assetId }
+                .toSet()
+            if (added.isEmpty())
+                return@forEach
+            commands.filter { command -> command.hasTransferAsset() }
+                .map { command -> command.transferAsset }
+                .filter { transfer ->
+                    transfer.srcAccountId == transaction.creatorAccountId && added.contains(transfer.assetId)
+                }
+                .forEach { transfer ->
+                    relayIndex.getAddressByAccountId(transfer.destAccountId)
+                        .fanout { tokensProvider.getTokenCatalog() }
+                        .map { (relay, catalog) ->
+                            val tokenAddress = if (transfer.assetId == ETHER_ASSET_ID)
+                                ETH_ADDRESS
+                            else
+                                catalog.getAddress(transfer.assetId)
+                            if (relay.isPresent && tokenAddress != null)
+                                vacuumScheduler.onDeposit(relay.get(), tokenAddress)
+                        }
+                        .failure { ex ->
+                            logger.warn("Cannot take deposit to ${transfer.destAccountId} into account", ex)
+                        }
+                }
         }
     }
 
     /**
      * Init Withdrawal Service
      */
-    private fun initWithdrawalService(inputEvents: Observable<SideChainEvent.IrohaEvent>): WithdrawalService {
+    private fun initWithdrawalService(inputBlocks: Observable<Pair<IrohaBlockView, () -> Unit>>): WithdrawalService {
         return WithdrawalServiceImpl(
             withdrawalConfig,
             credential,
             irohaAPI,
             queryHelper,
-            inputEvents,
+            inputBlocks,
             tokensProvider,
-            proofCollector
+            proofCollector,
+            withdrawalJournal
         )
     }
 
+    /**
+     * Perform withdrawal in Ethereum and finalize it in Iroha, rollback in case of failure.
+     * Every step is written to the journal, so retried or redelivered withdrawal is resumed from its last state:
+     * - finalized or rolled back withdrawals are skipped
+     * - withdrawals with sent Ethereum transaction are not sent again, the receipt is awaited instead
+     * @throws D3ErrorException if withdrawal is not completed and should be retried
+     */
+    private fun withdraw(withdrawalService: WithdrawalService, event: WithdrawalServiceOutputEvent) {
+        val irohaHash = when (event) {
+            is WithdrawalServiceOutputEvent.EthRefund -> event.proof.irohaHash
+        }
+        val record = withdrawalJournal.get(irohaHash)
+        if (record != null && record.state.isTerminal) {
+            logger.info { "Withdrawal $irohaHash is already ${record.state}" }
+            return
+        }
+        val start = System.nanoTime()
+        val state = when (record?.state) {
+            WithdrawalState.SUCCEEDED, WithdrawalState.FAILED -> record.state
+            WithdrawalState.SUBMITTED -> {
+                logger.info { "Resume withdrawal $irohaHash with Ethereum tx ${record.ethTxHash}" }
+                checkReceipt(event, record)
+            }
+            else -> submitWithdrawal(event, irohaHash)
+        }
+        withdrawalJournal.record(irohaHash, state)
+
+        if (state == WithdrawalState.SUCCEEDED) {
+            withdrawalService.finalizeWithdrawal(event).fold(
+                {
+                    withdrawalJournal.record(irohaHash, WithdrawalState.FINALIZED)
+                    EthMetrics.record(EthMetrics.WITHDRAWAL_DURATION, System.nanoTime() - start, "outcome", "finalized")
+                },
+                { ex ->
+                    throw D3ErrorException.fatal(
+                        WITHDRAWAL_OPERATION,
+                        "Cannot finalize withdrawal $irohaHash",
+                        ex
+                    )
+                })
+        } else {
+            logger.warn { "Withdrawal $irohaHash has failed, perform rollback" }
+            withdrawalService.returnIrohaAssets(event).fold(
+                {
+                    withdrawalJournal.record(irohaHash, WithdrawalState.ROLLED_BACK)
+                    EthMetrics.record(EthMetrics.WITHDRAWAL_DURATION, System.nanoTime() - start, "outcome", "rolled_back")
+                },
+                { ex ->
+                    throw D3ErrorException.fatal(
+                        WITHDRAWAL_OPERATION,
+                        "Cannot rollback withdrawal $irohaHash",
+                        ex
+                    )
+                })
+        }
+    }
+
+    /**
+     * Give up withdrawal that cannot be completed.
+     * Withdrawal that is not sent to Ethereum or has failed there is rolled back,
+     * withdrawal that may be performed in Ethereum is recorded as dead letter for manual handling.
+     * @throws D3ErrorException if rollback fails and should be retried
+     */
+    private fun giveUp(
+        withdrawalService: WithdrawalService,
+        irohaEvent: SideChainEvent.IrohaEvent,
+        cause: Exception
+    ) {
+        if (irohaEvent !is SideChainEvent.IrohaEvent.SideChainTransfer) {
+            logger.error("Withdrawal event $irohaEvent is dropped", cause)
+            return
+        }
+        val irohaHash = irohaEvent.hash
+        val state = withdrawalJournal.get(irohaHash)?.state
+        when (state) {
+            null, WithdrawalState.COLLECTED, WithdrawalState.FAILED -> {
+                logger.warn { "Withdrawal $irohaHash is given up in state $state, perform rollback" }
+                withdrawalService.rollbackWithdrawal(irohaHash, "Withdrawal rollback").fold(
+                    { withdrawalJournal.record(irohaHash, WithdrawalState.ROLLED_BACK) },
+                    { ex ->
+                        throw D3ErrorException.fatal(
+                            WITHDRAWAL_OPERATION,
+                            "Cannot rollback withdrawal $irohaHash",
+                            ex
+                        )
+                    })
+            }
+            WithdrawalState.SUBMITTED, WithdrawalState.SUCCEEDED -> {
+                logger.error("Withdrawal $irohaHash is given up in state $state, it is left for manual handling", cause)
+                withdrawalJournal.record(irohaHash, WithdrawalState.DEAD_LETTER)
+            }
+            else -> logger.info { "Withdrawal $irohaHash is already $state" }
+        }
+    }
+
+    /**
+     * Send withdrawal transaction to Ethereum
+     * @return [WithdrawalState.SUCCEEDED] or [WithdrawalState.FAILED]
+     */
+    private fun submitWithdrawal(
+        event: WithdrawalServiceOutputEvent,
+        irohaHash: String
+    ): WithdrawalState {
+        withdrawalJournal.record(irohaHash, WithdrawalState.COLLECTED)
+        var submittedAt = 0L
+        val transactionReceipt = try {
+            ethConsumer.consume(event) { ethTxHash, nonce ->
+                submittedAt = System.nanoTime()
+                withdrawalJournal.record(irohaHash, WithdrawalState.SUBMITTED, ethTxHash, nonce)
+            }
+        } catch (e: Exception) {
+            logger.error("Withdrawal error", e)
+            null
+        }
+        if (transactionReceipt != null) {
+            if (submittedAt != 0L)
+                EthMetrics.record(EthMetrics.WITHDRAWAL_RECEIPT, System.nanoTime() - submittedAt)
+            return if (ethConsumer.isWithdrawn(event, transactionReceipt))
+                WithdrawalState.SUCCEEDED
+            else
+                WithdrawalState.FAILED
+        }
+        val record = withdrawalJournal.get(irohaHash)!!
+        if (record.state == WithdrawalState.SUBMITTED) {
+            // transaction is sent, it is unsafe to rollback until its result is known
+            return checkReceipt(event, record, wait = false)
+        }
+        return WithdrawalState.FAILED
+    }
+
+    /**
+     * Check result of sent withdrawal transaction
+     * @return [WithdrawalState.SUCCEEDED] or [WithdrawalState.FAILED]
+     * @throws D3ErrorException if transaction is not mined
+     */
+    private fun checkReceipt(
+        event: WithdrawalServiceOutputEvent,
+        record: WithdrawalJournalRecord,
+        wait: Boolean = true
+    ): WithdrawalState {
+        val transactionReceipt = ethConsumer.getReceipt(record.ethTxHash!!, wait)
+            ?: throw D3ErrorException.fatal(
+                WITHDRAWAL_OPERATION,
+                "Result of Ethereum tx ${record.ethTxHash} with nonce ${record.nonce} is unknown"
+            )
+        return if (ethConsumer.isWithdrawn(event, transactionReceipt))
+            WithdrawalState.SUCCEEDED
+        else
+            WithdrawalState.FAILED
+    }
+
     private fun initEthConsumer(withdrawalService: WithdrawalService): Result<Unit, Exception> {
         logger.info { "Init Ether withdrawal consumer" }
 
         return Result.of {
+            val workQueue = WithdrawalWorkQueue(
+                withdrawalConfig.withdrawalWorkers,
+                withdrawalConfig.withdrawalMaxAttempts,
+                { irohaEvent ->
+                    withdrawalService.onIrohaEvent(irohaEvent).fold(
+                        { events -> events.forEach { event -> withdraw(withdrawalService, event) } },
+                        { ex ->
+                            throw D3ErrorException.warning(
+                                WITHDRAWAL_OPERATION,
+                                "Cannot collect proof of withdrawal $irohaEvent",
+                                ex
+                            )
+                        })
+                },
+                { irohaEvent, ex -> giveUp(withdrawalService, irohaEvent, ex) }
+            )
             withdrawalService.output()
-                .observeOn(
-                    Schedulers.from(
-                        createPrettyFixThreadPool(
-                            ETH_WITHDRAWAL_SERVICE_NAME,
-                            "event-handler"
-                        )
-                    )
-                )
                 .subscribe(
-                    { res ->
-                        res.map { withdrawalEvents ->
-                            withdrawalEvents.forEach { event ->
-                                try {
-                                    val transactionReceipt = ethConsumer.consume(event)
-                                    if (transactionReceipt == null || transactionReceipt.status == FAILED_STATUS) {
-                                        throw D3ErrorException.fatal(
-                                            WITHDRAWAL_OPERATION,
-                                            "Ethereum transaction has failed"
-                                        )
-                                    } else {
-                                        withdrawalService.finalizeWithdrawal(event)
-                                            .failure { ex ->
-                                                throw D3ErrorException.fatal(
-                                                    WITHDRAWAL_OPERATION,
-                                                    "Cannot finalize withdrawal"
-                                                )
-                                            }
-                                    }
-                                } catch (e: Exception) {
-                                    logger.error("Withdrawal error, perform rollback", e)
-                                    withdrawalService.returnIrohaAssets(event).failure {
-                                        logger.error("Rollback error", it)
-                                    }
-                                }
-                            }
-                        }.failure { ex ->
-                            logger.error("Cannot consume withdrawal event", ex)
+                    { (withdrawalEvents, ack) ->
+                        workQueue.submit(withdrawalEvents) {
+                            ack()
+                            withdrawalJournal.prune(withdrawalEvents.mapNotNull { irohaEvent ->
+                                (irohaEvent as? SideChainEvent.IrohaEvent.SideChainTransfer)?.hash
+                            })
                         }
-                        //TODO call ack()
                     }, { ex ->
                         logger.error("Withdrawal observable error", ex)
                         exitProcess(1)
@@ -185,9 +402,18 @@ class WithdrawalServiceInitialization(
         logger.info {
             "Start withdrawal service init with iroha at ${withdrawalConfig.iroha.hostname}:${withdrawalConfig.iroha.port}"
         }
-        return initIrohaChain()
+        withdrawalJournal.getUnfinished().forEach { record ->
+            logger.warn { "Unfinished withdrawal $record is resumed on redelivery" }
+        }
+        withdrawalJournal.getDeadLetters().forEach { record ->
+            logger.error { "Withdrawal $record is left for manual handling" }
+        }
+        return relayIndex.load()
+            .flatMap { initRelayVacuum() }
+            .flatMap { initIrohaChain() }
             .map { initWithdrawalService(it) }
             .flatMap { initEthConsumer(it) }
+            .map { vacuumScheduler.start() }
             .map { WithdrawalServiceEndpoint(withdrawalConfig.port) }
             .flatMap { chainListener.listen() }
     }
@@ -196,6 +422,6 @@ class WithdrawalServiceInitialization(
      * Logger
      */
     companion object : KLogging() {
-        private const val FAILED_STATUS = "0x0"
+        private const val ETHER_ASSET_ID = "$ETH_NAME#$ETH_DOMAIN"
     }
 }
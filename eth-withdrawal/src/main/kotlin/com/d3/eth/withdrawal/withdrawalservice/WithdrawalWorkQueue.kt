@@ -0,0 +1,140 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.eth.withdrawal.withdrawalservice
+
+import com.d3.commons.sidechain.SideChainEvent
+import com.d3.commons.util.createPrettySingleThreadPool
+import mu.KLogging
+import java.io.Closeable
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Failure of withdrawal that cannot succeed on retry, e.g. unknown relay or token
+ */
+class PermanentWithdrawalException(message: String, cause: Throwable? = null) : Exception(message, cause)
+
+/**
+ * Work queue between [WithdrawalService] output and Ethereum consumer.
+ * Withdrawals are partitioned into lanes by client account, which has one relay, so withdrawals of one account are
+ * performed in order while withdrawals of different accounts, including proof collection, are performed concurrently.
+ * Iroha block is acknowledged only after all its withdrawals are completed or given up,
+ * so unfinished work is redelivered by RabbitMQ in case of crash or restart.
+ * Failed withdrawal is retried in its lane with exponential backoff at most [maxAttempts] times.
+ * Permanent failure, i.e. [PermanentWithdrawalException] or [IllegalArgumentException] in the cause chain,
+ * is not retried. Withdrawal that has failed permanently or has run out of attempts is given up with [onFailure],
+ * which is retried until it succeeds, so the lane and the block are not held by the withdrawal forever.
+ * @param workers - number of parallel lanes
+ * @param maxAttempts - maximal number of attempts of a withdrawal
+ * @param handler - collects proof, performs withdrawal and finalizes or rolls it back, throws if it is not completed
+ * @param onFailure - gives up withdrawal, throws if it cannot be given up now
+ */
+class WithdrawalWorkQueue(
+    workers: Int,
+    private val maxAttempts: Int,
+    private val handler: (SideChainEvent.IrohaEvent) -> Unit,
+    private val onFailure: (SideChainEvent.IrohaEvent, Exception) -> Unit
+) : Closeable {
+
+    private val closed = AtomicBoolean(false)
+
+    private val lanes: List<ExecutorService> = List(workers) { lane ->
+        createPrettySingleThreadPool(ETH_WITHDRAWAL_SERVICE_NAME, "withdrawal-worker-$lane")
+    }
+
+    init {
+        logger.info { "Init withdrawal work queue with $workers workers" }
+    }
+
+    /**
+     * Enqueue withdrawals of one Iroha block
+     * @param events - withdrawal events of the block
+     * @param ack - acknowledgement of the block, called when all [events] are handled successfully
+     */
+    fun submit(events: List<SideChainEvent.IrohaEvent>, ack: () -> Unit) {
+        if (events.isEmpty()) {
+            ack()
+            return
+        }
+        val pending = AtomicInteger(events.size)
+        events.forEach { event ->
+            laneOf(event).execute {
+                if (handle(event) && pending.decrementAndGet() == 0) {
+                    ack()
+                }
+            }
+        }
+    }
+
+    /**
+     * Handle withdrawal event, retry with backoff until it succeeds or is given up
+     * @return true if the event is handled or given up, false if the queue is closed before
+     */
+    private fun handle(event: SideChainEvent.IrohaEvent): Boolean {
+        var attempts = 0
+        var failure: Exception? = null
+        var backoff = RETRY_INITIAL_MILLIS
+        while (!closed.get()) {
+            try {
+                val permanentFailure = failure
+                if (permanentFailure == null)
+                    handler(event)
+                else
+                    onFailure(event, permanentFailure)
+                return true
+            } catch (e: Exception) {
+                if (failure != null) {
+                    logger.error("Cannot give up withdrawal event $event, retry in $backoff ms", e)
+                } else {
+                    attempts++
+                    if (isPermanent(e) || attempts >= maxAttempts) {
+                        logger.error("Withdrawal event $event has failed after $attempts attempts, give it up", e)
+                        failure = e
+                        continue
+                    }
+                    logger.warn("Cannot handle withdrawal event $event, attempt $attempts of $maxAttempts, retry in $backoff ms", e)
+                }
+            }
+            try {
+                Thread.sleep(backoff)
+            } catch (e: InterruptedException) {
+                Thread.currentThread().interrupt()
+                break
+            }
+            backoff = minOf(backoff * 2, RETRY_MAX_MILLIS)
+        }
+        logger.warn { "Withdrawal queue is closed, event $event will be redelivered" }
+        return false
+    }
+
+    private fun isPermanent(e: Exception) = generateSequence<Throwable>(e) { it.cause }
+        .any { cause -> cause is PermanentWithdrawalException || cause is IllegalArgumentException }
+
+    /**
+     * Get lane of withdrawal event, events of the same account are always put into the same lane
+     */
+    private fun laneOf(event: SideChainEvent.IrohaEvent): ExecutorService {
+        val key = when (event) {
+            is SideChainEvent.IrohaEvent.SideChainTransfer -> event.srcAccount
+            else -> event.toString()
+        }
+        return lanes[Math.floorMod(key.hashCode(), lanes.size)]
+    }
+
+    override fun close() {
+        closed.set(true)
+        lanes.forEach { it.shutdownNow() }
+    }
+
+    /**
+     * Logger
+     */
+    companion object : KLogging() {
+        private const val RETRY_INITIAL_MILLIS = 1_000L
+        private const val RETRY_MAX_MILLIS = 60_000L
+    }
+}
@@ -13,6 +13,7 @@ import com.d3.commons.config.loadRawLocalConfigs
 import com.d3.commons.model.IrohaCredential
 import integration.eth.config.EthereumPasswords
 import integration.eth.config.loadEthPasswords
+import com.d3.eth.provider.EthCredentialsProvider
 import com.d3.eth.vacuum.RelayVacuumConfig
 import com.github.kittinunf.result.*
 import jp.co.soramitsu.iroha.java.IrohaAPI
@@ -65,6 +66,8 @@ fun executeWithdrawal(
     rmqConfig: RMQConfig
 ) {
     logger.info { "Run withdrawal service" }
+    // decrypt keystore while Iroha connections are set up
+    EthCredentialsProvider.prewarm(passwordConfig)
     val irohaAPI = IrohaAPI(withdrawalConfig.iroha.hostname, withdrawalConfig.iroha.port)
 
     Result.of {
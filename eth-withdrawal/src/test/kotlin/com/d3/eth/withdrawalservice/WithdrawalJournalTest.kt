@@ -0,0 +1,71 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.eth.withdrawalservice
+
+import com.d3.eth.withdrawal.withdrawalservice.WithdrawalJournal
+import com.d3.eth.withdrawal.withdrawalservice.WithdrawalState
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Test
+import java.io.File
+import java.math.BigInteger
+
+class WithdrawalJournalTest {
+
+    private val path = createTempFile("withdrawal_journal").absolutePath
+
+    @AfterEach
+    fun tearDown() {
+        File(path).delete()
+    }
+
+    /**
+     * @given journal with finished withdrawals of acknowledged blocks and an unfinished withdrawal
+     * @when finished withdrawals are pruned and journal is reopened
+     * @then only the unfinished withdrawal is left and the file is compacted
+     */
+    @Test
+    fun finishedWithdrawalsArePruned() {
+        val finished = (1..1000).map { index -> "hash$index" }
+        WithdrawalJournal(path).use { journal ->
+            journal.record("unfinished", WithdrawalState.SUBMITTED, "0xeth", BigInteger.TEN)
+            finished.forEach { hash ->
+                journal.record(hash, WithdrawalState.COLLECTED)
+                journal.record(hash, WithdrawalState.FINALIZED)
+            }
+            journal.prune(finished.plus("unfinished"))
+
+            assertNull(journal.get("hash1"))
+            assertEquals(1, File(path).readLines().size)
+        }
+
+        WithdrawalJournal(path).use { journal ->
+            assertEquals(listOf("unfinished"), journal.getUnfinished().map { record -> record.irohaHash })
+            assertEquals(BigInteger.TEN, journal.get("unfinished")!!.nonce)
+        }
+    }
+
+    /**
+     * @given journal with a withdrawal given up after Ethereum transaction is sent
+     * @when the withdrawal is pruned and journal is reopened
+     * @then the withdrawal is kept as dead letter and is not resumed
+     */
+    @Test
+    fun deadLettersAreKept() {
+        WithdrawalJournal(path).use { journal ->
+            journal.record("dead", WithdrawalState.SUBMITTED, "0xeth", BigInteger.ONE)
+            journal.record("dead", WithdrawalState.DEAD_LETTER)
+            journal.prune(listOf("dead"))
+        }
+
+        WithdrawalJournal(path).use { journal ->
+            assertEquals(listOf("dead"), journal.getDeadLetters().map { record -> record.irohaHash })
+            assertEquals("0xeth", journal.get("dead")!!.ethTxHash)
+            assertEquals(emptyList<Any>(), journal.getUnfinished())
+        }
+    }
+}
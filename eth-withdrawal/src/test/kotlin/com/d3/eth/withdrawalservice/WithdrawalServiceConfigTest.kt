@@ -120,6 +120,12 @@ class WithdrawalServiceConfigTest {
         )
         val ethIrohaDepositQueue = "iroha-withdrawal-rmq-queue-name"
         environmentVariables.set("WITHDRAWAL_ETHIROHAWITHDRAWALQUEUE", ethIrohaDepositQueue)
+        val withdrawalWorkers = "8"
+        environmentVariables.set("WITHDRAWAL_WITHDRAWALWORKERS", withdrawalWorkers)
+        val withdrawalMaxAttempts = "5"
+        environmentVariables.set("WITHDRAWAL_WITHDRAWALMAXATTEMPTS", withdrawalMaxAttempts)
+        val withdrawalJournalFilePath = "withdrawal/journal/path..."
+        environmentVariables.set("WITHDRAWAL_WITHDRAWALJOURNALFILEPATH", withdrawalJournalFilePath)
 
         // load configs
         val withdrawalConfig = loadLocalConfigs(
@@ -166,5 +172,8 @@ class WithdrawalServiceConfigTest {
             withdrawalConfig.ethereum.confirmationPeriod
         )
         assertEquals(ethIrohaDepositQueue, withdrawalConfig.ethIrohaWithdrawalQueue)
+        assertEquals(withdrawalWorkers.toInt(), withdrawalConfig.withdrawalWorkers)
+        assertEquals(withdrawalMaxAttempts.toInt(), withdrawalConfig.withdrawalMaxAttempts)
+        assertEquals(withdrawalJournalFilePath, withdrawalConfig.withdrawalJournalFilePath)
     }
 }
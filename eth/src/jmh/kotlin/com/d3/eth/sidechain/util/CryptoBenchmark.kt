@@ -0,0 +1,48 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.eth.sidechain.util
+
+import org.openjdk.jmh.annotations.*
+import org.web3j.crypto.Hash
+import java.math.BigInteger
+import java.util.concurrent.TimeUnit
+
+/**
+ * Compares packed withdrawal hashing with hex concatenation hashing used before
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+open class CryptoBenchmark {
+
+    private val token = "0x8ad5ef2ba9ae2c0d0eef9e3c9b2d9f7c5d1e8a01"
+    private val amount = "1500000000000000000"
+    private val tokenAmount = TokenAmount.fromUnits(amount, 18)
+    private val account = "0xf2b0fe9cec5d1a0b6e45ff1c4a7d2e3f4a5b6c7d"
+    private val irohaHash = "5d7fc1b6a0bd0a7e4b3c2d1e0f9a8b7c6d5e4f3a2b1c0d9e8f7a6b5c4d3e2f1a"
+    private val relay = "0x1e5b4a8c2f3d7e6a9b0c1d2e3f4a5b6c7d8e9f0a"
+
+    @Benchmark
+    fun hashToWithdrawHex() = Hash.sha3(
+        token.replace("0x", "")
+                + String.format("%064x", BigInteger(amount)).replace("0x", "")
+                + account.replace("0x", "")
+                + irohaHash.replace("0x", "")
+                + relay.replace("0x", "")
+    )
+
+    @Benchmark
+    fun hashToWithdrawPacked() = hashToWithdraw(token, amount, account, irohaHash, relay)
+
+    @Benchmark
+    fun hashToWithdrawPackedTokenAmount() = hashToWithdraw(token, tokenAmount, account, irohaHash, relay)
+
+    @Benchmark
+    fun hashToAddAndRemovePeerHex() = Hash.sha3(account.replace("0x", "") + irohaHash.replace("0x", ""))
+
+    @Benchmark
+    fun hashToAddAndRemovePeerPacked() = hashToAddAndRemovePeer(account, irohaHash)
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.eth.sidechain.util
+
+import org.openjdk.jmh.annotations.*
+import org.web3j.crypto.ECDSASignature
+import org.web3j.crypto.ECKeyPair
+import org.web3j.crypto.Hash
+import org.web3j.crypto.Keys
+import org.web3j.crypto.Sign
+import java.math.BigInteger
+import java.util.concurrent.TimeUnit
+
+/**
+ * Compares [EthSignerImpl] and [EthSignatureVerifierImpl] with web3j signing and brute force recovery
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+open class EthSignerBenchmark {
+
+    private lateinit var keyPair: ECKeyPair
+    private lateinit var signer: EthSigner
+    private val verifier = EthSignatureVerifierImpl()
+    private val message = prepareDataToSign("0x5d7fc1b6a0bd0a7e4b3c2d1e0f9a8b7c6d5e4f3a2b1c0d9e8f7a6b5c4d3e2f1a")
+    private lateinit var signature: Sign.SignatureData
+
+    @Setup
+    fun setup() {
+        keyPair = Keys.createEcKeyPair()
+        signer = EthSignerImpl(keyPair)
+        signature = signer.signMessage(message)
+    }
+
+    @Benchmark
+    fun signWeb3j() = Sign.signMessage(message, keyPair)
+
+    @Benchmark
+    fun signPrecomputed() = signer.signMessage(message)
+
+    /**
+     * Recovery as registration proof check did it: try recovery ids until the key matches
+     */
+    @Benchmark
+    fun recoverBruteForce(): String? {
+        val address = Keys.getAddress(keyPair)
+        val ecdsaSignature = ECDSASignature(BigInteger(1, signature.r), BigInteger(1, signature.s))
+        for (i in 0..3) {
+            val res = Sign.recoverFromSignature(i, ecdsaSignature, Hash.sha3(message)) ?: continue
+            if (Keys.getAddress(res) == address)
+                return address
+        }
+        return null
+    }
+
+    @Benchmark
+    fun recoverByV() = verifier.recoverMessageAddress(message, signature)
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.eth.sidechain.util
+
+import org.openjdk.jmh.annotations.*
+import java.math.BigDecimal
+import java.math.BigInteger
+import java.util.concurrent.TimeUnit
+
+/**
+ * Compares [TokenAmount] conversions with string based BigDecimal conversions used before
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+open class TokenAmountBenchmark {
+
+    @Param("0.12345678", "12345.6789", "123456789012.12345678")
+    lateinit var amount: String
+
+    @Param("8", "18")
+    var precision: Int = 0
+
+    private lateinit var units: BigInteger
+
+    @Setup
+    fun setup() {
+        units = BigDecimal(amount).scaleByPowerOfTen(precision).toBigInteger()
+    }
+
+    /**
+     * Iroha amount to Ethereum units, as done on withdrawal
+     */
+    @Benchmark
+    fun decimalToUnitsBigDecimal() = BigDecimal(amount).scaleByPowerOfTen(precision).toPlainString()
+
+    @Benchmark
+    fun decimalToUnitsTokenAmount() = TokenAmount.fromDecimal(amount, precision).toUnitsString()
+
+    /**
+     * Ethereum units to Iroha amount, as done on deposit
+     */
+    @Benchmark
+    fun unitsToDecimalBigDecimal() = BigDecimal(units, precision).toPlainString()
+
+    @Benchmark
+    fun unitsToDecimalTokenAmount() = TokenAmount.fromUnits(units, precision).toDecimalString()
+
+    /**
+     * Iroha amount to uint256 word, as done for withdrawal proof hashing
+     */
+    @Benchmark
+    fun decimalToWordString() = String.format(
+        "%064x",
+        BigInteger(BigDecimal(amount).scaleByPowerOfTen(precision).toPlainString())
+    )
+
+    @Benchmark
+    fun decimalToWordTokenAmount() = TokenAmount.fromDecimal(amount, precision).toBytes32()
+}
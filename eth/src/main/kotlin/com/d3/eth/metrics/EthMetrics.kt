@@ -0,0 +1,149 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.eth.metrics
+
+import io.micrometer.core.instrument.DistributionSummary
+import io.micrometer.core.instrument.Tags
+import io.micrometer.core.instrument.Timer
+import io.micrometer.prometheus.PrometheusConfig
+import io.micrometer.prometheus.PrometheusMeterRegistry
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Metrics of the service process. They are exposed in Prometheus text format on /metrics
+ * of the service HTTP server.
+ * Tags are given as pairs of key and value: `"method", "eth_call"`.
+ */
+object EthMetrics {
+
+    /** Number of the last Ethereum block seen by chain listener */
+    const val CHAIN_HEAD_BLOCK = "eth.chain.head.block"
+
+    /** Number of the next Ethereum block chain listener reads */
+    const val CHAIN_CURSOR_BLOCK = "eth.chain.cursor.block"
+
+    /** Number of blocks chain listener is behind the head */
+    const val CHAIN_LAG_BLOCKS = "eth.chain.lag.blocks"
+
+    /** Number of the last Ethereum block reported by node, tagged with node */
+    const val NODE_HEAD_BLOCK = "eth.node.head.block"
+
+    /** Parse time of Ethereum block, its count gives blocks rate */
+    const val CHAIN_BLOCK_PARSE = "eth.chain.block.parse"
+
+    /** Number of lookups in Ethereum block cache, tagged with kind: block or receipt, and result: hit or miss */
+    const val BLOCK_CACHE_LOOKUPS = "eth.block.cache.lookups"
+
+    /** Latency of Ethereum JSON-RPC call, tagged with method and error class */
+    const val RPC_CALL = "eth.rpc.call"
+
+    /** Number of hedged Ethereum reads, tagged with method and winner: first or hedge */
+    const val RPC_HEDGES = "eth.rpc.hedges"
+
+    /** Time hedge answered before the first read, tagged with method */
+    const val RPC_HEDGE_SAVED = "eth.rpc.hedge.saved"
+
+    /** Size of Ethereum JSON-RPC request, tagged with method */
+    const val RPC_REQUEST_SIZE = "eth.rpc.request.size"
+
+    /** Size of Ethereum JSON-RPC response, tagged with method */
+    const val RPC_RESPONSE_SIZE = "eth.rpc.response.size"
+
+    /** Latency of proof request to notary, tagged with notary */
+    const val PROOF_COLLECTION = "eth.proof.collection"
+
+    /** Time from withdrawal start to its finalization or rollback, tagged with outcome */
+    const val WITHDRAWAL_DURATION = "eth.withdrawal.duration"
+
+    /** Time from Ethereum withdrawal transaction submit to its receipt */
+    const val WITHDRAWAL_RECEIPT = "eth.withdrawal.receipt"
+
+    /** Number of relay sweeps to master, tagged with outcome */
+    const val VACUUM_SWEEPS = "eth.vacuum.sweeps"
+
+    /** Number of deployed relays, tagged with outcome */
+    const val RELAY_DEPLOYMENTS = "eth.relay.deployments"
+
+    /** Time from Ethereum block of deposit to its detection by chain handler, tagged with asset */
+    const val DEPOSIT_DETECTION = "eth.deposit.detection"
+
+    /** Time from deposit detection to its handover to notary, tagged with asset */
+    const val DEPOSIT_QUEUE = "eth.deposit.queue"
+
+    /** Time from deposit handover to notary to Iroha commit, tagged with asset */
+    const val DEPOSIT_COMMIT = "eth.deposit.commit"
+
+    /** Time from Ethereum block of deposit to Iroha commit, tagged with asset */
+    const val DEPOSIT_LATENCY = "eth.deposit.latency"
+
+    /** Content type of [scrape] response */
+    const val CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8"
+
+    private val registry = PrometheusMeterRegistry(PrometheusConfig.DEFAULT)
+
+    // gauges hold weak references, so their values are kept here
+    private val gaugeValues = ConcurrentHashMap<List<String>, AtomicLong>()
+
+    /**
+     * Get all metrics in Prometheus text format
+     */
+    fun scrape(): String = registry.scrape()
+
+    /**
+     * Run [action] and record its duration to timer [name], the duration is recorded on failure too
+     * @return result of [action]
+     */
+    fun <T> time(name: String, vararg tags: String, action: () -> T): T {
+        val start = System.nanoTime()
+        try {
+            return action()
+        } finally {
+            record(name, System.nanoTime() - start, *tags)
+        }
+    }
+
+    /**
+     * Record duration to timer [name]
+     * @param nanos - duration in nanoseconds
+     */
+    fun record(name: String, nanos: Long, vararg tags: String) {
+        Timer.builder(name)
+            .tags(*tags)
+            .publishPercentileHistogram()
+            .register(registry)
+            .record(nanos, TimeUnit.NANOSECONDS)
+    }
+
+    /**
+     * Record size to distribution summary [name]
+     * @param bytes - size in bytes
+     */
+    fun recordSize(name: String, bytes: Long, vararg tags: String) {
+        DistributionSummary.builder(name)
+            .baseUnit("bytes")
+            .tags(*tags)
+            .register(registry)
+            .record(bytes.toDouble())
+    }
+
+    /**
+     * Increment counter [name]
+     */
+    fun increment(name: String, vararg tags: String) {
+        registry.counter(name, *tags).increment()
+    }
+
+    /**
+     * Set value of gauge [name]
+     */
+    fun setGauge(name: String, value: Long, vararg tags: String) {
+        gaugeValues.computeIfAbsent(listOf(name).plus(tags)) {
+            registry.gauge(name, Tags.of(*tags), AtomicLong())!!
+        }.set(value)
+    }
+}
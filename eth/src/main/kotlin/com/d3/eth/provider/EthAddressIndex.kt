@@ -0,0 +1,82 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.eth.provider
+
+import com.d3.eth.sidechain.iroha.IrohaBlockView
+import com.github.kittinunf.result.Result
+import com.github.kittinunf.result.map
+import mu.KLogging
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * In-memory reverse index of Ethereum addresses (Iroha account id -> Ethereum address).
+ * It is bulk loaded from [addressProvider] on start and then updated from registration commands
+ * in Iroha blocks, so lookups do not query Iroha.
+ *
+ * @param addressProvider - provider of addresses stored in Iroha, used for bulk load and on index miss
+ * @param storageAccountId - account that contains details (ethereum address -> iroha account id)
+ * @param setterAccountId - account that sets details
+ */
+class EthAddressIndex(
+    private val addressProvider: EthAddressProvider,
+    private val storageAccountId: String,
+    private val setterAccountId: String
+) : EthAddressProvider {
+
+    // (iroha account id -> ethereum address)
+    private val addresses = ConcurrentHashMap<String, String>()
+
+    /**
+     * Load all registered addresses
+     */
+    fun load(): Result<Unit, Exception> {
+        return addressProvider.getAddresses().map { registered ->
+            registered.forEach { (address, accountId) -> addresses[accountId] = address }
+            logger.info { "Address index of $storageAccountId is loaded with ${addresses.size} addresses" }
+        }
+    }
+
+    /**
+     * Index addresses registered in Iroha block
+     * @param view - indexed Iroha block
+     */
+    fun onBlock(view: IrohaBlockView) {
+        view.getDetailsOf(storageAccountId)
+            .filter { (_, creatorAccountId, detail) ->
+                creatorAccountId == setterAccountId && detail.value != FREE
+            }
+            .forEach { (_, _, detail) ->
+                logger.info { "Index address ${detail.key} of ${detail.value}" }
+                addresses[detail.value] = detail.key
+            }
+    }
+
+    /**
+     * Returns indexed addresses in form of (ethereum address -> iroha account id)
+     */
+    override fun getAddresses(): Result<Map<String, String>, Exception> = Result.of {
+        addresses.entries.associate { (accountId, address) -> address to accountId }
+    }
+
+    /**
+     * Get address belonging to [irohaAccountId], Iroha is queried only if address is not indexed
+     */
+    override fun getAddressByAccountId(irohaAccountId: String): Result<Optional<String>, Exception> {
+        addresses[irohaAccountId]?.let { address -> return Result.of { Optional.of(address) } }
+        return addressProvider.getAddressByAccountId(irohaAccountId).map { address ->
+            address.ifPresent { addresses[irohaAccountId] = it }
+            address
+        }
+    }
+
+    /**
+     * Logger
+     */
+    companion object : KLogging() {
+        private const val FREE = "free"
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.eth.provider
+
+import integration.eth.config.EthereumPasswords
+import mu.KLogging
+import org.web3j.crypto.Credentials
+import org.web3j.crypto.WalletUtils
+import java.io.File
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Provides with Ethereum credentials of keystore files.
+ * Keystore decryption runs scrypt key derivation that takes long and lots of memory by design,
+ * so every keystore is decrypted once per process and the credentials are shared.
+ * Concurrent requests of the same keystore wait for the single decryption.
+ */
+object EthCredentialsProvider : KLogging() {
+
+    // (keystore path, password) -> credentials
+    private val credentials = ConcurrentHashMap<Pair<String, String>, CompletableFuture<Credentials>>()
+
+    /**
+     * Get credentials of keystore in [ethereumPasswords]
+     * @param ethereumPasswords - config with keystore path and password
+     */
+    fun getCredentials(ethereumPasswords: EthereumPasswords) =
+        getCredentials(ethereumPasswords.credentialsPassword, ethereumPasswords.credentialsPath)
+
+    /**
+     * Get credentials of keystore, the keystore is decrypted on the first call
+     * @param password - keystore password
+     * @param path - keystore path
+     * @throws Exception if the keystore cannot be decrypted, next call tries again
+     */
+    fun getCredentials(password: String, path: String): Credentials {
+        val future = getOrDecrypt(password, path) { decrypt -> decrypt.run() }
+        try {
+            return future.join()
+        } catch (e: CompletionException) {
+            throw e.cause ?: e
+        }
+    }
+
+    /**
+     * Start decryption of keystore in [ethereumPasswords] in background,
+     * so the credentials are ready by the time the service needs them
+     * @param ethereumPasswords - config with keystore path and password
+     */
+    fun prewarm(ethereumPasswords: EthereumPasswords) {
+        getOrDecrypt(ethereumPasswords.credentialsPassword, ethereumPasswords.credentialsPath) { decrypt ->
+            val thread = Thread(decrypt, "eth-credentials-prewarm")
+            thread.isDaemon = true
+            thread.start()
+        }
+    }
+
+    /**
+     * Get credentials future of keystore, decryption is started with [launch] if it is not started yet
+     * @param launch - runs the decryption
+     */
+    private fun getOrDecrypt(
+        password: String,
+        path: String,
+        launch: (Runnable) -> Unit
+    ): CompletableFuture<Credentials> {
+        val key = Pair(File(path).canonicalPath, password)
+        var created: CompletableFuture<Credentials>? = null
+        val future = credentials.computeIfAbsent(key) { CompletableFuture<Credentials>().also { created = it } }
+        created?.let { decrypted ->
+            launch(Runnable {
+                try {
+                    val start = System.currentTimeMillis()
+                    decrypted.complete(WalletUtils.loadCredentials(password, path))
+                    logger.info { "Keystore $path decrypted in ${System.currentTimeMillis() - start} ms" }
+                } catch (e: Exception) {
+                    logger.error("Cannot decrypt keystore $path", e)
+                    credentials.remove(key, decrypted)
+                    decrypted.completeExceptionally(e)
+                }
+            })
+        }
+        return future
+    }
+}
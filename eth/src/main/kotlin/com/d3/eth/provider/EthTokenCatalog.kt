@@ -0,0 +1,48 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.eth.provider
+
+/**
+ * Immutable snapshot of Ethereum tokens registered in Iroha.
+ *
+ * @param ethAnchored - Ethereum anchored tokens (Ethereum address -> Iroha asset id)
+ * @param irohaAnchored - Iroha anchored tokens (Ethereum address -> Iroha asset id)
+ * @param precisions - known precisions of tokens (Iroha asset id -> precision)
+ */
+class EthTokenCatalog(
+    val ethAnchored: Map<String, String>,
+    val irohaAnchored: Map<String, String>,
+    private val precisions: Map<String, Int> = emptyMap()
+) {
+    // (Iroha asset id -> Ethereum address), Ethereum anchored token wins in case of conflict
+    private val addresses = irohaAnchored.plus(ethAnchored)
+        .entries
+        .associate { (address, assetId) -> assetId to address }
+
+    // (Iroha asset id -> is Iroha anchored)
+    private val anchoring = ethAnchored.values.associate { it to false }
+        .plus(irohaAnchored.values.associate { it to true })
+
+    /** Return Ethereum address of [assetId] or null if token is unknown */
+    fun getAddress(assetId: String): String? = addresses[assetId]
+
+    /** Return true if [assetId] is Iroha anchored or null if token is unknown */
+    fun isIrohaAnchored(assetId: String): Boolean? = anchoring[assetId]
+
+    /** Return precision of [assetId] or null if it is not known yet */
+    fun getPrecision(assetId: String): Int? = precisions[assetId]
+
+    /** Return all known precisions */
+    fun getPrecisions(): Map<String, Int> = precisions
+
+    /** Return copy of the catalog with precision of [assetId] */
+    fun withPrecision(assetId: String, precision: Int) =
+        EthTokenCatalog(ethAnchored, irohaAnchored, precisions.plus(assetId to precision))
+
+    /** Return copy of the catalog with more tokens */
+    fun withTokens(ethAnchored: Map<String, String>, irohaAnchored: Map<String, String>) =
+        EthTokenCatalog(this.ethAnchored.plus(ethAnchored), this.irohaAnchored.plus(irohaAnchored), precisions)
+}
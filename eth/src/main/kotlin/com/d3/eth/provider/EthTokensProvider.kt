@@ -35,4 +35,10 @@ interface EthTokensProvider {
 
     /** Return true if asset is Iroha anchored. */
     fun isIrohaAnchored(assetId: String): Result<Boolean, Exception>
+
+    /**
+     * Return consistent snapshot of all tokens, loaded from Iroha at once.
+     * Use it to look up many tokens without querying Iroha for every one.
+     */
+    fun getTokenCatalog(): Result<EthTokenCatalog, Exception>
 }
@@ -6,11 +6,15 @@
 package com.d3.eth.provider
 
 import com.d3.commons.sidechain.iroha.util.IrohaQueryHelper
+import com.d3.eth.sidechain.iroha.IrohaBlockView
 import com.github.kittinunf.result.Result
 import com.github.kittinunf.result.fanout
 import com.github.kittinunf.result.flatMap
 import com.github.kittinunf.result.map
 import mu.KLogging
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicReference
 
 const val ETH_NAME = "ether"
 const val ETH_DOMAIN = "ethereum"
@@ -19,6 +23,8 @@ const val ETH_ADDRESS = "0x0000000000000000000000000000000000000000"
 
 /**
  * Implementation of [EthTokensProvider] with Iroha storage.
+ * Tokens are served from in-memory snapshot. The snapshot is reloaded from Iroha once it is older than
+ * [refreshPeriodMillis] and is updated in between from token registrations in Iroha blocks passed to [onBlock].
  *
  * @param irohaQueryHelper - iroha queries network layer
  * @param ethAnchoredTokenStorageAccount - tokenStorageAccount that contains details about Ethereum
@@ -29,13 +35,15 @@ const val ETH_ADDRESS = "0x0000000000000000000000000000000000000000"
  * anchored ERC20 tokens
  * @param irohaAnchoredTokenSetterAccount - tokenSetterAccount that set details about ERC20 tokens
  * anchored in Iroha
+ * @param refreshPeriodMillis - age of the snapshot it is reloaded at, also time an unknown asset is remembered for
  */
 class EthTokensProviderImpl(
     private val irohaQueryHelper: IrohaQueryHelper,
     private val ethAnchoredTokenStorageAccount: String,
     private val ethAnchoredTokenSetterAccount: String,
     private val irohaAnchoredTokenStorageAccount: String,
-    private val irohaAnchoredTokenSetterAccount: String
+    private val irohaAnchoredTokenSetterAccount: String,
+    private val refreshPeriodMillis: Long = DEFAULT_REFRESH_PERIOD_MILLIS
 ) : EthTokensProvider {
 
     init {
@@ -48,11 +56,25 @@ class EthTokensProviderImpl(
         }
     }
 
+    // the last loaded snapshot of tokens, it is swapped as a whole on refresh
+    private val catalog = AtomicReference<EthTokenCatalog>()
+
+    // time the snapshot was loaded at
+    @Volatile
+    private var loadedAt = 0L
+
+    // set while stale snapshot is reloaded, other callers are served with the stale one meanwhile
+    private val refreshing = AtomicBoolean()
+
+    // (asset id -> time it was not found at), such assets are not looked up in Iroha again until expired
+    private val unknownAssets = ConcurrentHashMap<String, Long>()
+
     /**
-     * Get all Ethereum tokens.
-     * @returns map (EthreumAddress -> TokenName)
+     * Load tokens from Iroha and replace the snapshot. Known precisions are kept since they never change.
+     * @return fresh snapshot
      */
-    override fun getEthTokens(): Result<Map<String, String>, Exception> {
+    fun refresh(): Result<EthTokenCatalog, Exception> {
+        val startedAt = System.currentTimeMillis()
         return irohaQueryHelper.getAccountDetails(
             ethAnchoredTokenStorageAccount,
             ethAnchoredTokenSetterAccount
@@ -62,7 +84,97 @@ class EthTokensProviderImpl(
                 irohaAnchoredTokenSetterAccount
             )
         }.map { (ethAnchored, irohaAnchored) ->
-            ethAnchored.plus(irohaAnchored).plus(ETH_ADDRESS to "$ETH_NAME#$ETH_DOMAIN")
+            val precisions = catalog.get()?.getPrecisions() ?: emptyMap()
+            val fresh = EthTokenCatalog(ethAnchored, irohaAnchored, precisions)
+            catalog.set(fresh)
+            loadedAt = startedAt
+            unknownAssets.values.removeIf { missedAt -> isExpired(missedAt, startedAt) }
+            fresh
+        }
+    }
+
+    /**
+     * Add tokens registered in Iroha block to the snapshot
+     * @param view - indexed Iroha block
+     */
+    fun onBlock(view: IrohaBlockView) {
+        val ethAnchored = getRegisteredTokens(view, ethAnchoredTokenStorageAccount, ethAnchoredTokenSetterAccount)
+        val irohaAnchored =
+            getRegisteredTokens(view, irohaAnchoredTokenStorageAccount, irohaAnchoredTokenSetterAccount)
+        if (ethAnchored.isEmpty() && irohaAnchored.isEmpty())
+            return
+        logger.info { "Add tokens of block ${view.height}: Ethereum anchored $ethAnchored, Iroha anchored $irohaAnchored" }
+        // absent snapshot gets the tokens on load
+        catalog.updateAndGet { current -> current?.withTokens(ethAnchored, irohaAnchored) }
+        unknownAssets.keys.removeAll(ethAnchored.values.plus(irohaAnchored.values))
+    }
+
+    /**
+     * Get tokens (Ethereum address -> Iroha asset id) set to [storageAccountId] by [setterAccountId] in block
+     */
+    private fun getRegisteredTokens(
+        view: IrohaBlockView,
+        storageAccountId: String,
+        setterAccountId: String
+    ): Map<String, String> {
+        return view.getDetailsOf(storageAccountId)
+            .filter { (_, creatorAccountId, _) -> creatorAccountId == setterAccountId }
+            .associate { (_, _, detail) -> detail.key to detail.value }
+    }
+
+    /**
+     * Get the last snapshot. The snapshot is loaded if it is absent and reloaded if it is expired,
+     * stale snapshot is served if reload fails or is already in progress.
+     */
+    private fun getCatalog(): Result<EthTokenCatalog, Exception> {
+        val current = catalog.get() ?: return refresh()
+        if (!isExpired(loadedAt, System.currentTimeMillis()) || !refreshing.compareAndSet(false, true))
+            return Result.of { current }
+        try {
+            return refresh().fold(
+                { fresh -> Result.of { fresh } },
+                { ex ->
+                    logger.warn("Cannot refresh tokens, stale tokens are used", ex)
+                    Result.of { current }
+                })
+        } finally {
+            refreshing.set(false)
+        }
+    }
+
+    /**
+     * Look up [assetId] in the snapshot, refresh the snapshot once if token is unknown.
+     * Unknown token is remembered, so it does not trigger reload again until the snapshot period expires.
+     */
+    private fun <T : Any> lookup(
+        assetId: String,
+        get: (EthTokenCatalog) -> T?
+    ): Result<T, Exception> {
+        return getCatalog()
+            .flatMap { current ->
+                val missedAt = unknownAssets[assetId]
+                if (get(current) != null || (missedAt != null && !isExpired(missedAt, System.currentTimeMillis())))
+                    Result.of { current }
+                else
+                    refresh()
+            }
+            .map { snapshot ->
+                get(snapshot) ?: run {
+                    unknownAssets.putIfAbsent(assetId, System.currentTimeMillis())
+                    throw IllegalArgumentException("Token $assetId not found")
+                }
+            }
+    }
+
+    private fun isExpired(since: Long, now: Long) = now - since >= refreshPeriodMillis
+
+    /**
+     * Get all Ethereum tokens.
+     * @returns map (EthreumAddress -> TokenName)
+     */
+    override fun getEthTokens(): Result<Map<String, String>, Exception> {
+        return getCatalog().map { current ->
+            current.ethAnchored.plus(current.irohaAnchored).plus(ETH_ADDRESS to "$ETH_NAME#$ETH_DOMAIN")
         }
     }
 
@@ -71,10 +183,7 @@ class EthTokensProviderImpl(
      * @returns map (EthreumAddress -> TokenName)
      */
     override fun getEthAnchoredTokens(): Result<Map<String, String>, Exception> {
-        return irohaQueryHelper.getAccountDetails(
-            ethAnchoredTokenStorageAccount,
-            ethAnchoredTokenSetterAccount
-        )
+        return getCatalog().map { current -> current.ethAnchored }
     }
 
     /**
@@ -82,48 +191,31 @@ class EthTokensProviderImpl(
      * @returns map (EthreumAddress -> TokenName)
      */
     override fun getIrohaAnchoredTokens(): Result<Map<String, String>, Exception> {
-        return irohaQueryHelper.getAccountDetails(
-            irohaAnchoredTokenStorageAccount,
-            irohaAnchoredTokenSetterAccount
-        )
+        return getCatalog().map { current -> current.irohaAnchored }
     }
 
     /**
      * Get precision of [assetId] asset in Iroha.
      */
     override fun getTokenPrecision(assetId: String): Result<Int, Exception> {
-        return if (assetId == "$ETH_NAME#$ETH_DOMAIN")
-            Result.of { ETH_PRECISION }
-        else irohaQueryHelper.getAssetPrecision(assetId)
+        if (assetId == "$ETH_NAME#$ETH_DOMAIN")
+            return Result.of { ETH_PRECISION }
+        return getCatalog().flatMap { current ->
+            current.getPrecision(assetId)?.let { precision -> return@flatMap Result.of { precision } }
+            irohaQueryHelper.getAssetPrecision(assetId).map { queried ->
+                catalog.updateAndGet { it.withPrecision(assetId, queried) }
+                queried
+            }
+        }
     }
 
     /**
      * Get token address of [assetId] asset. For ether returns 0x0000000000000000000000000000000000000000
      */
     override fun getTokenAddress(assetId: String): Result<String, Exception> {
-        return if (assetId == "$ETH_NAME#$ETH_DOMAIN")
-            Result.of { ETH_ADDRESS }
-        else irohaQueryHelper.getAccountDetailsFirst(
-            ethAnchoredTokenStorageAccount,
-            ethAnchoredTokenSetterAccount
-        ) { _, value -> value == assetId }
-            .flatMap { tokenAddress ->
-                if (tokenAddress.isPresent) {
-                    Result.of { tokenAddress }
-                } else {
-                    irohaQueryHelper.getAccountDetailsFirst(
-                        irohaAnchoredTokenStorageAccount,
-                        irohaAnchoredTokenSetterAccount
-                    ) { _, value -> value == assetId }
-                }
-            }
-            .map { tokenAddress ->
-                if (!tokenAddress.isPresent) {
-                    throw IllegalArgumentException("Token $assetId not found")
-                } else {
-                    tokenAddress.get().key
-                }
-            }
+        if (assetId == "$ETH_NAME#$ETH_DOMAIN")
+            return Result.of { ETH_ADDRESS }
+        return lookup(assetId) { it.getAddress(assetId) }
     }
 
     /**
@@ -132,25 +224,18 @@ class EthTokensProviderImpl(
     override fun isIrohaAnchored(assetId: String): Result<Boolean, Exception> {
         if (assetId == "$ETH_NAME#$ETH_DOMAIN")
             return Result.of { false }
-        return irohaQueryHelper.getAccountDetailsFirst(
-            ethAnchoredTokenStorageAccount,
-            ethAnchoredTokenSetterAccount
-        ) { _, value -> value == assetId }.fanout {
-            irohaQueryHelper.getAccountDetailsFirst(
-                irohaAnchoredTokenStorageAccount,
-                irohaAnchoredTokenSetterAccount
-            ) { _, value -> value == assetId }
-        }.map { (ethAnchored, irohaAnchored) ->
-            if (irohaAnchored.isPresent)
-                return@map true
-            if (!ethAnchored.isPresent)
-                throw IllegalArgumentException("Token $assetId not found")
-            false
-        }
+        return lookup(assetId) { it.isIrohaAnchored(assetId) }
     }
 
+    /**
+     * @inheritdoc
+     */
+    override fun getTokenCatalog(): Result<EthTokenCatalog, Exception> = getCatalog()
+
     /**
      * Logger
      */
-    companion object : KLogging()
+    companion object : KLogging() {
+        private const val DEFAULT_REFRESH_PERIOD_MILLIS = 60_000L
+    }
 }
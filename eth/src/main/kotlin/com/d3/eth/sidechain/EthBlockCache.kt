@@ -0,0 +1,412 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.eth.sidechain
+
+import com.d3.eth.metrics.EthMetrics
+import mu.KLogging
+import org.web3j.protocol.core.methods.response.EthBlock
+import org.web3j.protocol.core.methods.response.Log
+import org.web3j.protocol.core.methods.response.Transaction
+import org.web3j.protocol.core.methods.response.TransactionReceipt
+import org.web3j.utils.Numeric
+import java.io.Closeable
+import java.io.File
+import java.io.RandomAccessFile
+import java.math.BigInteger
+import java.nio.BufferUnderflowException
+import java.nio.ByteBuffer
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.util.zip.CRC32
+
+/** Size of block cache file by default */
+const val BLOCK_CACHE_SIZE_MB_DEFAULT = 64
+
+/**
+ * Cache of Ethereum blocks and transaction receipts in memory mapped file.
+ * Blocks are found by number and hash, receipts by transaction hash.
+ * It survives restarts, so blocks and receipts read again after restart are not requested from the node.
+ *
+ * Only the fields deposit handling reads are stored, in binary form:
+ * block number, hash, parent hash, timestamp and transactions hash, sender, receiver and value;
+ * receipt status and logs.
+ *
+ * The file is split into two segments, records are appended to the active one.
+ * Once it is full, the other segment is cleared and becomes active, so the oldest half is evicted.
+ * Blocks must be put only when they are final, receipts are checked against hash of the block being handled.
+ * @param path - path to cache file, it is created if absent
+ * @param sizeMb - size of cache file in megabytes
+ */
+class EthBlockCache(path: String, sizeMb: Int = BLOCK_CACHE_SIZE_MB_DEFAULT) : Closeable {
+
+    init {
+        if (sizeMb <= 0 || sizeMb > MAX_SIZE_MB)
+            throw IllegalArgumentException("Block cache size must be from 1 to $MAX_SIZE_MB MB, got $sizeMb")
+    }
+
+    private val size = sizeMb * 1024 * 1024
+
+    private val segmentSize = size / 2
+
+    private val file = RandomAccessFile(File(path).apply { absoluteFile.parentFile?.mkdirs() }, "rw")
+
+    private val buffer: MappedByteBuffer
+
+    // block number -> record offset
+    private val blockNumbers = HashMap<Long, Int>()
+
+    // block hash -> record offset
+    private val blockHashes = HashMap<String, Int>()
+
+    // transaction hash -> record offset
+    private val receipts = HashMap<String, Int>()
+
+    private var active = 0
+
+    // buffer records are encoded in before they are appended
+    private val payload = ByteBuffer.allocate(MAX_RECORD_SIZE)
+
+    init {
+        val reset = file.length() != size.toLong()
+        if (reset)
+            file.setLength(size.toLong())
+        buffer = file.channel.map(FileChannel.MapMode.READ_WRITE, 0, size.toLong())
+        if (reset) {
+            clearSegment(0, 1)
+            clearSegment(1, 0)
+        } else {
+            load()
+        }
+        logger.info { "Block cache $path loaded with ${blockNumbers.size} blocks and ${receipts.size} receipts" }
+    }
+
+    /**
+     * Get block by number
+     * @return cached block or null
+     */
+    @Synchronized
+    fun getBlock(number: BigInteger): EthBlock.Block? =
+        count(KIND_BLOCK, blockNumbers[number.toLong()]?.let { offset -> decodeBlock(read(offset)) })
+
+    /**
+     * Get block by hash
+     * @return cached block or null
+     */
+    @Synchronized
+    fun getBlock(hash: String): EthBlock.Block? =
+        count(KIND_BLOCK, blockHashes[hash.toLowerCase()]?.let { offset -> decodeBlock(read(offset)) })
+
+    /**
+     * Put final block with transaction objects
+     */
+    @Synchronized
+    fun putBlock(block: EthBlock.Block) {
+        val offset = encode(TYPE_BLOCK, block.hash) { payload -> encodeBlock(block, payload) } ?: return
+        blockNumbers[block.number.toLong()] = offset
+        blockHashes[block.hash.toLowerCase()] = offset
+    }
+
+    /**
+     * Get receipt of transaction included in block
+     * @param txHash - transaction hash
+     * @param blockHash - hash of block the transaction is handled in, receipt of other block is not returned
+     * @return cached receipt or null
+     */
+    @Synchronized
+    fun getReceipt(txHash: String, blockHash: String): TransactionReceipt? {
+        val receipt = receipts[txHash.toLowerCase()]?.let { offset -> decodeReceipt(read(offset)) }
+        return count(KIND_RECEIPT, receipt?.takeIf { it.blockHash.equals(blockHash, true) })
+    }
+
+    /**
+     * Put transaction receipt
+     */
+    @Synchronized
+    fun putReceipt(receipt: TransactionReceipt) {
+        val offset = encode(TYPE_RECEIPT, receipt.transactionHash) { payload ->
+            encodeReceipt(receipt, payload)
+        } ?: return
+        receipts[receipt.transactionHash.toLowerCase()] = offset
+    }
+
+    @Synchronized
+    override fun close() {
+        buffer.force()
+        file.close()
+    }
+
+    private fun <T> count(kind: String, value: T?): T? {
+        EthMetrics.increment(EthMetrics.BLOCK_CACHE_LOOKUPS, "kind", kind, "result", if (value == null) "miss" else "hit")
+        return value
+    }
+
+    /**
+     * Encode record and append it
+     * @return record offset or null if the record is not cached
+     */
+    private fun encode(type: Byte, id: String, encoder: (ByteBuffer) -> Unit): Int? {
+        payload.clear()
+        try {
+            encoder(payload)
+        } catch (e: Exception) {
+            // the cache is optional, the caller reads from the node next time
+            logger.warn { "Cannot cache $id: $e" }
+            return null
+        }
+        payload.flip()
+        return append(type, payload)
+    }
+
+    /**
+     * Append record with [payload] to the active segment, the other segment is evicted if the active one is full
+     * @return record offset
+     */
+    private fun append(type: Byte, payload: ByteBuffer): Int? {
+        val recordSize = RECORD_HEADER_SIZE + payload.remaining()
+        if (recordSize > segmentSize - SEGMENT_HEADER_SIZE)
+            return null
+        var end = buffer.getInt(active * segmentSize + SEGMENT_END)
+        if (end + recordSize > segmentSize) {
+            val next = 1 - active
+            evict(next)
+            clearSegment(next, buffer.getLong(active * segmentSize + SEGMENT_GENERATION) + 1)
+            active = next
+            end = SEGMENT_HEADER_SIZE
+        }
+        val offset = active * segmentSize + end
+        val crc = CRC32()
+        crc.update(payload.duplicate())
+        buffer.put(offset, type)
+        buffer.putInt(offset + RECORD_LENGTH, payload.remaining())
+        buffer.putInt(offset + RECORD_CRC, crc.value.toInt())
+        val position = buffer.duplicate()
+        position.position(offset + RECORD_HEADER_SIZE)
+        position.put(payload)
+        // the record is visible after restart once the end is moved past it
+        buffer.putInt(active * segmentSize + SEGMENT_END, end + recordSize)
+        return offset
+    }
+
+    /**
+     * Read payload of record at [offset]
+     */
+    private fun read(offset: Int): ByteBuffer {
+        val payload = buffer.duplicate()
+        payload.position(offset + RECORD_HEADER_SIZE)
+        payload.limit(offset + RECORD_HEADER_SIZE + buffer.getInt(offset + RECORD_LENGTH))
+        return payload.slice()
+    }
+
+    /**
+     * Remove index entries of records in [segment]
+     */
+    private fun evict(segment: Int) {
+        val range = segment * segmentSize until (segment + 1) * segmentSize
+        blockNumbers.values.removeIf { offset -> offset in range }
+        blockHashes.values.removeIf { offset -> offset in range }
+        receipts.values.removeIf { offset -> offset in range }
+    }
+
+    private fun clearSegment(segment: Int, generation: Long) {
+        val start = segment * segmentSize
+        buffer.putInt(start + SEGMENT_MAGIC, MAGIC)
+        buffer.putLong(start + SEGMENT_GENERATION, generation)
+        buffer.putInt(start + SEGMENT_END, SEGMENT_HEADER_SIZE)
+    }
+
+    /**
+     * Build index of records in the file, the older segment first, so newer records win
+     */
+    private fun load() {
+        val segments = (0..1).filter { segment -> buffer.getInt(segment * segmentSize + SEGMENT_MAGIC) == MAGIC }
+        if (segments.size < 2) {
+            logger.warn { "Block cache is corrupted, it is cleared" }
+            clearSegment(0, 1)
+            clearSegment(1, 0)
+            return
+        }
+        segments.sortedBy { segment -> buffer.getLong(segment * segmentSize + SEGMENT_GENERATION) }
+            .forEach { segment ->
+                loadSegment(segment)
+                active = segment
+            }
+    }
+
+    private fun loadSegment(segment: Int) {
+        val start = segment * segmentSize
+        val end = buffer.getInt(start + SEGMENT_END)
+        var position = SEGMENT_HEADER_SIZE
+        while (position + RECORD_HEADER_SIZE <= end && end <= segmentSize) {
+            val offset = start + position
+            val length = buffer.getInt(offset + RECORD_LENGTH)
+            if (length < 0 || position + RECORD_HEADER_SIZE + length > end)
+                break
+            val payload = read(offset)
+            val crc = CRC32()
+            crc.update(payload.duplicate())
+            if (crc.value.toInt() != buffer.getInt(offset + RECORD_CRC))
+                break
+            // keys are the first fields of payload
+            val type = buffer.get(offset)
+            if (type == TYPE_BLOCK) {
+                blockNumbers[payload.long] = offset
+                blockHashes[getHex(payload, HASH_SIZE)] = offset
+            } else if (type == TYPE_RECEIPT) {
+                receipts[getHex(payload, HASH_SIZE)] = offset
+            } else {
+                break
+            }
+            position += RECORD_HEADER_SIZE + length
+        }
+        if (position != end) {
+            logger.warn { "Block cache segment $segment is truncated at $position of $end" }
+            buffer.putInt(start + SEGMENT_END, position)
+        }
+    }
+
+    /**
+     * Logger
+     */
+    companion object : KLogging() {
+        private const val MAX_SIZE_MB = 1024
+        private const val MAX_RECORD_SIZE = 4 * 1024 * 1024
+        private const val MAGIC = 0x45424331
+
+        // segment header: magic, generation, end of records
+        private const val SEGMENT_MAGIC = 0
+        private const val SEGMENT_GENERATION = 4
+        private const val SEGMENT_END = 12
+        private const val SEGMENT_HEADER_SIZE = 16
+
+        // record header: type, payload length, payload CRC32
+        private const val RECORD_LENGTH = 1
+        private const val RECORD_CRC = 5
+        private const val RECORD_HEADER_SIZE = 9
+
+        private const val TYPE_BLOCK: Byte = 1
+        private const val TYPE_RECEIPT: Byte = 2
+
+        private const val KIND_BLOCK = "block"
+        private const val KIND_RECEIPT = "receipt"
+
+        private const val HASH_SIZE = 32
+        private const val ADDRESS_SIZE = 20
+
+        private const val STATUS_FAILED: Byte = 0
+        private const val STATUS_OK: Byte = 1
+        private const val STATUS_ABSENT: Byte = 2
+
+        private fun encodeBlock(block: EthBlock.Block, payload: ByteBuffer) {
+            payload.putLong(block.number.toLong())
+            putHex(payload, block.hash, HASH_SIZE)
+            putHex(payload, block.parentHash, HASH_SIZE)
+            payload.putLong(block.timestamp.toLong())
+            payload.putInt(block.transactions.size)
+            block.transactions.forEach { result ->
+                val tx = result.get() as Transaction
+                putHex(payload, tx.hash, HASH_SIZE)
+                putHex(payload, tx.from, ADDRESS_SIZE)
+                // null for contract creation
+                if (tx.to == null) {
+                    payload.put(0)
+                } else {
+                    payload.put(1)
+                    putHex(payload, tx.to, ADDRESS_SIZE)
+                }
+                putBytes(payload, tx.value.toByteArray())
+            }
+        }
+
+        private fun decodeBlock(payload: ByteBuffer): EthBlock.Block {
+            val block = EthBlock.Block()
+            block.setNumber(Numeric.encodeQuantity(BigInteger.valueOf(payload.long)))
+            block.hash = getHex(payload, HASH_SIZE)
+            block.parentHash = getHex(payload, HASH_SIZE)
+            block.setTimestamp(Numeric.encodeQuantity(BigInteger.valueOf(payload.long)))
+            block.transactions = (1..payload.int).map {
+                val tx = EthBlock.TransactionObject()
+                tx.hash = getHex(payload, HASH_SIZE)
+                tx.from = getHex(payload, ADDRESS_SIZE)
+                tx.to = if (payload.get() == 0.toByte()) null else getHex(payload, ADDRESS_SIZE)
+                tx.setValue(Numeric.encodeQuantity(BigInteger(getBytes(payload))))
+                tx.setBlockNumber(block.numberRaw)
+                tx.blockHash = block.hash
+                tx
+            }
+            return block
+        }
+
+        private fun encodeReceipt(receipt: TransactionReceipt, payload: ByteBuffer) {
+            putHex(payload, receipt.transactionHash, HASH_SIZE)
+            putHex(payload, receipt.blockHash, HASH_SIZE)
+            payload.putLong(receipt.blockNumber.toLong())
+            payload.put(
+                when {
+                    receipt.status == null -> STATUS_ABSENT
+                    receipt.isStatusOK -> STATUS_OK
+                    else -> STATUS_FAILED
+                }
+            )
+            payload.putInt(receipt.logs.size)
+            receipt.logs.forEach { log ->
+                putHex(payload, log.address, ADDRESS_SIZE)
+                payload.put(log.topics.size.toByte())
+                log.topics.forEach { topic -> putHex(payload, topic, HASH_SIZE) }
+                putBytes(payload, Numeric.hexStringToByteArray(log.data))
+            }
+        }
+
+        private fun decodeReceipt(payload: ByteBuffer): TransactionReceipt {
+            val receipt = TransactionReceipt()
+            receipt.transactionHash = getHex(payload, HASH_SIZE)
+            receipt.blockHash = getHex(payload, HASH_SIZE)
+            receipt.setBlockNumber(Numeric.encodeQuantity(BigInteger.valueOf(payload.long)))
+            receipt.status = when (payload.get()) {
+                STATUS_ABSENT -> null
+                STATUS_OK -> "0x1"
+                else -> "0x0"
+            }
+            receipt.logs = (1..payload.int).map {
+                val log = Log()
+                log.address = getHex(payload, ADDRESS_SIZE)
+                log.topics = (1..payload.get()).map { getHex(payload, HASH_SIZE) }
+                log.data = Numeric.toHexString(getBytes(payload))
+                log.transactionHash = receipt.transactionHash
+                log.blockHash = receipt.blockHash
+                log.setBlockNumber(receipt.blockNumberRaw)
+                log
+            }
+            return receipt
+        }
+
+        private fun putHex(payload: ByteBuffer, hex: String, size: Int) {
+            val bytes = Numeric.hexStringToByteArray(hex)
+            if (bytes.size != size)
+                throw IllegalArgumentException("Expected $size bytes, got $hex")
+            payload.put(bytes)
+        }
+
+        private fun getHex(payload: ByteBuffer, size: Int): String {
+            val bytes = ByteArray(size)
+            payload.get(bytes)
+            return Numeric.toHexString(bytes)
+        }
+
+        private fun putBytes(payload: ByteBuffer, bytes: ByteArray) {
+            payload.putInt(bytes.size)
+            payload.put(bytes)
+        }
+
+        private fun getBytes(payload: ByteBuffer): ByteArray {
+            val length = payload.int
+            if (length < 0 || length > payload.remaining())
+                throw BufferUnderflowException()
+            val bytes = ByteArray(length)
+            payload.get(bytes)
+            return bytes
+        }
+    }
+}
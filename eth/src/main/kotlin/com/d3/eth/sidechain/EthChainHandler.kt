@@ -7,14 +7,16 @@ package com.d3.eth.sidechain
 
 import com.d3.commons.sidechain.ChainHandler
 import com.d3.commons.sidechain.SideChainEvent
+import com.d3.eth.metrics.EthMetrics
 import com.d3.eth.provider.*
 import com.d3.eth.sidechain.util.DeployHelper
+import com.d3.eth.sidechain.util.TokenAmount
 import com.github.kittinunf.result.fanout
 import mu.KLogging
 import org.web3j.protocol.Web3j
 import org.web3j.protocol.core.methods.response.EthBlock
 import org.web3j.protocol.core.methods.response.Transaction
-import java.math.BigDecimal
+import org.web3j.protocol.core.methods.response.TransactionReceipt
 import java.math.BigInteger
 
 /**
@@ -27,13 +29,15 @@ import java.math.BigInteger
  * @param ethWalletProvider - provider of observable wallets
  * @param ethRelayProvider - provider of observable relays
  * @param ethTokensProvider - provider of observable tokens
+ * @param blockCache - cache of transaction receipts
  */
 class EthChainHandler(
     val web3: Web3j,
     val masterAddres: String,
     val ethWalletProvider: EthAddressProvider,
     val ethRelayProvider: EthAddressProvider,
-    val ethTokensProvider: EthTokensProvider
+    val ethTokensProvider: EthTokensProvider,
+    private val blockCache: EthBlockCache? = null
 ) :
     ChainHandler<EthBlock> {
 
@@ -57,11 +61,11 @@ class EthChainHandler(
         logger.info { "Handle ERC20 tx ${tx.hash}" }
 
         // get receipt that contains data about solidity function execution
-        val receipt = web3.ethGetTransactionReceipt(tx.hash).send()
+        val receipt = getReceipt(tx)
 
         // if tx is committed successfully
-        if (receipt.transactionReceipt.get().isStatusOK) {
-            return receipt.transactionReceipt.get().logs
+        if (receipt.isStatusOK) {
+            return receipt.logs
                 .filter {
                     // filter out transfer
                     // the first topic is a hashed representation of a transfer signature call (the scary string)
@@ -91,7 +95,8 @@ class EthChainHandler(
                                 val from = "0x" + it.topics[1].drop(26).toLowerCase()
                                 val to = "0x" + it.topics[2].drop(26).toLowerCase()
                                 // amount of transfer is stored in data
-                                val amount = BigInteger(it.data.drop(2), 16)
+                                val amount = TokenAmount.fromUnits(BigInteger(it.data.drop(2), 16), precision)
+                                    .toDecimalString()
 
                                 lateinit var clientId: String
                                 if (to == masterAddres)
@@ -105,7 +110,7 @@ class EthChainHandler(
                                         time,
                                         clientId,
                                         tokenName,
-                                        BigDecimal(amount, precision).toPlainString(),
+                                        amount,
                                         from
                                     )
                                 else
@@ -114,7 +119,7 @@ class EthChainHandler(
                                         time,
                                         clientId,
                                         tokenName,
-                                        BigDecimal(amount, precision).toPlainString(),
+                                        amount,
                                         from
                                     )
                             },
@@ -138,9 +143,9 @@ class EthChainHandler(
     ): List<SideChainEvent.PrimaryBlockChainEvent> {
         logger.info { "Handle Ethereum tx ${tx.hash}" }
 
-        val receipt = web3.ethGetTransactionReceipt(tx.hash).send()
+        val receipt = getReceipt(tx)
 
-        return if (!receipt.transactionReceipt.get().isStatusOK) {
+        return if (!receipt.isStatusOK) {
             logger.warn { "Transaction ${tx.hash} from Ethereum has FAIL status" }
             listOf()
         } else if (tx.value <= BigInteger.ZERO) {
@@ -155,18 +160,31 @@ class EthChainHandler(
                     // all non-existent keys were filtered out in parseBlock
                     clientId,
                     "$ETH_NAME#$ETH_DOMAIN",
-                    BigDecimal(tx.value, ETH_PRECISION).toPlainString(),
+                    TokenAmount.fromUnits(tx.value, ETH_PRECISION).toDecimalString(),
                     tx.from
                 )
             )
         }
     }
 
+    /**
+     * Get receipt of transaction in block, from cache if it is there
+     */
+    private fun getReceipt(tx: Transaction): TransactionReceipt {
+        blockCache?.getReceipt(tx.hash, tx.blockHash)?.let { cached -> return cached }
+        val receipt = web3.ethGetTransactionReceipt(tx.hash).send().transactionReceipt.get()
+        blockCache?.putReceipt(receipt)
+        return receipt
+    }
+
     /**
      * Parse [EthBlock] for transactions.
      * @return List of transation we are interested in
      */
-    override fun parseBlock(block: EthBlock): List<SideChainEvent.PrimaryBlockChainEvent> {
+    override fun parseBlock(block: EthBlock): List<SideChainEvent.PrimaryBlockChainEvent> =
+        EthMetrics.time(EthMetrics.CHAIN_BLOCK_PARSE) { parse(block) }
+
+    private fun parse(block: EthBlock): List<SideChainEvent.PrimaryBlockChainEvent> {
         logger.info { "Ethereum chain handler for block ${block.block.number}" }
         val addresses = ethWalletProvider.getAddresses().fanout {
             ethRelayProvider.getAddresses()
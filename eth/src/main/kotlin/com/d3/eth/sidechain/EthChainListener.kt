@@ -8,6 +8,7 @@ package com.d3.eth.sidechain
 import com.d3.commons.sidechain.ChainListener
 import com.d3.commons.sidechain.provider.LastReadBlockProvider
 import com.d3.commons.util.createPrettySingleThreadPool
+import com.d3.eth.metrics.EthMetrics
 import com.github.kittinunf.result.Result
 import io.reactivex.Observable
 import io.reactivex.schedulers.Schedulers
@@ -23,19 +24,24 @@ import kotlin.system.exitProcess
  * Implementation of [ChainListener] for Ethereum sidechain
  * @param web3 - notary.endpoint of Ethereum client
  * @param confirmationPeriod - number of block to consider block final
+ * @param blockCache - cache of final blocks, blocks found there are not requested from the node
  */
 class EthChainListener(
     private val web3: Web3j,
     private val confirmationPeriod: BigInteger,
     startBlock: BigInteger,
     private val lastReadBlockProvider: LastReadBlockProvider,
-    private val ignoreStartBlock: Boolean
+    private val ignoreStartBlock: Boolean,
+    private val blockCache: EthBlockCache? = null
 ) : ChainListener<EthBlock> {
 
     /** Keep counting blocks to prevent double emitting in case of chain reorganisation */
     var lastBlockNumber = maxOf(lastReadBlockProvider.getLastBlockHeight(), startBlock)
         private set
 
+    /** The last block number seen in Ethereum */
+    private var headBlockNumber = BigInteger.ZERO
+
     private val scheduler = Schedulers.from(createPrettySingleThreadPool("eth-deposit", "eth-event-handler"))
     private val ethBlocksSubject: PublishSubject<EthBlock> = PublishSubject.create()
     private val ethBlocksObservable = ethBlocksSubject.share().subscribeOn(scheduler).doOnSubscribe {
@@ -63,12 +69,12 @@ class EthChainListener(
             .filter { lastBlockNumber <= it.block.number }
             .subscribe({ topBlock ->
                 logger.info { "Ethereum chain listener got block ${topBlock.block.number}" }
+                headBlockNumber = maxOf(headBlockNumber, topBlock.block.number)
+                EthMetrics.setGauge(EthMetrics.CHAIN_HEAD_BLOCK, headBlockNumber.toLong())
 
                 val topBlockNumber = topBlock.block.number.minus(confirmationPeriod)
                 while (lastBlockNumber < topBlockNumber) {
-                    val block = web3.ethGetBlockByNumber(
-                        DefaultBlockParameter.valueOf(lastBlockNumber), true
-                    ).send()
+                    val block = getFinalBlock(lastBlockNumber)
 
                     logger.info { "Ethereum chain listener loaded block ${block.block.number}" }
 
@@ -89,8 +95,8 @@ class EthChainListener(
     }
 
     override fun close() {
+        // web3 may be shared with other users, its owner shuts it down
         scheduler.shutdown()
-        web3.shutdown()
     }
 
     /**
@@ -101,6 +107,20 @@ class EthChainListener(
         val height = ethBlock.block.number.inc()
         lastReadBlockProvider.saveLastBlockHeight(height)
         lastBlockNumber = height
+        EthMetrics.setGauge(EthMetrics.CHAIN_CURSOR_BLOCK, height.toLong())
+        EthMetrics.setGauge(EthMetrics.CHAIN_LAG_BLOCKS, maxOf(headBlockNumber - height, BigInteger.ZERO).toLong())
+    }
+
+    /**
+     * Get block which is behind the head by confirmation period, from cache if it is there
+     */
+    private fun getFinalBlock(number: BigInteger): EthBlock {
+        val cached = blockCache?.getBlock(number)
+        if (cached != null)
+            return EthBlock().apply { result = cached }
+        val block = web3.ethGetBlockByNumber(DefaultBlockParameter.valueOf(number), true).send()
+        blockCache?.putBlock(block.block)
+        return block
     }
 
     private fun getEthBlockObservable(): Observable<EthBlock> =
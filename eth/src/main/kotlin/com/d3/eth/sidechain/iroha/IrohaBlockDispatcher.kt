@@ -0,0 +1,112 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.eth.sidechain.iroha
+
+import iroha.protocol.BlockOuterClass
+import iroha.protocol.Commands
+import mu.KLogging
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+
+/**
+ * Handler of commands routed from one block, commands are in order of the block
+ */
+typealias IrohaCommandHandler<T> = (IrohaBlockView, List<IrohaCommandEvent<T>>) -> Unit
+
+/**
+ * Routes commands of Iroha block to handlers by command type and target account.
+ * The block is walked once by [IrohaBlockView], handlers share its memoized transaction hashes.
+ * Handlers of a block run concurrently on [executor], the block is done when all of them are done.
+ * Handlers must be registered before the first block is dispatched.
+ *
+ * @param executor - executor that runs handlers
+ */
+class IrohaBlockDispatcher(private val executor: ExecutorService) {
+
+    // destination account -> handlers
+    private val transferAssetHandlers =
+        HashMap<String, MutableList<IrohaCommandHandler<Commands.TransferAsset>>>()
+
+    // account -> handlers
+    private val setAccountDetailHandlers =
+        HashMap<String, MutableList<IrohaCommandHandler<Commands.SetAccountDetail>>>()
+
+    /**
+     * Route transfers to [destAccountId] to [handler]
+     */
+    fun onTransferAsset(
+        destAccountId: String,
+        handler: IrohaCommandHandler<Commands.TransferAsset>
+    ): IrohaBlockDispatcher {
+        transferAssetHandlers.getOrPut(destAccountId) { ArrayList() }.add(handler)
+        return this
+    }
+
+    /**
+     * Route details set to [accountId] to [handler]
+     */
+    fun onSetAccountDetail(
+        accountId: String,
+        handler: IrohaCommandHandler<Commands.SetAccountDetail>
+    ): IrohaBlockDispatcher {
+        setAccountDetailHandlers.getOrPut(accountId) { ArrayList() }.add(handler)
+        return this
+    }
+
+    /**
+     * Route commands of [block] and run handlers that got at least one command.
+     * @param block - iroha block
+     * @throws Exception the first exception thrown by handlers, after all the handlers are done
+     */
+    fun dispatch(block: BlockOuterClass.Block) = dispatch(IrohaBlockView(block))
+
+    /**
+     * Route commands of [view] and run handlers that got at least one command.
+     * @param view - indexed iroha block
+     * @throws Exception the first exception thrown by handlers, after all the handlers are done
+     */
+    fun dispatch(view: IrohaBlockView) {
+        val tasks = route(view, transferAssetHandlers) { account -> view.getTransfersTo(account) }
+            .plus(route(view, setAccountDetailHandlers) { account -> view.getDetailsOf(account) })
+        when (tasks.size) {
+            0 -> return
+            1 -> tasks.single().call()
+            else -> executor.invokeAll(tasks).forEach { future ->
+                try {
+                    future.get()
+                } catch (ex: ExecutionException) {
+                    throw ex.cause as? Exception ?: ex
+                }
+            }
+        }
+        logger.debug { "Block ${view.height} dispatched to ${tasks.size} handlers" }
+    }
+
+    /**
+     * Make tasks of handlers that got commands
+     * @param handlers - (account -> handlers)
+     * @param commands - commands of the block by account
+     */
+    private fun <T> route(
+        view: IrohaBlockView,
+        handlers: Map<String, List<IrohaCommandHandler<T>>>,
+        commands: (String) -> List<IrohaCommandEvent<T>>
+    ): List<Callable<Unit>> {
+        return handlers.flatMap { (account, accountHandlers) ->
+            val events = commands(account)
+            if (events.isEmpty())
+                emptyList()
+            else
+                accountHandlers.map { handler -> Callable { handler(view, events) } }
+        }
+    }
+
+    /**
+     * Logger
+     */
+    companion object : KLogging()
+}
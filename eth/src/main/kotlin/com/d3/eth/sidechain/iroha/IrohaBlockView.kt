@@ -0,0 +1,103 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.eth.sidechain.iroha
+
+import com.d3.commons.util.hex
+import iroha.protocol.BlockOuterClass
+import iroha.protocol.Commands
+import iroha.protocol.TransactionOuterClass
+import jp.co.soramitsu.iroha.java.Utils
+
+/**
+ * Transaction of Iroha block. Hash is computed on first use and then reused by all handlers.
+ * @param tx - the transaction
+ */
+class IrohaTransactionView(val tx: TransactionOuterClass.Transaction) {
+
+    /** Hash of transaction in hex */
+    val hash: String by lazy { String.hex(Utils.hash(tx)) }
+
+    val creatorAccountId: String
+        get() = tx.payload.reducedPayload.creatorAccountId
+
+    val createdTime: Long
+        get() = tx.payload.reducedPayload.createdTime
+}
+
+/**
+ * Command of Iroha block along with its transaction.
+ * Destructuring gives (transaction hash, transaction creator, command),
+ * the hash is not computed if it is skipped with underscore.
+ * @param transaction - transaction of the command
+ * @param command - the command
+ */
+class IrohaCommandEvent<T>(
+    val transaction: IrohaTransactionView,
+    val command: T
+) {
+    val txHash: String
+        get() = transaction.hash
+
+    val creatorAccountId: String
+        get() = transaction.creatorAccountId
+
+    operator fun component1() = txHash
+
+    operator fun component2() = creatorAccountId
+
+    operator fun component3() = command
+}
+
+/**
+ * Iroha block made once per received block and shared by all handlers of the block.
+ * Commands are indexed by type and target account in a single pass over the block,
+ * transaction hashes are computed lazily and memoized.
+ * @param block - the block
+ */
+class IrohaBlockView(val block: BlockOuterClass.Block) {
+
+    val transactions = block.blockV1.payload.transactionsList.map { tx -> IrohaTransactionView(tx) }
+
+    val height: Long
+        get() = block.blockV1.payload.height
+
+    val createdTime: Long
+        get() = block.blockV1.payload.createdTime
+
+    // destination account -> transfers
+    private val transfers = HashMap<String, MutableList<IrohaCommandEvent<Commands.TransferAsset>>>()
+
+    // account -> details set to the account
+    private val details = HashMap<String, MutableList<IrohaCommandEvent<Commands.SetAccountDetail>>>()
+
+    init {
+        transactions.forEach { transaction ->
+            transaction.tx.payload.reducedPayload.commandsList.forEach { command ->
+                if (command.hasTransferAsset()) {
+                    val transfer = command.transferAsset
+                    transfers.getOrPut(transfer.destAccountId) { ArrayList() }
+                        .add(IrohaCommandEvent(transaction, transfer))
+                } else if (command.hasSetAccountDetail()) {
+                    val detail = command.setAccountDetail
+                    details.getOrPut(detail.accountId) { ArrayList() }
+                        .add(IrohaCommandEvent(transaction, detail))
+                }
+            }
+        }
+    }
+
+    /**
+     * Get transfers to [destAccountId] in order of the block
+     */
+    fun getTransfersTo(destAccountId: String): List<IrohaCommandEvent<Commands.TransferAsset>> =
+        transfers[destAccountId] ?: emptyList()
+
+    /**
+     * Get details set to [accountId] in order of the block
+     */
+    fun getDetailsOf(accountId: String): List<IrohaCommandEvent<Commands.SetAccountDetail>> =
+        details[accountId] ?: emptyList()
+}
@@ -7,7 +7,6 @@ package com.d3.eth.sidechain.util
 
 import org.web3j.crypto.ECKeyPair
 import org.web3j.crypto.Hash
-import org.web3j.crypto.Sign
 import org.web3j.utils.Numeric
 import java.math.BigInteger
 
@@ -27,9 +26,17 @@ fun prepareDataToSign(toSign: String): ByteArray {
  * @param toSign data to sign
  * @return signed data
  */
-fun signUserData(ecKeyPair: ECKeyPair, toSign: String): String {
+fun signUserData(ecKeyPair: ECKeyPair, toSign: String) = signUserData(EthSignerImpl(ecKeyPair), toSign)
+
+/**
+ * Signs user-provided data with signer
+ * @param signer signer of notary key
+ * @param toSign data to sign
+ * @return signed data
+ */
+fun signUserData(signer: EthSigner, toSign: String): String {
     val to_sign = prepareDataToSign(toSign)
-    val signature = Sign.signMessage(to_sign, ecKeyPair)
+    val signature = signer.signMessage(to_sign)
     // Combine in the signature
     var res = Numeric.toHexString(signature.r)
     res = res.plus(Numeric.toHexString(signature.s).substring(2))
@@ -54,13 +61,20 @@ fun hashToWithdraw(
     irohaHash: String,
     from: String
 ): String {
-    return Hash.sha3(
-        tokenAddress.replace("0x", "")
-                + String.format("%064x", BigInteger(amount)).replace("0x", "")
-                + accountAddress.replace("0x", "")
-                + irohaHash.replace("0x", "")
-                + from.replace("0x", "")
-    )
+    return hashAssetTransfer(tokenAddress, unitsOf(amount), accountAddress, irohaHash, from)
+}
+
+/**
+ * [hashToWithdraw] of [amount] that is already converted to token base units
+ */
+fun hashToWithdraw(
+    tokenAddress: String,
+    amount: TokenAmount,
+    accountAddress: String,
+    irohaHash: String,
+    from: String
+): String {
+    return hashAssetTransfer(tokenAddress, amount, accountAddress, irohaHash, from)
 }
 
 /**
@@ -73,10 +87,17 @@ fun hashToAddAndRemovePeer(
     peerAddress: String,
     irohaHash: String
 ): String {
-    return Hash.sha3(
-        peerAddress.replace("0x", "")
-                + irohaHash.replace("0x", "")
-    )
+    return try {
+        KeccakPacker.get()
+            .putAddress(peerAddress)
+            .putBytes32(irohaHash)
+            .hash()
+    } catch (ex: IllegalArgumentException) {
+        Hash.sha3(
+            peerAddress.replace("0x", "")
+                    + irohaHash.replace("0x", "")
+        )
+    }
 }
 
 /**
@@ -95,13 +116,56 @@ fun hashToMint(
     irohaHash: String,
     from: String
 ): String {
-    return Hash.sha3(
-        tokenAddress.replace("0x", "")
-                + String.format("%064x", BigInteger(amount)).replace("0x", "")
-                + beneficiary.replace("0x", "")
-                + irohaHash.replace("0x", "")
-                + from.replace("0x", "")
-    )
+    return hashAssetTransfer(tokenAddress, unitsOf(amount), beneficiary, irohaHash, from)
+}
+
+/**
+ * [hashToMint] of [amount] that is already converted to token base units
+ */
+fun hashToMint(
+    tokenAddress: String,
+    amount: TokenAmount,
+    beneficiary: String,
+    irohaHash: String,
+    from: String
+): String {
+    return hashAssetTransfer(tokenAddress, amount, beneficiary, irohaHash, from)
+}
+
+/**
+ * Amount given as decimal string of base units, precision does not matter for hashing
+ * @throws NumberFormatException if [amount] is not a number
+ */
+private fun unitsOf(amount: String) = TokenAmount.fromUnits(amount, 0)
+
+/**
+ * Hash (token, amount, beneficiary, iroha hash, relay) as packed bytes.
+ * Arguments that are not canonical addresses and hashes are hashed as hex concatenation.
+ */
+private fun hashAssetTransfer(
+    tokenAddress: String,
+    amount: TokenAmount,
+    beneficiary: String,
+    irohaHash: String,
+    from: String
+): String {
+    return try {
+        KeccakPacker.get()
+            .putAddress(tokenAddress)
+            .putUint256(amount)
+            .putAddress(beneficiary)
+            .putBytes32(irohaHash)
+            .putAddress(from)
+            .hash()
+    } catch (ex: IllegalArgumentException) {
+        Hash.sha3(
+            tokenAddress.replace("0x", "")
+                    + String.format("%064x", amount.units)
+                    + beneficiary.replace("0x", "")
+                    + irohaHash.replace("0x", "")
+                    + from.replace("0x", "")
+        )
+    }
 }
 
 /**
@@ -5,8 +5,8 @@
 
 package com.d3.eth.sidechain.util
 
-import com.d3.commons.util.createPrettyScheduledThreadPool
 import com.d3.eth.helper.encodeFunction
+import com.d3.eth.provider.EthCredentialsProvider
 import contract.*
 import integration.eth.config.EthereumConfig
 import integration.eth.config.EthereumPasswords
@@ -15,11 +15,11 @@ import okhttp3.*
 import org.web3j.abi.datatypes.Address
 import org.web3j.abi.datatypes.DynamicArray
 import org.web3j.abi.datatypes.Type
-import org.web3j.crypto.WalletUtils
+import org.web3j.crypto.RawTransaction
 import org.web3j.protocol.Web3j
 import org.web3j.protocol.core.DefaultBlockParameterName
 import org.web3j.protocol.core.JsonRpc2_0Web3j.DEFAULT_BLOCK_TIME
-import org.web3j.protocol.http.HttpService
+import org.web3j.protocol.core.methods.response.EthSendTransaction
 import org.web3j.tx.RawTransactionManager
 import org.web3j.tx.Transfer
 import org.web3j.tx.gas.StaticGasProvider
@@ -27,7 +27,6 @@ import org.web3j.utils.Convert
 import java.io.IOException
 import java.math.BigDecimal
 import java.math.BigInteger
-import java.util.concurrent.TimeUnit
 
 const val ENDPOINT_ETHEREUM = "eth"
 const val ATTEMPTS_DEFAULT = 240
@@ -73,10 +72,7 @@ class DeployHelperBuilder(
                 ethereumConfig,
                 ethereumPasswords.nodeLogin,
                 ethereumPasswords.nodePassword,
-                WalletUtils.loadCredentials(
-                    ethereumPasswords.credentialsPassword,
-                    ethereumPasswords.credentialsPath
-                ),
+                EthCredentialsProvider.getCredentials(ethereumPasswords),
                 ATTEMPTS_DEFAULT
             )
 
@@ -124,24 +120,14 @@ class DeployHelper(
                 ethereumConfig,
                 ethereumPasswords.nodeLogin,
                 ethereumPasswords.nodePassword,
-                WalletUtils.loadCredentials(
-                    ethereumPasswords.credentialsPassword,
-                    ethereumPasswords.credentialsPath
-                ),
+                EthCredentialsProvider.getCredentials(ethereumPasswords),
                 ATTEMPTS_DEFAULT
             )
 
     val web3: Web3j
 
     init {
-        val builder = OkHttpClient().newBuilder()
-        builder.authenticator(BasicAuthenticator(nodeLogin, nodePassword))
-        builder.readTimeout(1200, TimeUnit.SECONDS)
-        builder.writeTimeout(1200, TimeUnit.SECONDS)
-        web3 = Web3j.build(
-            HttpService(ethereumConfig.url, builder.build(), false), DEFAULT_BLOCK_TIME.toLong(),
-            createPrettyScheduledThreadPool(DeployHelper::class.simpleName!!, "web3j")
-        )
+        web3 = EthClients.getWeb3j(ethereumConfig.url, nodeLogin, nodePassword)
     }
 
     /** transaction manager */
@@ -153,6 +139,9 @@ class DeployHelper(
     /** Max gas limit */
     val gasLimit = BigInteger.valueOf(ethereumConfig.gasLimit)
 
+    /** Signer of [credentials] key */
+    private val signer: EthSigner = EthSignerImpl(credentials.ecKeyPair)
+
     /**
      * Sends given amount of ether from some predefined account to given account
      * @param amount amount of ether to send
@@ -576,7 +565,7 @@ class DeployHelper(
      * @param toSign data to sign
      * @return signed data
      */
-    fun signUserData(toSign: String) = signUserData(credentials.ecKeyPair, toSign)
+    fun signUserData(toSign: String) = signUserData(signer, toSign)
 
     /**
      * Logger
@@ -587,6 +576,8 @@ class DeployHelper(
 /**
  * Simple RawTransactionManager derivative that manages nonces to facilitate multiple transactions
  * per block. The implementation allows to set the attempts amount to modify default timeout.
+ * Transactions are sent one by one, nonce is read from Ethereum node again if a transaction is not accepted,
+ * so one manager should be shared by all senders of the key.
  */
 class AttemptsCustomizableFastRawTransactionManager(
     web3j: Web3j,
@@ -625,4 +616,44 @@ class AttemptsCustomizableFastRawTransactionManager(
     fun setNonce(value: BigInteger) {
         currentNonce = value
     }
+
+    @Synchronized
+    @Throws(IOException::class)
+    override fun sendTransaction(
+        gasPrice: BigInteger,
+        gasLimit: BigInteger,
+        to: String,
+        data: String,
+        value: BigInteger
+    ): EthSendTransaction = sendTransaction(gasPrice, gasLimit, to, data, value) { _, _ -> }
+
+    /**
+     * Sign and send transaction with the next nonce
+     * @param onSent - callback called with accepted transaction and its nonce
+     */
+    @Synchronized
+    @Throws(IOException::class)
+    fun sendTransaction(
+        gasPrice: BigInteger,
+        gasLimit: BigInteger,
+        to: String,
+        data: String,
+        value: BigInteger,
+        onSent: (EthSendTransaction, BigInteger) -> Unit
+    ): EthSendTransaction {
+        val nonce = getNonce()
+        val sent = try {
+            signAndSend(RawTransaction.createTransaction(nonce, gasPrice, gasLimit, to, value, data))
+        } catch (e: Exception) {
+            // the transaction may be accepted or not, nonce is read from Ethereum node on the next send
+            currentNonce = BigInteger.valueOf(-1)
+            throw e
+        }
+        if (sent.hasError()) {
+            currentNonce = BigInteger.valueOf(-1)
+        } else {
+            onSent(sent, nonce)
+        }
+        return sent
+    }
 }
@@ -0,0 +1,168 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.eth.sidechain.util
+
+import com.d3.commons.util.createPrettyScheduledThreadPool
+import io.reactivex.Flowable
+import mu.KLogging
+import okhttp3.OkHttpClient
+import org.web3j.protocol.Web3j
+import org.web3j.protocol.Web3jService
+import org.web3j.protocol.core.JsonRpc2_0Web3j.DEFAULT_BLOCK_TIME
+import org.web3j.protocol.core.Request
+import org.web3j.protocol.core.Response
+import org.web3j.protocol.websocket.events.Notification
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+
+/**
+ * Class of Ethereum JSON-RPC calls that share a read timeout
+ * @param readTimeoutSeconds - time to wait for the node response
+ */
+enum class EthCallClass(val readTimeoutSeconds: Long) {
+
+    /** Reads of chain state: blocks, receipts, balances, contract calls */
+    READ(30),
+
+    /** Scans of block ranges: logs and filters */
+    SCAN(120),
+
+    /** Transaction submission, the node validates and broadcasts the transaction */
+    SUBMIT(120);
+
+    companion object {
+        /**
+         * Get class of JSON-RPC [method]
+         */
+        fun of(method: String) = when {
+            method.startsWith("eth_send") || method.startsWith("personal_") -> SUBMIT
+            method == "eth_getLogs" || method.contains("Filter") -> SCAN
+            else -> READ
+        }
+    }
+}
+
+/**
+ * Process-wide registry of Ethereum clients.
+ * All clients share one connection pool, one HTTP dispatcher and one Web3j scheduler,
+ * one Web3j client is made per node url and node credentials.
+ * Several node urls separated by comma make a client balanced by [EthNodeBalancer].
+ * Shared clients must not be shut down by their users, they live as long as the process.
+ */
+object EthClients : KLogging() {
+
+    private const val CONNECT_TIMEOUT_SECONDS = 10L
+    private const val WRITE_TIMEOUT_SECONDS = 30L
+    private const val NODE_CHECK_PERIOD_SECONDS = 5L
+
+    // connection pool and dispatcher of this client are shared by all the clients derived from it
+    private val httpClient = OkHttpClient.Builder()
+        .connectTimeout(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+        .writeTimeout(WRITE_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+        .build()
+
+    private val scheduler by lazy { createPrettyScheduledThreadPool("ethereum", "web3j") }
+
+    private data class ClientKey(
+        val url: String,
+        val nodeLogin: String?,
+        val nodePassword: String?,
+        val hedgeBudgetPercent: Int
+    )
+
+    private val clients = ConcurrentHashMap<ClientKey, Web3j>()
+
+    /**
+     * Get Web3j client of Ethereum node
+     * @param url - Ethereum node url or comma separated urls of several nodes, the first one is primary
+     * @param nodeLogin - Ethereum node login
+     * @param nodePassword - Ethereum node password
+     * @param hedgeBudgetPercent - max percent of extra reads sent to hedge slow ones, needs several nodes
+     */
+    fun getWeb3j(
+        url: String,
+        nodeLogin: String?,
+        nodePassword: String?,
+        hedgeBudgetPercent: Int = 0
+    ): Web3j {
+        return clients.computeIfAbsent(ClientKey(url, nodeLogin, nodePassword, hedgeBudgetPercent)) {
+            logger.info { "Create Ethereum client of $url" }
+            val authenticator = BasicAuthenticator(nodeLogin, nodePassword)
+            val urls = url.split(",").map { nodeUrl -> nodeUrl.trim() }.filter { nodeUrl -> nodeUrl.isNotEmpty() }
+            val service = if (urls.size == 1)
+                createNodeService(urls.single(), authenticator)
+            else
+                createBalancer(urls, authenticator, hedgeBudgetPercent)
+            Web3j.build(
+                InstrumentedWeb3jService(service),
+                DEFAULT_BLOCK_TIME.toLong(),
+                scheduler
+            )
+        }
+    }
+
+    /**
+     * Create service of several nodes, nodes are checked periodically on the shared scheduler
+     */
+    private fun createBalancer(
+        urls: List<String>,
+        authenticator: BasicAuthenticator,
+        hedgeBudgetPercent: Int
+    ): EthNodeBalancer {
+        val balancer = EthNodeBalancer(
+            urls.map { nodeUrl -> EthNode(nodeUrl, createNodeService(nodeUrl, authenticator)) },
+            hedgeBudgetPercent = hedgeBudgetPercent
+        )
+        // until the first check is done nodes are tried in order of urls
+        scheduler.scheduleWithFixedDelay(
+            { balancer.checkNodes() },
+            0,
+            NODE_CHECK_PERIOD_SECONDS,
+            TimeUnit.SECONDS
+        )
+        return balancer
+    }
+
+    /**
+     * Create service of one node with timeouts tuned per call class
+     */
+    private fun createNodeService(url: String, authenticator: BasicAuthenticator): Web3jService {
+        val services = EthCallClass.values().associate { callClass ->
+            val client = httpClient.newBuilder()
+                .authenticator(authenticator)
+                .readTimeout(callClass.readTimeoutSeconds, TimeUnit.SECONDS)
+                .build()
+            callClass to MeteredHttpService(url, client)
+        }
+        return EthCallClassRouter(services)
+    }
+}
+
+/**
+ * [Web3jService] that sends every call to the service of its [EthCallClass]
+ * @param services - services by call class, must have all the classes
+ */
+class EthCallClassRouter(private val services: Map<EthCallClass, Web3jService>) : Web3jService {
+
+    override fun <T : Response<*>> send(request: Request<*, out Response<*>>, responseType: Class<T>): T =
+        route(request).send(request, responseType)
+
+    override fun <T : Response<*>> sendAsync(
+        request: Request<*, out Response<*>>,
+        responseType: Class<T>
+    ): CompletableFuture<T> = route(request).sendAsync(request, responseType)
+
+    override fun <T : Notification<*>> subscribe(
+        request: Request<*, out Response<*>>,
+        unsubscribeMethod: String,
+        responseType: Class<T>
+    ): Flowable<T> = route(request).subscribe(request, unsubscribeMethod, responseType)
+
+    override fun close() = services.values.forEach { service -> service.close() }
+
+    private fun route(request: Request<*, *>) = services.getValue(EthCallClass.of(request.method))
+}
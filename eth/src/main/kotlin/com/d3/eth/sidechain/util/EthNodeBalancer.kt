@@ -0,0 +1,396 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.eth.sidechain.util
+
+import com.d3.eth.metrics.EthMetrics
+import io.reactivex.Flowable
+import mu.KLogging
+import org.web3j.protocol.Web3jService
+import org.web3j.protocol.core.Request
+import org.web3j.protocol.core.Response
+import org.web3j.protocol.core.methods.response.EthBlockNumber
+import org.web3j.protocol.websocket.events.Notification
+import org.web3j.utils.Async
+import java.io.IOException
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import java.util.concurrent.atomic.AtomicLong
+
+/** Nodes behind the best node by more blocks are not used for reads while there are nodes in sync */
+const val MAX_LAG_BLOCKS_DEFAULT = 2L
+
+/** Failed node is not used for this time unless all the other nodes fail too */
+const val RETRY_AFTER_MILLIS_DEFAULT = 5_000L
+
+/** Hedges may be sent in a burst up to this number after a quiet period */
+private const val HEDGE_BURST = 10
+
+/** Number of last latencies of method the hedge delay is estimated from */
+private const val LATENCY_WINDOW_SIZE = 200
+
+/** Hedge delay is estimated again after this number of latencies, the first estimate needs as many */
+private const val LATENCY_ESTIMATE_PERIOD = 20
+
+/**
+ * Ethereum node behind [EthNodeBalancer]
+ * @param url - node url, used for logs and metrics
+ * @param service - service that sends calls to the node
+ */
+class EthNode(val url: String, val service: Web3jService) {
+
+    /** Last block number reported by the node */
+    @Volatile
+    var head = -1L
+        internal set
+
+    /** Moving average of the node call latency in nanoseconds */
+    @Volatile
+    var latencyNanos = 0L
+        private set
+
+    @Volatile
+    private var failedAt = 0L
+
+    /**
+     * Whether the node has not failed during [retryAfterMillis]
+     */
+    fun isHealthy(retryAfterMillis: Long) =
+        failedAt == 0L || System.currentTimeMillis() - failedAt >= retryAfterMillis
+
+    internal fun onSuccess(nanos: Long) {
+        failedAt = 0L
+        latencyNanos = if (latencyNanos == 0L) nanos else (latencyNanos * 7 + nanos) / 8
+    }
+
+    internal fun onFailure() {
+        failedAt = System.currentTimeMillis()
+    }
+}
+
+/**
+ * [Web3jService] over several Ethereum nodes.
+ * Reads go to the fastest healthy node which is in sync with the best known head.
+ * Writes, nonce queries and filters are pinned to the primary node, the first one,
+ * because they depend on the node state. They go to other nodes only while the primary is failed.
+ * If a node fails with I/O error, the call fails over to the next node in order of preference.
+ * A node in sync may still be a block behind the node that announced the block, so a block or
+ * transaction it does not know yet is asked from the next node too, and the empty result is returned
+ * only if no node knows it.
+ * Node heads are refreshed with [checkNodes], node latencies with every call and check.
+ *
+ * Reads may be hedged: if a read has not returned within p95 latency of its method,
+ * the same read is sent to the next node and the first successful response is taken.
+ * Hedges are budgeted to at most [hedgeBudgetPercent] of hedgeable reads.
+ *
+ * @param nodes - Ethereum nodes, the first one is primary
+ * @param maxLagBlocks - how many blocks a node may be behind the best node to serve reads
+ * @param retryAfterMillis - how long a failed node is avoided
+ * @param hedgeBudgetPercent - max percent of extra reads sent as hedges, 0 disables hedging
+ */
+class EthNodeBalancer(
+    val nodes: List<EthNode>,
+    private val maxLagBlocks: Long = MAX_LAG_BLOCKS_DEFAULT,
+    private val retryAfterMillis: Long = RETRY_AFTER_MILLIS_DEFAULT,
+    hedgeBudgetPercent: Int = 0
+) : Web3jService {
+
+    init {
+        if (nodes.isEmpty())
+            throw IllegalArgumentException("At least one Ethereum node is required")
+    }
+
+    private val primary = nodes.first()
+
+    private val hedgeBudget = if (hedgeBudgetPercent > 0) HedgeBudget(hedgeBudgetPercent) else null
+
+    // method -> latencies of its hedgeable reads
+    private val latencies = ConcurrentHashMap<String, LatencyWindow>()
+
+    override fun <T : Response<*>> send(request: Request<*, out Response<*>>, responseType: Class<T>): T {
+        val candidates = getCandidates(request.method)
+        if (hedgeBudget != null && candidates.size > 1 && isHedgeable(request.method)) {
+            val response = sendHedged(request, responseType, candidates, hedgeBudget)
+            return if (isMissing(request, response))
+                sendInOrder(request, responseType, candidates.drop(1), null, response)
+            else
+                response
+        }
+        return sendInOrder(request, responseType, candidates, null)
+    }
+
+    override fun <T : Response<*>> sendAsync(
+        request: Request<*, out Response<*>>,
+        responseType: Class<T>
+    ): CompletableFuture<T> = Async.run { send(request, responseType) }
+
+    override fun <T : Notification<*>> subscribe(
+        request: Request<*, out Response<*>>,
+        unsubscribeMethod: String,
+        responseType: Class<T>
+    ): Flowable<T> = primary.service.subscribe(request, unsubscribeMethod, responseType)
+
+    override fun close() = nodes.forEach { node -> node.service.close() }
+
+    /**
+     * Query head block of every node and update its latency and health
+     */
+    fun checkNodes() {
+        nodes.forEach { node ->
+            val start = System.nanoTime()
+            try {
+                val response = Request(
+                    "eth_blockNumber",
+                    emptyList<String>(),
+                    node.service,
+                    EthBlockNumber::class.java
+                ).send()
+                if (response.hasError()) {
+                    node.onFailure()
+                } else {
+                    node.onSuccess(System.nanoTime() - start)
+                    node.head = response.blockNumber.toLong()
+                    EthMetrics.setGauge(EthMetrics.NODE_HEAD_BLOCK, node.head, "node", node.url)
+                }
+            } catch (e: Exception) {
+                node.onFailure()
+                logger.warn { "Ethereum node ${node.url} is not available: ${e.message}" }
+            }
+        }
+    }
+
+    /**
+     * Get nodes to try for [method] in order of preference
+     */
+    fun getCandidates(method: String): List<EthNode> {
+        val bestHead = nodes.map { node -> node.head }.max()!!
+        val readOrder = nodes.sortedWith(
+            compareBy<EthNode>(
+                { node -> !node.isHealthy(retryAfterMillis) },
+                { node -> bestHead - node.head > maxLagBlocks },
+                { node -> node.latencyNanos }
+            )
+        )
+        return if (isPinned(method) && primary.isHealthy(retryAfterMillis))
+            listOf(primary).plus(readOrder.minus(primary))
+        else
+            readOrder
+    }
+
+    /**
+     * Send [request] to [nodes] one by one until one of them answers with a known result
+     * @param error - error of the nodes tried before
+     * @param missing - empty result of the nodes tried before
+     * @return the first known result, or empty result if no node knows it
+     * @throws IOException the last error if no node answers
+     */
+    private fun <T : Response<*>> sendInOrder(
+        request: Request<*, out Response<*>>,
+        responseType: Class<T>,
+        nodes: List<EthNode>,
+        error: IOException?,
+        missing: T? = null
+    ): T {
+        var lastError = error
+        var lastMissing = missing
+        for (node in nodes) {
+            try {
+                val response = sendTo(node, request, responseType)
+                if (!isMissing(request, response))
+                    return response
+                logger.debug { "Ethereum node ${node.url} does not know result of ${request.method} yet" }
+                lastMissing = response
+            } catch (e: IOException) {
+                lastError = e
+            }
+        }
+        return lastMissing ?: throw lastError!!
+    }
+
+    /**
+     * Send [request] to the first candidate and hedge it with the second one if it is slow
+     */
+    private fun <T : Response<*>> sendHedged(
+        request: Request<*, out Response<*>>,
+        responseType: Class<T>,
+        candidates: List<EthNode>,
+        budget: HedgeBudget
+    ): T {
+        val method = request.method
+        val window = latencies.computeIfAbsent(method) { LatencyWindow() }
+        val hedgeAfterNanos = window.getP95Nanos()
+        budget.deposit()
+
+        val start = System.nanoTime()
+        val first = Async.run { sendTo(candidates[0], request, responseType) }
+        first.thenRun { window.add(System.nanoTime() - start) }
+        try {
+            return if (hedgeAfterNanos == null)
+                first.get()
+            else
+                first.get(hedgeAfterNanos, TimeUnit.NANOSECONDS)
+        } catch (e: TimeoutException) {
+            // slow, hedge it
+        } catch (e: ExecutionException) {
+            return sendInOrder(request, responseType, candidates.drop(1), unwrap(e))
+        }
+        if (!budget.withdraw()) {
+            try {
+                return first.get()
+            } catch (e: ExecutionException) {
+                return sendInOrder(request, responseType, candidates.drop(1), unwrap(e))
+            }
+        }
+
+        val second = Async.run { sendTo(candidates[1], request, responseType) }
+        val winner = CompletableFuture<T>()
+        first.thenAccept { response ->
+            if (winner.complete(response))
+                EthMetrics.increment(EthMetrics.RPC_HEDGES, "method", method, "winner", "first")
+        }
+        second.thenAccept { response ->
+            if (winner.complete(response)) {
+                EthMetrics.increment(EthMetrics.RPC_HEDGES, "method", method, "winner", "hedge")
+                val wonAt = System.nanoTime()
+                first.thenRun {
+                    EthMetrics.record(EthMetrics.RPC_HEDGE_SAVED, System.nanoTime() - wonAt, "method", method)
+                }
+            }
+        }
+        // fails only if both fail, otherwise the winner is already known
+        CompletableFuture.allOf(first, second).whenComplete { _, ex ->
+            if (ex != null)
+                winner.completeExceptionally(ex)
+        }
+        try {
+            return winner.get()
+        } catch (e: ExecutionException) {
+            return sendInOrder(request, responseType, candidates.drop(2), unwrap(e))
+        }
+    }
+
+    /**
+     * Send [request] to [node] and update the node health
+     */
+    private fun <T : Response<*>> sendTo(
+        node: EthNode,
+        request: Request<*, out Response<*>>,
+        responseType: Class<T>
+    ): T {
+        val start = System.nanoTime()
+        try {
+            val response = node.service.send(request, responseType)
+            node.onSuccess(System.nanoTime() - start)
+            return response
+        } catch (e: IOException) {
+            node.onFailure()
+            logger.warn { "Ethereum node ${node.url} failed on ${request.method}: ${e.message}" }
+            throw e
+        }
+    }
+
+    /**
+     * Get I/O error of failed send, other errors are rethrown
+     */
+    private fun unwrap(e: ExecutionException): IOException {
+        val cause = e.cause
+        when (cause) {
+            is IOException -> return cause
+            is Exception -> throw cause
+            else -> throw e
+        }
+    }
+
+    /**
+     * Whether [response] is empty result of block or transaction the node does not know, it may be a block behind
+     */
+    private fun isMissing(request: Request<*, out Response<*>>, response: Response<*>) =
+        !response.hasError() && response.result == null && request.method in MAY_BE_MISSING_METHODS
+
+    /**
+     * Whether [method] is read that may be hedged
+     */
+    private fun isHedgeable(method: String) = EthCallClass.of(method) == EthCallClass.READ && !isPinned(method)
+
+    /**
+     * Whether [method] depends on state of a particular node
+     */
+    private fun isPinned(method: String) =
+        EthCallClass.of(method) == EthCallClass.SUBMIT
+                || method == "eth_getTransactionCount"
+                || method.contains("Filter")
+
+    /**
+     * Logger
+     */
+    companion object : KLogging() {
+        private val MAY_BE_MISSING_METHODS = setOf(
+            "eth_getBlockByHash",
+            "eth_getBlockByNumber",
+            "eth_getTransactionByHash",
+            "eth_getTransactionReceipt"
+        )
+    }
+}
+
+/**
+ * Budget of hedges. Every hedgeable read adds [percent] hundredths of a hedge, a hedge takes a whole one.
+ * @param percent - max percent of hedges
+ */
+private class HedgeBudget(private val percent: Int) {
+
+    // in hundredths of a hedge
+    private val balance = AtomicLong()
+
+    fun deposit() {
+        balance.updateAndGet { value -> minOf(value + percent, HEDGE_BURST * 100L) }
+    }
+
+    /**
+     * Take a hedge from the budget
+     * @return false if the budget is exhausted
+     */
+    fun withdraw(): Boolean {
+        while (true) {
+            val value = balance.get()
+            if (value < 100)
+                return false
+            if (balance.compareAndSet(value, value - 100))
+                return true
+        }
+    }
+}
+
+/**
+ * Last latencies of a method with periodically estimated 95th percentile
+ */
+private class LatencyWindow {
+
+    private val samples = LongArray(LATENCY_WINDOW_SIZE)
+
+    private var count = 0L
+
+    @Volatile
+    private var p95Nanos: Long? = null
+
+    @Synchronized
+    fun add(nanos: Long) {
+        samples[(count % LATENCY_WINDOW_SIZE).toInt()] = nanos
+        count++
+        if (count % LATENCY_ESTIMATE_PERIOD == 0L) {
+            val sorted = samples.copyOf(minOf(count, LATENCY_WINDOW_SIZE.toLong()).toInt())
+            sorted.sort()
+            p95Nanos = sorted[sorted.size * 95 / 100]
+        }
+    }
+
+    /**
+     * Get 95th percentile of latency or null if there are not enough latencies yet
+     */
+    fun getP95Nanos() = p95Nanos
+}
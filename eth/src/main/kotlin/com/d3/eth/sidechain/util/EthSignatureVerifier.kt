@@ -0,0 +1,30 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.eth.sidechain.util
+
+import org.web3j.crypto.Hash
+import org.web3j.crypto.Sign
+
+/** Interface of an instance that recovers signers of Ethereum signatures */
+interface EthSignatureVerifier {
+
+    /**
+     * Recover signer of keccak-256 hash
+     * @param messageHash - 32 byte keccak-256 hash
+     * @param signature - signature with v equal to 27, 28 or recovery id itself
+     * @return Ethereum address of signer without 0x prefix or null if signature is not valid
+     */
+    fun recoverAddress(messageHash: ByteArray, signature: Sign.SignatureData): String?
+
+    /**
+     * Recover signer of data, the counterpart of [EthSigner.signMessage]
+     * @param message - signed data
+     * @param signature - signature with v equal to 27, 28 or recovery id itself
+     * @return Ethereum address of signer without 0x prefix or null if signature is not valid
+     */
+    fun recoverMessageAddress(message: ByteArray, signature: Sign.SignatureData) =
+        recoverAddress(Hash.sha3(message), signature)
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.eth.sidechain.util
+
+import org.web3j.crypto.ECDSASignature
+import org.web3j.crypto.Keys
+import org.web3j.crypto.Sign
+import java.math.BigInteger
+
+/**
+ * Recovers signer with recovery id taken from v of signature, so only one public key is recovered
+ */
+class EthSignatureVerifierImpl : EthSignatureVerifier {
+
+    override fun recoverAddress(messageHash: ByteArray, signature: Sign.SignatureData): String? {
+        val v = signature.v.toInt() and 0xFF
+        val recId = if (v >= EthSignerImpl.V_OFFSET) v - EthSignerImpl.V_OFFSET else v
+        if (recId > MAX_REC_ID)
+            return null
+        val publicKey = Sign.recoverFromSignature(
+            recId,
+            ECDSASignature(BigInteger(1, signature.r), BigInteger(1, signature.s)),
+            messageHash
+        ) ?: return null
+        return Keys.getAddress(publicKey)
+    }
+
+    companion object {
+        private const val MAX_REC_ID = 3
+    }
+}
@@ -0,0 +1,27 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.eth.sidechain.util
+
+import org.web3j.crypto.Hash
+import org.web3j.crypto.Sign
+
+/** Interface of an instance that signs data with secp256k1 key like Ethereum does */
+interface EthSigner {
+
+    /**
+     * Sign keccak-256 hash of data
+     * @param messageHash - 32 byte keccak-256 hash
+     * @return signature with v equal to 27 or 28
+     */
+    fun signHash(messageHash: ByteArray): Sign.SignatureData
+
+    /**
+     * Sign data, the same as [Sign.signMessage]
+     * @param message - data to hash and sign
+     * @return signature with v equal to 27 or 28
+     */
+    fun signMessage(message: ByteArray) = signHash(Hash.sha3(message))
+}
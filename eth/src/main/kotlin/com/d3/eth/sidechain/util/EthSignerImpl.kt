@@ -0,0 +1,74 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.eth.sidechain.util
+
+import org.bouncycastle.crypto.digests.SHA256Digest
+import org.bouncycastle.crypto.signers.HMacDSAKCalculator
+import org.bouncycastle.math.ec.FixedPointCombMultiplier
+import org.bouncycastle.math.ec.FixedPointUtil
+import org.web3j.crypto.ECKeyPair
+import org.web3j.crypto.Sign
+import org.web3j.utils.Numeric
+import java.math.BigInteger
+
+/**
+ * Deterministic (RFC 6979) secp256k1 signer of one key, produces the same signatures as [Sign.signMessage].
+ * Multiplication by generator uses precomputed comb table that is built once on creation.
+ * Recovery id is taken from the signature nonce point instead of trying all recovery ids
+ * against the public key.
+ * @param ecKeyPair - key to sign with
+ */
+class EthSignerImpl(ecKeyPair: ECKeyPair) : EthSigner {
+
+    private val privateKey = ecKeyPair.privateKey
+
+    override fun signHash(messageHash: ByteArray): Sign.SignatureData {
+        // message hash is exactly as long as curve order, no truncation needed
+        val e = BigInteger(1, messageHash)
+        val kCalculator = HMacDSAKCalculator(SHA256Digest())
+        kCalculator.init(ORDER, privateKey, messageHash)
+        while (true) {
+            val k = kCalculator.nextK()
+            val point = MULTIPLIER.multiply(GENERATOR, k).normalize()
+            val x = point.affineXCoord.toBigInteger()
+            val r = x.mod(ORDER)
+            if (r.signum() == 0)
+                continue
+            var s = k.modInverse(ORDER).multiply(e.add(privateKey.multiply(r))).mod(ORDER)
+            if (s.signum() == 0)
+                continue
+            var recId = if (point.affineYCoord.testBitZero()) 1 else 0
+            if (x >= ORDER)
+                recId = recId or 2
+            // canonical signature has low s, that negates nonce point
+            if (s > HALF_ORDER) {
+                s = ORDER.subtract(s)
+                recId = recId xor 1
+            }
+            return Sign.SignatureData(
+                (recId + V_OFFSET).toByte(),
+                Numeric.toBytesPadded(r, SIGNATURE_COMPONENT_SIZE),
+                Numeric.toBytesPadded(s, SIGNATURE_COMPONENT_SIZE)
+            )
+        }
+    }
+
+    companion object {
+        private const val SIGNATURE_COMPONENT_SIZE = 32
+
+        // v of Ethereum signature is recovery id + 27
+        const val V_OFFSET = 27
+
+        private val GENERATOR = Sign.CURVE_PARAMS.g
+        private val ORDER = Sign.CURVE_PARAMS.n
+        private val HALF_ORDER = ORDER.shiftRight(1)
+        private val MULTIPLIER = FixedPointCombMultiplier()
+
+        init {
+            FixedPointUtil.precompute(GENERATOR)
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.eth.sidechain.util
+
+import com.d3.eth.metrics.EthMetrics
+import io.reactivex.Flowable
+import mu.KLogging
+import okhttp3.OkHttpClient
+import org.web3j.protocol.Web3jService
+import org.web3j.protocol.core.Request
+import org.web3j.protocol.core.Response
+import org.web3j.protocol.http.HttpService
+import org.web3j.protocol.websocket.events.Notification
+import java.io.FilterInputStream
+import java.io.InputStream
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.TimeUnit
+
+/** Calls slower than this are logged by default */
+const val SLOW_CALL_MILLIS_DEFAULT = 1000L
+
+/**
+ * Decorator of [Web3jService] that records count, latency and error class of every JSON-RPC call
+ * by method and logs calls slower than [slowCallMillis].
+ * Calls failed with exception are tagged with exception class,
+ * calls answered with JSON-RPC error are tagged with the error code.
+ * @param delegate - service that performs calls
+ * @param slowCallMillis - threshold of slow call in milliseconds
+ */
+class InstrumentedWeb3jService(
+    private val delegate: Web3jService,
+    private val slowCallMillis: Long = SLOW_CALL_MILLIS_DEFAULT
+) : Web3jService {
+
+    override fun <T : Response<*>> send(request: Request<*, out Response<*>>, responseType: Class<T>): T {
+        val start = System.nanoTime()
+        val response = try {
+            delegate.send(request, responseType)
+        } catch (e: Exception) {
+            record(request, start, e.javaClass.simpleName)
+            throw e
+        }
+        record(request, start, getError(response))
+        return response
+    }
+
+    override fun <T : Response<*>> sendAsync(
+        request: Request<*, out Response<*>>,
+        responseType: Class<T>
+    ): CompletableFuture<T> {
+        val start = System.nanoTime()
+        return delegate.sendAsync(request, responseType).whenComplete { response, ex ->
+            if (ex != null) {
+                val cause = if (ex is CompletionException && ex.cause != null) ex.cause!! else ex
+                record(request, start, cause.javaClass.simpleName)
+            } else {
+                record(request, start, getError(response))
+            }
+        }
+    }
+
+    override fun <T : Notification<*>> subscribe(
+        request: Request<*, out Response<*>>,
+        unsubscribeMethod: String,
+        responseType: Class<T>
+    ): Flowable<T> = delegate.subscribe(request, unsubscribeMethod, responseType)
+
+    override fun close() = delegate.close()
+
+    private fun getError(response: Response<*>) =
+        if (response.hasError()) "rpc_${response.error.code}" else NO_ERROR
+
+    private fun record(request: Request<*, *>, start: Long, error: String) {
+        val nanos = System.nanoTime() - start
+        EthMetrics.record(EthMetrics.RPC_CALL, nanos, "method", request.method, "error", error)
+        val millis = TimeUnit.NANOSECONDS.toMillis(nanos)
+        if (millis >= slowCallMillis)
+            logger.warn { "Slow Ethereum call ${request.method} id ${request.id} took $millis ms, error: $error" }
+    }
+
+    /**
+     * Logger
+     */
+    companion object : KLogging() {
+        private const val NO_ERROR = "none"
+    }
+}
+
+/**
+ * [HttpService] that records sizes of JSON-RPC requests and responses by method
+ * @param url - Ethereum node url
+ * @param httpClient - HTTP client to the node
+ */
+class MeteredHttpService(url: String, httpClient: OkHttpClient) : HttpService(url, httpClient, false) {
+
+    override fun performIO(request: String): InputStream {
+        val method = getMethod(request)
+        EthMetrics.recordSize(EthMetrics.RPC_REQUEST_SIZE, request.length.toLong(), "method", method)
+        return CountingInputStream(super.performIO(request)) { bytes ->
+            EthMetrics.recordSize(EthMetrics.RPC_RESPONSE_SIZE, bytes, "method", method)
+        }
+    }
+
+    /**
+     * Get method of serialized JSON-RPC request without parsing it
+     */
+    private fun getMethod(request: String): String {
+        val start = request.indexOf(METHOD_FIELD)
+        if (start < 0)
+            return UNKNOWN_METHOD
+        val from = start + METHOD_FIELD.length
+        val to = request.indexOf('"', from)
+        return if (to < 0) UNKNOWN_METHOD else request.substring(from, to)
+    }
+
+    companion object {
+        private const val METHOD_FIELD = "\"method\":\""
+        private const val UNKNOWN_METHOD = "unknown"
+    }
+}
+
+/**
+ * Stream that reports number of bytes read once it is closed
+ * @param onClose - consumer of number of read bytes
+ */
+private class CountingInputStream(
+    stream: InputStream,
+    private val onClose: (Long) -> Unit
+) : FilterInputStream(stream) {
+
+    private var count = 0L
+    private var closed = false
+
+    override fun read(): Int {
+        val byte = super.read()
+        if (byte >= 0)
+            count++
+        return byte
+    }
+
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+        val read = super.read(b, off, len)
+        if (read > 0)
+            count += read
+        return read
+    }
+
+    override fun skip(n: Long): Long {
+        val skipped = super.skip(n)
+        count += skipped
+        return skipped
+    }
+
+    override fun close() {
+        if (!closed) {
+            closed = true
+            onClose(count)
+        }
+        super.close()
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.eth.sidechain.util
+
+import org.bouncycastle.crypto.digests.KeccakDigest
+import org.web3j.utils.Numeric
+import java.math.BigInteger
+
+/**
+ * Calculates keccak-256 hash of tightly packed arguments (solidity abi.encodePacked) without hex string
+ * concatenation. Arguments are written straight into reusable buffer.
+ * Not thread-safe, use [KeccakPacker.get] to obtain instance of current thread.
+ */
+class KeccakPacker {
+    private val buffer = ByteArray(BUFFER_SIZE)
+    private var position = 0
+    private val digest = KeccakDigest(KECCAK_BITS)
+    private val output = ByteArray(WORD_SIZE)
+
+    /**
+     * Start new packed message
+     */
+    fun reset(): KeccakPacker {
+        position = 0
+        return this
+    }
+
+    /**
+     * Append 20-byte Ethereum address
+     * @param address - address in hex with or without 0x prefix
+     * @throws IllegalArgumentException if [address] is not 20 bytes of hex
+     */
+    fun putAddress(address: String) = putHex(address, ADDRESS_SIZE)
+
+    /**
+     * Append 32-byte value, like Iroha transaction hash
+     * @param hash - 32 bytes in hex with or without 0x prefix
+     * @throws IllegalArgumentException if [hash] is not 32 bytes of hex
+     */
+    fun putBytes32(hash: String) = putHex(hash, WORD_SIZE)
+
+    /**
+     * Append amount as 32-byte uint256
+     */
+    fun putUint256(amount: TokenAmount): KeccakPacker {
+        val bytes = amount.toBytes32()
+        System.arraycopy(bytes, 0, buffer, position, WORD_SIZE)
+        position += WORD_SIZE
+        return this
+    }
+
+    /**
+     * Append amount as 32-byte uint256
+     * @throws IllegalArgumentException if [amount] is negative or does not fit into 32 bytes
+     */
+    fun putUint256(amount: BigInteger): KeccakPacker {
+        if (amount.signum() < 0 || amount.bitLength() > WORD_SIZE * java.lang.Byte.SIZE)
+            throw IllegalArgumentException("Amount $amount is not uint256")
+        return putUint256(TokenAmount.fromUnits(amount, 0))
+    }
+
+    /**
+     * Calculate keccak-256 of appended data
+     * @return hash in hex with 0x prefix, the same as [org.web3j.crypto.Hash.sha3] returns
+     */
+    fun hash(): String {
+        digest.update(buffer, 0, position)
+        digest.doFinal(output, 0)
+        position = 0
+        return Numeric.toHexString(output)
+    }
+
+    private fun putHex(hex: String, size: Int): KeccakPacker {
+        val start = if (hex.startsWith("0x")) 2 else 0
+        if (hex.length - start != size * 2)
+            throw IllegalArgumentException("Expected $size bytes of hex, got $hex")
+        for (i in 0 until size) {
+            val high = Character.digit(hex[start + 2 * i], 16)
+            val low = Character.digit(hex[start + 2 * i + 1], 16)
+            if (high < 0 || low < 0)
+                throw IllegalArgumentException("Expected $size bytes of hex, got $hex")
+            buffer[position + i] = ((high shl 4) or low).toByte()
+        }
+        position += size
+        return this
+    }
+
+    companion object {
+        private const val KECCAK_BITS = 256
+        private const val ADDRESS_SIZE = 20
+        private const val WORD_SIZE = 32
+
+        // the largest packed message: (address, uint256, address, bytes32, address)
+        private const val BUFFER_SIZE = 3 * ADDRESS_SIZE + 2 * WORD_SIZE
+
+        private val packers = ThreadLocal.withInitial { KeccakPacker() }
+
+        /**
+         * Get packer of current thread, reset for new message
+         */
+        fun get(): KeccakPacker = packers.get().reset()
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.eth.sidechain.util
+
+import org.web3j.abi.datatypes.generated.Uint256
+import org.web3j.utils.Numeric
+import java.math.BigDecimal
+import java.math.BigInteger
+
+/**
+ * Amount of token/ether in token base units together with token precision.
+ * Amounts that fit into 18 decimal digits are kept in a long and converted without [BigDecimal],
+ * larger amounts fall back to [BigInteger].
+ * @param small - amount in base units, valid if [big] is null
+ * @param big - amount in base units that does not fit into [small]
+ * @param precision - number of decimal digits after point in Iroha representation
+ */
+class TokenAmount private constructor(
+    private val small: Long,
+    private val big: BigInteger?,
+    val precision: Int
+) {
+
+    /**
+     * Amount in token base units
+     */
+    val units: BigInteger
+        get() = big ?: BigInteger.valueOf(small)
+
+    /**
+     * Amount in token base units as decimal string, as expected by Ethereum contracts
+     */
+    fun toUnitsString(): String = big?.toString() ?: small.toString()
+
+    /**
+     * Amount as decimal string with [precision] digits after point, as expected by Iroha.
+     * Equal to BigDecimal(units, precision).toPlainString()
+     */
+    fun toDecimalString(): String {
+        if (big != null)
+            return BigDecimal(big, precision).toPlainString()
+        if (precision == 0)
+            return small.toString()
+        val digits = small.toString()
+        val builder = StringBuilder(digits.length + precision + 2)
+        val intDigits = digits.length - precision
+        if (intDigits > 0) {
+            builder.append(digits, 0, intDigits).append('.').append(digits, intDigits, digits.length)
+        } else {
+            builder.append("0.")
+            for (i in 0 until -intDigits)
+                builder.append('0')
+            builder.append(digits)
+        }
+        return builder.toString()
+    }
+
+    /**
+     * Amount as 32-byte big-endian uint256 ABI word
+     */
+    fun toBytes32(): ByteArray {
+        if (big != null)
+            return Numeric.toBytesPadded(big, UINT256_SIZE)
+        val bytes = ByteArray(UINT256_SIZE)
+        var value = small
+        for (i in UINT256_SIZE - 1 downTo UINT256_SIZE - java.lang.Long.BYTES) {
+            bytes[i] = value.toByte()
+            value = value ushr java.lang.Byte.SIZE
+        }
+        return bytes
+    }
+
+    /**
+     * Amount as uint256 for Ethereum contract calls
+     */
+    fun toUint256() = Uint256(units)
+
+    override fun equals(other: Any?): Boolean {
+        if (this === other) return true
+        if (other !is TokenAmount) return false
+        return precision == other.precision && small == other.small && big == other.big
+    }
+
+    override fun hashCode(): Int {
+        return 31 * (big?.hashCode() ?: java.lang.Long.hashCode(small)) + precision
+    }
+
+    override fun toString() = toUnitsString()
+
+    companion object {
+        private const val UINT256_SIZE = 32
+
+        // max number of decimal digits that always fits into long
+        private const val MAX_LONG_DIGITS = 18
+
+        private val POWERS_OF_TEN = LongArray(MAX_LONG_DIGITS + 1).also { powers ->
+            powers[0] = 1
+            for (i in 1..MAX_LONG_DIGITS)
+                powers[i] = powers[i - 1] * 10
+        }
+
+        /**
+         * Create amount from token base units
+         * @param units - amount in base units
+         * @param precision - token precision
+         */
+        fun fromUnits(units: BigInteger, precision: Int): TokenAmount {
+            checkPrecision(precision)
+            if (units.signum() < 0)
+                throw IllegalArgumentException("Amount must not be negative, got $units")
+            return if (units.bitLength() < java.lang.Long.SIZE)
+                TokenAmount(units.toLong(), null, precision)
+            else
+                TokenAmount(0, units, precision)
+        }
+
+        /**
+         * Create amount from token base units
+         * @param units - amount in base units as decimal string
+         * @param precision - token precision
+         */
+        fun fromUnits(units: String, precision: Int): TokenAmount {
+            val parsed = units.toLongOrNull()
+            return if (parsed != null && parsed >= 0) {
+                checkPrecision(precision)
+                TokenAmount(parsed, null, precision)
+            } else
+                fromUnits(BigInteger(units), precision)
+        }
+
+        /**
+         * Create amount from Iroha decimal representation
+         * @param amount - decimal amount, like "12.34"
+         * @param precision - token precision
+         * @throws ArithmeticException if [amount] has more significant digits after point than [precision]
+         */
+        fun fromDecimal(amount: String, precision: Int): TokenAmount {
+            checkPrecision(precision)
+            val parsed = parseDecimal(amount, precision)
+            return if (parsed >= 0)
+                TokenAmount(parsed, null, precision)
+            else
+                fromUnits(
+                    BigDecimal(amount).scaleByPowerOfTen(precision).toBigIntegerExact(),
+                    precision
+                )
+        }
+
+        private fun checkPrecision(precision: Int) {
+            if (precision < 0)
+                throw IllegalArgumentException("Precision must not be negative, got $precision")
+        }
+
+        /**
+         * Parse plain non-negative decimal and scale it by 10^[precision] into long
+         * @return base units or -1 if [amount] cannot be parsed into long without loss
+         */
+        private fun parseDecimal(amount: String, precision: Int): Long {
+            var units = 0L
+            var digits = 0
+            var fractionDigits = -1
+            var seenDigit = false
+            for (c in amount) {
+                if (c == '.') {
+                    if (fractionDigits >= 0)
+                        return -1
+                    fractionDigits = 0
+                    continue
+                }
+                if (c < '0' || c > '9')
+                    return -1
+                seenDigit = true
+                if (fractionDigits >= 0) {
+                    // trailing zeros beyond precision do not change the value
+                    if (fractionDigits == precision) {
+                        if (c != '0')
+                            return -1
+                        continue
+                    }
+                    fractionDigits++
+                }
+                // leading zeros are not significant
+                if (units == 0L && c == '0')
+                    continue
+                if (++digits > MAX_LONG_DIGITS)
+                    return -1
+                units = units * 10 + (c - '0')
+            }
+            if (!seenDigit)
+                return -1
+            if (units == 0L)
+                return 0
+            val scale = precision - Math.max(fractionDigits, 0)
+            if (digits + scale > MAX_LONG_DIGITS)
+                return -1
+            return units * POWERS_OF_TEN[scale]
+        }
+    }
+}
@@ -22,6 +22,7 @@ const val ETH_NODE_PASSWORD_ENV = "ETH_NODE_PASSWORD"
  * Ethereum configurations
  */
 interface EthereumConfig {
+    /** Ethereum node url or several node urls separated by comma, the first node is primary */
     val url: String
     val gasPrice: Long
     val gasLimit: Long
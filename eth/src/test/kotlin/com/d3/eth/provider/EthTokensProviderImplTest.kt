@@ -10,6 +10,8 @@ import com.github.kittinunf.result.Result
 import com.nhaarman.mockitokotlin2.doReturn
 import com.nhaarman.mockitokotlin2.eq
 import com.nhaarman.mockitokotlin2.mock
+import com.nhaarman.mockitokotlin2.times
+import com.nhaarman.mockitokotlin2.verify
 import org.junit.jupiter.api.Assertions.assertEquals
 import org.junit.jupiter.api.Test
 import org.junit.jupiter.api.assertThrows
@@ -32,6 +34,8 @@ class EthTokensProviderImplTest {
 
     private val wrongAssetId = "wrong#asset"
     private val ethAssetId = "$ETH_NAME#$ETH_DOMAIN"
+    private val precisionAssetId = "token_1#ethereum"
+    private val precision = 8
 
     private val ethAnchoredTokenStorageAccount = "eth_anchored_token_storage@notary"
     private val ethAnchoredTokenSetterAccount = "eth_anchored_token_setter@notary"
@@ -52,6 +56,10 @@ class EthTokensProviderImplTest {
                 eq(irohaAnchoredTokenSetterAccount)
             )
         } doReturn Result.of { irohaAnchored }
+
+        on {
+            getAssetPrecision(eq(precisionAssetId))
+        } doReturn Result.of { precision }
     }
 
     private val ethTokenProvider = EthTokensProviderImpl(
@@ -135,4 +143,64 @@ class EthTokensProviderImplTest {
             ethTokenProvider.isIrohaAnchored(wrongAssetId).get()
         }
     }
+
+    /**
+     * @given initialized ethTokenProvider
+     * @when tokens and precisions are looked up several times
+     * @then Iroha is queried only once, the rest lookups are served from the snapshot
+     */
+    @Test
+    fun snapshotIsReusedTest() {
+        repeat(3) {
+            ethAnchored.forEach { (address, assetId) ->
+                assertEquals(address, ethTokenProvider.getTokenAddress(assetId).get())
+                assertFalse { ethTokenProvider.isIrohaAnchored(assetId).get() }
+            }
+            assertEquals(precision, ethTokenProvider.getTokenPrecision(precisionAssetId).get())
+        }
+
+        verify(irohaQueryHelper, times(1)).getAccountDetails(
+            eq(ethAnchoredTokenStorageAccount),
+            eq(ethAnchoredTokenSetterAccount)
+        )
+        verify(irohaQueryHelper, times(1)).getAssetPrecision(eq(precisionAssetId))
+    }
+
+    /**
+     * @given initialized ethTokenProvider
+     * @when token lists are requested several times
+     * @then Iroha is queried only once
+     */
+    @Test
+    fun tokenListsAreServedFromSnapshotTest() {
+        repeat(3) {
+            assertEquals(ethAnchored, ethTokenProvider.getEthAnchoredTokens().get())
+            assertEquals(irohaAnchored, ethTokenProvider.getIrohaAnchoredTokens().get())
+        }
+
+        verify(irohaQueryHelper, times(1)).getAccountDetails(
+            eq(irohaAnchoredTokenStorageAccount),
+            eq(irohaAnchoredTokenSetterAccount)
+        )
+    }
+
+    /**
+     * @given initialized ethTokenProvider and wrongAssetId is not present
+     * @when wrongAssetId is looked up several times
+     * @then tokens are reloaded only for the first lookup
+     */
+    @Test
+    fun unknownAssetIsRememberedTest() {
+        repeat(3) {
+            assertThrows<IllegalArgumentException> {
+                ethTokenProvider.getTokenAddress(wrongAssetId).get()
+            }
+        }
+
+        // initial load and reload on the first miss
+        verify(irohaQueryHelper, times(2)).getAccountDetails(
+            eq(ethAnchoredTokenStorageAccount),
+            eq(ethAnchoredTokenSetterAccount)
+        )
+    }
 }
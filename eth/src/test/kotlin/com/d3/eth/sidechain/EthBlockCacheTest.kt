@@ -0,0 +1,129 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.eth.sidechain
+
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertNotNull
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import org.web3j.protocol.core.methods.response.EthBlock
+import org.web3j.protocol.core.methods.response.Log
+import org.web3j.protocol.core.methods.response.Transaction
+import org.web3j.protocol.core.methods.response.TransactionReceipt
+import org.web3j.utils.Numeric
+import java.io.File
+import java.math.BigInteger
+
+class EthBlockCacheTest {
+
+    private val path = createTempFile("eth_block_cache").absolutePath
+
+    @AfterEach
+    fun tearDown() {
+        File(path).delete()
+    }
+
+    private fun hash(number: Long, size: Int = 32) =
+        Numeric.toHexStringWithPrefixZeroPadded(BigInteger.valueOf(number), size * 2)
+
+    private fun block(number: Long): EthBlock.Block {
+        val block = EthBlock.Block()
+        block.setNumber(Numeric.encodeQuantity(BigInteger.valueOf(number)))
+        block.hash = hash(number)
+        block.parentHash = hash(number - 1)
+        block.setTimestamp(Numeric.encodeQuantity(BigInteger.valueOf(1_500_000_000 + number)))
+        block.transactions = (0 until 100L).map { index ->
+            val tx = EthBlock.TransactionObject()
+            tx.hash = hash(number * 1000 + index)
+            tx.from = hash(index, 20)
+            tx.to = if (index == 0L) null else hash(index + 1, 20)
+            tx.setValue(Numeric.encodeQuantity(BigInteger.TEN.pow(18).multiply(BigInteger.valueOf(index))))
+            tx
+        }
+        return block
+    }
+
+    private fun receipt(txHash: String, blockNumber: Long, status: String): TransactionReceipt {
+        val receipt = TransactionReceipt()
+        receipt.transactionHash = txHash
+        receipt.blockHash = hash(blockNumber)
+        receipt.setBlockNumber(Numeric.encodeQuantity(BigInteger.valueOf(blockNumber)))
+        receipt.status = status
+        val log = Log()
+        log.address = hash(7, 20)
+        log.topics = listOf(hash(1), hash(2), hash(3))
+        log.data = hash(100)
+        receipt.logs = listOf(log)
+        return receipt
+    }
+
+    /**
+     * @given cache with a block and receipts
+     * @when cache is reopened
+     * @then the block is found by number and hash, receipts are found for their block only
+     */
+    @Test
+    fun blocksAndReceiptsSurviveRestart() {
+        val block = block(10)
+        val txHash = (block.transactions[1].get() as Transaction).hash
+        EthBlockCache(path, 1).use { cache ->
+            cache.putBlock(block)
+            cache.putReceipt(receipt(txHash, 10, "0x1"))
+            cache.putReceipt(receipt(hash(5), 10, "0x0"))
+        }
+
+        EthBlockCache(path, 1).use { cache ->
+            val cached = cache.getBlock(BigInteger.valueOf(10))!!
+            assertEquals(block.hash, cached.hash)
+            assertEquals(block.parentHash, cached.parentHash)
+            assertEquals(block.timestamp, cached.timestamp)
+            assertEquals(block.transactions.size, cached.transactions.size)
+            block.transactions.zip(cached.transactions).forEach { (expected, actual) ->
+                val expectedTx = expected.get() as Transaction
+                val actualTx = actual.get() as Transaction
+                assertEquals(expectedTx.hash, actualTx.hash)
+                assertEquals(expectedTx.from, actualTx.from)
+                assertEquals(expectedTx.to, actualTx.to)
+                assertEquals(expectedTx.value, actualTx.value)
+                assertEquals(block.hash, actualTx.blockHash)
+            }
+            assertNotNull(cache.getBlock(block.hash))
+            assertNull(cache.getBlock(BigInteger.valueOf(11)))
+
+            val receipt = cache.getReceipt(txHash, block.hash)!!
+            assertTrue(receipt.isStatusOK)
+            assertEquals(listOf(hash(1), hash(2), hash(3)), receipt.logs.single().topics)
+            assertEquals(hash(100), receipt.logs.single().data)
+            assertFalse(cache.getReceipt(hash(5), block.hash)!!.isStatusOK)
+            // the transaction is handled in a block of other branch
+            assertNull(cache.getReceipt(txHash, hash(11)))
+        }
+    }
+
+    /**
+     * @given cache of 1 MB
+     * @when more blocks than fit are put
+     * @then the oldest blocks are evicted, the latest ones are found after restart
+     */
+    @Test
+    fun oldestBlocksAreEvicted() {
+        val count = 1000L
+        EthBlockCache(path, 1).use { cache ->
+            (1..count).forEach { number -> cache.putBlock(block(number)) }
+            assertNull(cache.getBlock(BigInteger.ONE))
+            assertNotNull(cache.getBlock(BigInteger.valueOf(count)))
+        }
+        assertEquals(1024 * 1024L, File(path).length())
+
+        EthBlockCache(path, 1).use { cache ->
+            assertNull(cache.getBlock(BigInteger.ONE))
+            assertEquals(hash(count), cache.getBlock(BigInteger.valueOf(count))!!.hash)
+        }
+    }
+}
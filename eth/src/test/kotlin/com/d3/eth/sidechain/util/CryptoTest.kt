@@ -0,0 +1,74 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.eth.sidechain.util
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Test
+import org.web3j.crypto.Hash
+import org.web3j.utils.Numeric
+import java.math.BigInteger
+import java.util.*
+
+class CryptoTest {
+
+    private val random = Random(42)
+
+    private val token = "0x0000000000000000000000000000000000000000"
+    private val account = "0xF2B0fE9cEc5D1a0b6e45fF1c4A7d2E3F4a5B6c7D"
+    private val relay = "1e5B4a8c2F3d7E6a9B0c1D2e3F4a5B6c7D8e9F0a"
+    private val irohaHash = "0x" + "ab".repeat(32)
+
+    /**
+     * Hash of hex concatenation as contracts expect it
+     */
+    private fun hexHash(vararg hexes: String) = Hash.sha3(hexes.joinToString("") { it.replace("0x", "") })
+
+    private fun randomHex(bytes: Int): String {
+        val array = ByteArray(bytes)
+        random.nextBytes(array)
+        return Numeric.toHexString(array)
+    }
+
+    /**
+     * @given random addresses, amounts and hashes
+     * @when hashToWithdraw() and hashToMint() are called
+     * @then result equals keccak-256 of hex concatenation
+     */
+    @Test
+    fun assetTransferHashTest() {
+        repeat(100) {
+            val token = randomHex(20)
+            val amount = BigInteger(random.nextInt(256), random)
+            val account = randomHex(20).toUpperCase().replace("0X", "0x")
+            val irohaHash = randomHex(32).drop(2)
+            val relay = randomHex(20)
+            val expected = hexHash(token, String.format("%064x", amount), account, irohaHash, relay)
+
+            assertEquals(expected, hashToWithdraw(token, amount.toString(), account, irohaHash, relay))
+            assertEquals(expected, hashToMint(token, amount.toString(), account, irohaHash, relay))
+            assertEquals(
+                expected,
+                hashToWithdraw(token, TokenAmount.fromUnits(amount, 18), account, irohaHash, relay)
+            )
+        }
+    }
+
+    /**
+     * @given arguments that are not canonical addresses and hashes
+     * @when hashToWithdraw() and hashToAddAndRemovePeer() are called
+     * @then result still equals keccak-256 of hex concatenation
+     */
+    @Test
+    fun nonCanonicalArgumentsTest() {
+        val shortHash = "0x1234"
+        assertEquals(
+            hexHash(token, String.format("%064x", BigInteger.TEN), account, shortHash, relay),
+            hashToWithdraw(token, "10", account, shortHash, relay)
+        )
+        assertEquals(hexHash(account, shortHash), hashToAddAndRemovePeer(account, shortHash))
+        assertEquals(hexHash(account, irohaHash), hashToAddAndRemovePeer(account, irohaHash))
+    }
+}
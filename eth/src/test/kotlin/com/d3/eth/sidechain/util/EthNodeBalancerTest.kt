@@ -0,0 +1,193 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.eth.sidechain.util
+
+import com.sun.net.httpserver.HttpServer
+import okhttp3.OkHttpClient
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import org.web3j.protocol.core.Request
+import org.web3j.protocol.core.methods.response.EthBlock
+import org.web3j.protocol.core.methods.response.EthGetBalance
+import org.web3j.protocol.core.methods.response.EthGetTransactionCount
+import java.io.IOException
+import java.math.BigInteger
+import java.net.InetSocketAddress
+import java.util.concurrent.TimeUnit
+
+class EthNodeBalancerTest {
+
+    /**
+     * Local stub of Ethereum node. It reports its [head], answers eth_getBlockByNumber with blocks up to [head]
+     * and eth_getBalance and eth_getTransactionCount with its [id] after [delayMillis].
+     */
+    private class StubNode(val id: Int, val head: Long, @Volatile var delayMillis: Long) {
+
+        private val server = HttpServer.create(InetSocketAddress("127.0.0.1", 0), 0)
+
+        val url = "http://127.0.0.1:${server.address.port}"
+
+        init {
+            server.createContext("/") { exchange ->
+                val request = exchange.requestBody.bufferedReader().readText()
+                val result = if (request.contains("eth_getBlockByNumber")) {
+                    val number = Regex("\"params\":\\[\"0x([0-9a-f]+)\"").find(request)!!.groupValues[1].toLong(16)
+                    if (number <= head) "{\"number\":\"0x${number.toString(16)}\"}" else "null"
+                } else {
+                    val value = if (request.contains("eth_blockNumber")) head else id.toLong()
+                    "\"0x${value.toString(16)}\""
+                }
+                if (delayMillis > 0)
+                    Thread.sleep(delayMillis)
+                val response = "{\"jsonrpc\":\"2.0\",\"id\":1,\"result\":$result}".toByteArray()
+                exchange.sendResponseHeaders(200, response.size.toLong())
+                exchange.responseBody.use { it.write(response) }
+            }
+            server.start()
+        }
+
+        fun stop() = server.stop(0)
+    }
+
+    private val httpClient = OkHttpClient.Builder()
+        .readTimeout(5, TimeUnit.SECONDS)
+        .build()
+
+    private val primary = StubNode(0, 100, 100)
+    private val fast = StubNode(1, 100, 0)
+    private val lagging = StubNode(2, 90, 0)
+    private val stubs = listOf(primary, fast, lagging)
+
+    private val balancer = EthNodeBalancer(
+        stubs.map { stub -> EthNode(stub.url, MeteredHttpService(stub.url, httpClient)) }
+    )
+
+    @AfterEach
+    fun tearDown() {
+        stubs.forEach { stub -> stub.stop() }
+    }
+
+    private fun read(balancer: EthNodeBalancer = this.balancer) = Request(
+        "eth_getBalance",
+        listOf("0x0", "latest"),
+        balancer,
+        EthGetBalance::class.java
+    ).send().balance.toInt()
+
+    private fun getNonce() = Request(
+        "eth_getTransactionCount",
+        listOf("0x0", "latest"),
+        balancer,
+        EthGetTransactionCount::class.java
+    ).send().transactionCount.toInt()
+
+    /**
+     * @given primary slow node, fast node and fast node lagging behind
+     * @when nodes are checked and calls are sent
+     * @then reads go to the fast node in sync, nonce queries go to the primary node
+     */
+    @Test
+    fun readsGoToFastestNodeInSync() {
+        balancer.checkNodes()
+
+        assertEquals(fast.id, read())
+        assertEquals(primary.id, getNonce())
+    }
+
+    /**
+     * @given nodes checked and the fast node stopped
+     * @when read is sent
+     * @then read fails over to the primary node which is in sync, not to the lagging one
+     */
+    @Test
+    fun readFailsOver() {
+        balancer.checkNodes()
+        fast.stop()
+
+        assertEquals(primary.id, read())
+        assertEquals(primary.id, read())
+    }
+
+    /**
+     * @given nodes checked and the primary node stopped
+     * @when nonce is queried
+     * @then the query fails over to the fast node
+     */
+    @Test
+    fun pinnedCallFailsOver() {
+        balancer.checkNodes()
+        primary.stop()
+
+        assertEquals(fast.id, getNonce())
+    }
+
+    /**
+     * @given primary node and fast node in sync but one block behind
+     * @when the last block is read
+     * @then the block unknown to the fast node is read from the primary node
+     */
+    @Test
+    fun unknownBlockIsReadFromNextNode() {
+        val behind = StubNode(3, 99, 0)
+        try {
+            val nodes = listOf(primary, behind)
+            val behindBalancer = EthNodeBalancer(
+                nodes.map { stub -> EthNode(stub.url, MeteredHttpService(stub.url, httpClient)) }
+            )
+            behindBalancer.checkNodes()
+
+            val block = Request(
+                "eth_getBlockByNumber",
+                listOf("0x64", false),
+                behindBalancer,
+                EthBlock::class.java
+            ).send().block
+
+            assertEquals(BigInteger.valueOf(100), block.number)
+        } finally {
+            behind.stop()
+        }
+    }
+
+    /**
+     * @given all the nodes stopped
+     * @when read is sent
+     * @then I/O error of the last node is thrown
+     */
+    @Test
+    fun allNodesFailed() {
+        stubs.forEach { stub -> stub.stop() }
+
+        assertThrows<IOException> { read() }
+    }
+
+    /**
+     * @given two nodes in sync and hedging budget of every read
+     * @when the node that serves reads becomes slow
+     * @then the read is hedged and answered by the other node before the slow node answers
+     */
+    @Test
+    fun slowReadIsHedged() {
+        val hedgingBalancer = EthNodeBalancer(
+            listOf(fast, primary).map { stub -> EthNode(stub.url, MeteredHttpService(stub.url, httpClient)) },
+            hedgeBudgetPercent = 100
+        )
+        hedgingBalancer.checkNodes()
+        primary.delayMillis = 0
+        // collect latencies to estimate hedge delay
+        val servingId = (1..40).map { read(hedgingBalancer) }.last()
+        val serving = stubs.first { stub -> stub.id == servingId }
+        val other = if (serving == fast) primary else fast
+        serving.delayMillis = 3000
+
+        val start = System.currentTimeMillis()
+        assertEquals(other.id, read(hedgingBalancer))
+        assertTrue(System.currentTimeMillis() - start < 2000)
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.eth.sidechain.util
+
+import org.junit.jupiter.api.Assertions.assertArrayEquals
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertNotEquals
+import org.junit.jupiter.api.Test
+import org.web3j.crypto.Keys
+import org.web3j.crypto.Sign
+
+class EthSignerImplTest {
+
+    private val verifier = EthSignatureVerifierImpl()
+
+    /**
+     * @given random keys and messages
+     * @when messages are signed with EthSignerImpl
+     * @then signatures are equal to web3j signatures and recover to signer address
+     */
+    @Test
+    fun signatureIsCompatibleTest() {
+        repeat(50) { i ->
+            val keyPair = Keys.createEcKeyPair()
+            val message = "message $i".toByteArray()
+
+            val expected = Sign.signMessage(message, keyPair)
+            val actual = EthSignerImpl(keyPair).signMessage(message)
+
+            assertEquals(expected.v, actual.v)
+            assertArrayEquals(expected.r, actual.r)
+            assertArrayEquals(expected.s, actual.s)
+            assertEquals(Keys.getAddress(keyPair), verifier.recoverMessageAddress(message, actual))
+        }
+    }
+
+    /**
+     * @given signature of other message
+     * @when signer is recovered
+     * @then recovered address differs from signer address
+     */
+    @Test
+    fun wrongMessageTest() {
+        val keyPair = Keys.createEcKeyPair()
+        val signature = EthSignerImpl(keyPair).signMessage("message".toByteArray())
+
+        assertNotEquals(
+            Keys.getAddress(keyPair),
+            verifier.recoverMessageAddress("other message".toByteArray(), signature)
+        )
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.eth.sidechain.util
+
+import com.d3.eth.metrics.EthMetrics
+import io.reactivex.Flowable
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import org.web3j.protocol.Web3jService
+import org.web3j.protocol.core.Request
+import org.web3j.protocol.core.Response
+import org.web3j.protocol.core.methods.response.EthBlockNumber
+import org.web3j.protocol.websocket.events.Notification
+import java.io.IOException
+import java.util.concurrent.CompletableFuture
+
+class InstrumentedWeb3jServiceTest {
+
+    /**
+     * Service that answers with JSON-RPC error to eth_call and fails other calls
+     */
+    private val delegate = object : Web3jService {
+        override fun <T : Response<*>> send(request: Request<*, out Response<*>>, responseType: Class<T>): T {
+            if (request.method != "eth_call")
+                throw IOException("connection refused")
+            val response = responseType.getDeclaredConstructor().newInstance()
+            response.error = Response.Error(-32000, "execution reverted")
+            return response
+        }
+
+        override fun <T : Response<*>> sendAsync(
+            request: Request<*, out Response<*>>,
+            responseType: Class<T>
+        ): CompletableFuture<T> = CompletableFuture.supplyAsync { send(request, responseType) }
+
+        override fun <T : Notification<*>> subscribe(
+            request: Request<*, out Response<*>>,
+            unsubscribeMethod: String,
+            responseType: Class<T>
+        ): Flowable<T> = throw UnsupportedOperationException()
+
+        override fun close() {}
+    }
+
+    private val service = InstrumentedWeb3jService(delegate)
+
+    /**
+     * @given service that answers with JSON-RPC error
+     * @when call is sent through the instrumented service
+     * @then the response is returned as is and the call is recorded with the error code
+     */
+    @Test
+    fun rpcErrorIsRecorded() {
+        val request = Request("eth_call", emptyList<String>(), service, EthBlockNumber::class.java)
+
+        val response = service.send(request, EthBlockNumber::class.java)
+
+        assertEquals(-32000, response.error.code)
+        assertTrue(EthMetrics.scrape().contains("method=\"eth_call\""))
+        assertTrue(EthMetrics.scrape().contains("error=\"rpc_-32000\""))
+    }
+
+    /**
+     * @given service that fails calls
+     * @when calls are sent synchronously and asynchronously through the instrumented service
+     * @then the exceptions are propagated and calls are recorded with the exception class
+     */
+    @Test
+    fun exceptionIsRecorded() {
+        val request = Request("eth_blockNumber", emptyList<String>(), service, EthBlockNumber::class.java)
+
+        assertThrows<IOException> { service.send(request, EthBlockNumber::class.java) }
+        assertThrows<Exception> { service.sendAsync(request, EthBlockNumber::class.java).join() }
+
+        assertTrue(EthMetrics.scrape().contains("error=\"IOException\",method=\"eth_blockNumber\""))
+    }
+}
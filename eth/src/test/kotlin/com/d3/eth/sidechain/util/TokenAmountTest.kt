@@ -0,0 +1,62 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.eth.sidechain.util
+
+import org.junit.jupiter.api.Assertions.assertArrayEquals
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import org.web3j.utils.Numeric
+import java.math.BigDecimal
+import java.math.BigInteger
+
+class TokenAmountTest {
+
+    private val amounts = listOf(
+        "0", "0.0", "1", "1.5", "0.000000000000000001", "123.456", "00012.3400",
+        "999999999999999999", "9999999999999999999", "12345678901234567890.123456789012345678",
+        "1.100000000000000000000"
+    )
+
+    private val precisions = listOf(0, 2, 8, 18, 20)
+
+    /**
+     * @given decimal amounts and token precisions
+     * @when amounts are converted with TokenAmount
+     * @then the result is the same as conversion with BigDecimal
+     */
+    @Test
+    fun decimalConversionTest() {
+        for (amount in amounts) {
+            for (precision in precisions) {
+                val expected = try {
+                    BigDecimal(amount).scaleByPowerOfTen(precision).toBigIntegerExact()
+                } catch (ex: ArithmeticException) {
+                    assertThrows<ArithmeticException> { TokenAmount.fromDecimal(amount, precision) }
+                    continue
+                }
+                val tokenAmount = TokenAmount.fromDecimal(amount, precision)
+                assertEquals(expected, tokenAmount.units)
+                assertEquals(expected.toString(), tokenAmount.toUnitsString())
+                assertEquals(BigDecimal(expected, precision).toPlainString(), tokenAmount.toDecimalString())
+                assertArrayEquals(Numeric.toBytesPadded(expected, 32), tokenAmount.toBytes32())
+                assertEquals(tokenAmount, TokenAmount.fromUnits(expected, precision))
+                assertEquals(tokenAmount, TokenAmount.fromUnits(expected.toString(), precision))
+            }
+        }
+    }
+
+    /**
+     * @given negative amount
+     * @when TokenAmount is created
+     * @then IllegalArgumentException is thrown
+     */
+    @Test
+    fun negativeAmountTest() {
+        assertThrows<IllegalArgumentException> { TokenAmount.fromDecimal("-1.5", 2) }
+        assertThrows<IllegalArgumentException> { TokenAmount.fromUnits(BigInteger.valueOf(-1), 2) }
+    }
+}
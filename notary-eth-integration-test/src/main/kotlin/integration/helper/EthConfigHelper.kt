@@ -130,9 +130,16 @@ open class EthConfigHelper(
             override val iroha = irohaConfig
             override val lastEthereumReadBlockFilePath =
                 this@EthConfigHelper.lastEthereumReadBlockFilePath
+            override val ethereumBlockCacheFilePath =
+                createTempFile("eth_block_cache_$testName").absolutePath
+            override val ethereumBlockCacheSizeMb = ethDepositConfig.ethereumBlockCacheSizeMb
+            override val depositSpoolFilePath: String? = null
+            override val maxDepositsPerIrohaTransaction = ethDepositConfig.maxDepositsPerIrohaTransaction
+            override val slowDepositMillis = ethDepositConfig.slowDepositMillis
             override val startEthereumBlock = BigInteger.ZERO
             override val ignoreStartBlock = true
             override val ethereum = ethereumConfig
+            override val ethereumHedgeBudgetPercent = ethDepositConfig.ethereumHedgeBudgetPercent
             override val withdrawalAccountId = accountHelper.withdrawalAccount.accountId
             override val ethIrohaDepositQueue = testName
             override val ethMasterAddress = masterContractAddress
@@ -183,6 +190,10 @@ open class EthConfigHelper(
             override val iroha = createIrohaConfig()
             override val ethereum = ethereumConfig
             override val ethIrohaWithdrawalQueue = testName
+            override val withdrawalWorkers = withdrawalConfig.withdrawalWorkers
+            override val withdrawalMaxAttempts = withdrawalConfig.withdrawalMaxAttempts
+            override val withdrawalJournalFilePath =
+                createTempFile("withdrawal_journal_$testName").absolutePath
         }
     }
 
@@ -228,6 +239,10 @@ open class EthConfigHelper(
             /** Notary Iroha account that stores relay register */
             override val relayStorageAccount = accountHelper.ethereumRelayStorageAccount.accountId
 
+            override val vacuumPeriod = vacuumConfig.vacuumPeriod
+            override val vacuumReconcilePeriod = vacuumConfig.vacuumReconcilePeriod
+            override val vacuumThreshold = vacuumConfig.vacuumThreshold
+
             override val vacuumCredential =
                 accountHelper.createCredentialRawConfig(accountHelper.testCredential)
             /** Iroha configurations */